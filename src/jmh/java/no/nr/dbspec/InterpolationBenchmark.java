@@ -0,0 +1,100 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpolating variables into raw sections, as in the body of a typical loop:
+ * <pre>
+ * Execute via conn:
+ *     INSERT INTO t VALUES ($${id}, '${name}', '${comment}')
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterpolationBenchmark {
+
+    private Interpreter interpreter;
+    private NormalContext ctx;
+    private Node raw;
+    private Node rawSql;
+    private String escapable;
+
+    private Node leaf(Kind kind, String text) {
+        return new Node(kind, null, new Node[0], null, text);
+    }
+
+    private Node interpolation(Kind kind, String variable) {
+        Node identifier = new Node(Kind.IDENTIFIER, null, new Node[0], null, variable,
+                ctx.getSymbols().slot(variable), null);
+        Node instance = new Node(Kind.VARIABLE_INSTANCE, null, new Node[] { identifier }, null, null);
+        return new Node(kind, null, new Node[] { instance }, null, null);
+    }
+
+    private Node raw(Kind idKind) {
+        return new Node(Kind.RAW, null, new Node[] {
+                leaf(Kind.RAW_CONTENT, "INSERT INTO t VALUES ("),
+                interpolation(idKind, "id"),
+                leaf(Kind.RAW_CONTENT, ", '"),
+                interpolation(Kind.INTERPOLATION, "name"),
+                leaf(Kind.RAW_CONTENT, "', '"),
+                interpolation(Kind.INTERPOLATION, "comment"),
+                leaf(Kind.RAW_CONTENT, "')\n"),
+        }, null, null);
+    }
+
+    @Setup
+    public void setup() {
+        interpreter = new Interpreter(
+                new Log(Log.QUIET),
+                Path.of("."),
+                new Properties(),
+                false,
+                new Dbms(new TimingContext(false)),
+                null,
+                null,
+                null,
+                null);
+        ctx = new NormalContext();
+        ctx.setValue("id", "12345");
+        ctx.setValue("name", "Ola Nordmann");
+        ctx.setValue("comment", "Registered 2024-01-01 by the archivist");
+        raw = raw(Kind.INTERPOLATION);
+        rawSql = raw(Kind.INTERPOLATION2);
+        escapable = "Line 1\n\tLine 2 with \"quotes\" and æøå";
+    }
+
+    @Benchmark
+    public String raw() {
+        return interpreter.interpretRaw(raw, 0, ctx);
+    }
+
+    @Benchmark
+    public Map.Entry<String, List<Object>> rawSql() {
+        return interpreter.interpretRawSql(rawSql, 0, ctx);
+    }
+
+    @Benchmark
+    public String escape() {
+        return Utils.escape(escapable, true);
+    }
+}
@@ -0,0 +1,79 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating literals with and without the values computed by NodeCompiler,
+ * as is done for every iteration of a loop body.
+ * Run with "-prof gc" to see the difference in allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LiteralBenchmark {
+
+    @Param({"true", "false"})
+    public boolean precomputed;
+
+    private Interpreter interpreter;
+    private NormalContext ctx;
+    private Node integer;
+    private Node string;
+
+    private Node leaf(Kind kind, String text) {
+        return new Node(kind, null, new Node[0], null, text, -1,
+                precomputed ? NodeCompiler.constant(kind, text, new Node[0]) : null);
+    }
+
+    @Setup
+    public void setup() {
+        interpreter = new Interpreter(
+                new Log(Log.QUIET),
+                Path.of("."),
+                new Properties(),
+                false,
+                new Dbms(new TimingContext(false)),
+                null,
+                null,
+                null,
+                null);
+        ctx = new NormalContext();
+        integer = leaf(Kind.INTEGER, "12345678901234567890");
+        Node[] parts = {
+                leaf(Kind.STRING_CONTENT, "Table "),
+                leaf(Kind.ESCAPE_SEQUENCE, "\\t"),
+                leaf(Kind.STRING_CONTENT, "has been checked.")
+        };
+        string = new Node(Kind.STRING, null, parts, null, null, -1,
+                precomputed ? NodeCompiler.constant(Kind.STRING, null, parts) : null);
+    }
+
+    @Benchmark
+    public BigInteger integer() {
+        return interpreter.interpretInteger(integer, 0);
+    }
+
+    @Benchmark
+    public String string() {
+        return interpreter.interpretString(string, 0, ctx);
+    }
+}
@@ -0,0 +1,122 @@
+package no.nr.dbspec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Comparing equal row sets (as in "Assert a == b") from an in-memory H2 database and from script output.
+ * Query results are compared in the database only if the order of the rows is ignored and the queries
+ * have not been executed yet (cf. Settings.COMPARE_ROWS_IN_DATABASE).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowComparisonBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Dbms dbms;
+    private Connection connection;
+    private String scriptOutput;
+
+    private static Map.Entry<String, List<Object>> query(String table) {
+        return new AbstractMap.SimpleEntry<>("SELECT * FROM " + table + " ORDER BY id", List.of());
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        dbms = new Dbms(new TimingContext(false));
+        // Otherwise H2 would keep the results of the repeated queries.
+        connection = DriverManager.getConnection("jdbc:h2:mem:;OPTIMIZE_REUSE_RESULTS=FALSE");
+        try (Statement s = connection.createStatement()) {
+            for (String table : new String[] { "t", "u" }) {
+                s.execute("CREATE TABLE " + table + " (id INT, name VARCHAR(50), amount DECIMAL(10, 2))");
+                s.execute("INSERT INTO " + table + " SELECT X, 'name ' || X, X / 100.0 FROM SYSTEM_RANGE(1, "
+                        + rows + ")");
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= rows; i++) {
+            sb.append(i).append("\tname ").append(i).append('\t').append(i / 100).append('.').append(i % 100)
+                    .append('\n');
+        }
+        scriptOutput = sb.toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        dbms.closeStatements();
+        connection.close();
+    }
+
+    private boolean compare(RowComparison comparison, Rows left, Rows right) throws SQLException {
+        List<String> differences = new ArrayList<>();
+        try {
+            if (!comparison.compare(null, left, right, differences)) {
+                throw new IllegalStateException("Unexpected differences: " + differences);
+            }
+            return true;
+        } finally {
+            left.free();
+            right.free();
+        }
+    }
+
+    @Benchmark
+    public boolean queriesInDatabase() throws SQLException {
+        QueryRows left = new DeferredRows(dbms, connection, query("t"), Settings.DEFAULT_ROWS_IN_MEMORY);
+        QueryRows right = new DeferredRows(dbms, connection, query("u"), Settings.DEFAULT_ROWS_IN_MEMORY);
+        boolean result = compare(new RowComparison(dbms, false, Settings.DEFAULT_MAX_REPORTED_DIFFERENCES),
+                left, right);
+        if (!left.isPending() || !right.isPending()) {
+            throw new IllegalStateException("The rows were not compared in the database.");
+        }
+        return result;
+    }
+
+    @Benchmark
+    public boolean unorderedQueriesInMemory() throws SQLException {
+        return compare(new RowComparison(null, false, Settings.DEFAULT_MAX_REPORTED_DIFFERENCES),
+                new BufferedRows(dbms, connection, query("t"), Settings.DEFAULT_ROWS_IN_MEMORY),
+                new BufferedRows(dbms, connection, query("u"), Settings.DEFAULT_ROWS_IN_MEMORY));
+    }
+
+    @Benchmark
+    public boolean queriesInMemory() throws SQLException {
+        return compare(new RowComparison(null, true, Settings.DEFAULT_MAX_REPORTED_DIFFERENCES),
+                new BufferedRows(dbms, connection, query("t"), Settings.DEFAULT_ROWS_IN_MEMORY),
+                new BufferedRows(dbms, connection, query("u"), Settings.DEFAULT_ROWS_IN_MEMORY));
+    }
+
+    @Benchmark
+    public boolean scriptOutput() throws SQLException {
+        return compare(new RowComparison(null, true, Settings.DEFAULT_MAX_REPORTED_DIFFERENCES),
+                new StringRows(scriptOutput),
+                new StringRows(scriptOutput));
+    }
+}
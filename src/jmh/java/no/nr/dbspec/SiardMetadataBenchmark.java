@@ -0,0 +1,121 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.SiardMd.SiardMdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Adjusting the metadata of a generated SIARD file with many tables, with a description of each table and column.
+ * NB. The file is modified in place, so each invocation adjusts metadata which has already been adjusted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SiardMetadataBenchmark {
+
+    private static final int COLUMNS = 10;
+
+    @Param({"100", "1000"})
+    public int tables;
+
+    /**
+     * Whether to rewrite header/metadata.xml directly (cf. Settings.STREAM_SIARD_METADATA).
+     * Otherwise the SIARD API is used.
+     */
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    private Path file;
+    private SiardMd metadata;
+    private SiardMetadataAdjusterImpl adjuster;
+
+    private String metadataXml() {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<siardArchive xmlns=\"http://www.bar.admin.ch/xmlns/siard/2/metadata.xsd\" version=\"2.1\">\n"
+                + "  <dbname>db</dbname>\n"
+                + "  <dataOwner>owner</dataOwner>\n"
+                + "  <dataOriginTimespan>2024</dataOriginTimespan>\n"
+                + "  <archivalDate>2025-01-01</archivalDate>\n"
+                + "  <schemas>\n"
+                + "    <schema>\n"
+                + "      <name>s</name>\n"
+                + "      <folder>schema0</folder>\n"
+                + "      <tables>\n");
+        for (int t = 0; t < tables; t++) {
+            sb.append("        <table>\n          <name>t").append(t).append("</name>\n")
+                    .append("          <folder>table").append(t).append("</folder>\n")
+                    .append("          <columns>\n");
+            for (int c = 0; c < COLUMNS; c++) {
+                sb.append("            <column>\n              <name>c").append(c).append("</name>\n")
+                        .append("              <type>INTEGER</type>\n            </column>\n");
+            }
+            sb.append("          </columns>\n          <rows>0</rows>\n        </table>\n");
+        }
+        sb.append("      </tables>\n    </schema>\n  </schemas>\n  <users/>\n</siardArchive>\n");
+        return sb.toString();
+    }
+
+    private SiardMd metadataObject() {
+        SiardMd mdo = new SiardMd();
+        mdo.add(new SiardMd(SiardMdType.INFO, "dbname", "Benchmark"));
+        mdo.add(new SiardMd(SiardMdType.INFO, "description", "Generated for benchmarking"));
+        SiardMd schema = new SiardMd(SiardMdType.SCHEMA, "s", "The only schema");
+        for (int t = 0; t < tables; t++) {
+            SiardMd table = new SiardMd(SiardMdType.TABLE, "t" + t, "Table number " + t);
+            for (int c = 0; c < COLUMNS; c++) {
+                table.add(new SiardMd(SiardMdType.COLUMN, "c" + c, "Column " + c + " of table " + t));
+            }
+            schema.add(table);
+        }
+        mdo.add(schema);
+        return mdo;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("dbspec-bench-", ".siard");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("header/"));
+            zip.putNextEntry(new ZipEntry("header/metadata.xml"));
+            zip.write(metadataXml().getBytes(StandardCharsets.UTF_8));
+            for (int t = 0; t < tables; t++) {
+                zip.putNextEntry(new ZipEntry("content/schema0/table" + t + "/table" + t + ".xml"));
+                zip.write(("<table>" + t + "</table>").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        metadata = metadataObject();
+        adjuster = new SiardMetadataAdjusterImpl(new Log(Log.QUIET), streaming);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void updateMetadata() throws SiardException {
+        adjuster.updateMetadata(file, metadata, null);
+    }
+}
@@ -0,0 +1,120 @@
+package no.nr.dbspec;
+
+import no.nr.TreeSitterDbspec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.treesitter.TSParser;
+import org.treesitter.TSTree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and running generated specifications against an in-memory H2 database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpecBenchmark {
+
+    /**
+     * The number of statements parsed, and the number of rows iterated over.
+     */
+    @Param({"1000", "10000"})
+    public int size;
+
+    private Path dir;
+    private Path loopSpec;
+    private String parseSource;
+
+    private static String parseSpec(int statements) {
+        StringBuilder sb = new StringBuilder("Parameters:\n\turl\n\n");
+        sb.append("Set conn = connection to url with:\n\tuser = \"sa\"\n\n");
+        for (int i = 0; i < statements; i += 4) {
+            sb.append("Set x").append(i).append(" = \"value ").append(i).append("\"\n");
+            sb.append("Log \"${x").append(i).append("} is set\"\n");
+            sb.append("Execute via conn:\n\tINSERT INTO t VALUES (").append(i).append(", $${x").append(i).append("})\n");
+            sb.append("Set r").append(i).append(" = result via conn:\n\tSELECT * FROM t WHERE id < ")
+                    .append(i).append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String loopSpec(int rows) {
+        return "Parameters:\n\turl\n\n"
+                + "Set conn = connection to url with:\n\tuser = \"sa\"\n\n"
+                + "Execute via conn:\n\tCREATE TABLE t (id INT, name VARCHAR(50))\n\n"
+                + "Execute via conn:\n\tINSERT INTO t SELECT X, 'name ' || X FROM SYSTEM_RANGE(1, " + rows + ")\n\n"
+                + "Execute via conn:\n\tCREATE TABLE u (id INT, name VARCHAR(50))\n\n"
+                + "Set r = result via conn:\n\tSELECT id, name FROM t ORDER BY id\n\n"
+                + "For (id, name) in r:\n"
+                + "\tExecute via conn:\n\t\tINSERT INTO u VALUES ($${id}, '${name}')\n\n"
+                + "Set a = result via conn:\n\tSELECT * FROM t ORDER BY id\n"
+                + "Set b = result via conn:\n\tSELECT * FROM u ORDER BY id\n"
+                + "Assert a == b\n";
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dbspec-bench-");
+        loopSpec = Files.writeString(dir.resolve("loop.dbspec"), loopSpec(size));
+        parseSource = parseSpec(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(loopSpec);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public Node parse() {
+        TSParser parser = new TSParser();
+        parser.setLanguage(new TreeSitterDbspec());
+        TSTree tree = parser.parseString(null, parseSource);
+        return new NodeCompiler(Utils.tsLines(parseSource), Utils.tsLineEndings(parseSource))
+                .compile(tree.getRootNode());
+    }
+
+    @Benchmark
+    public StatusCode loop() {
+        Properties config = new Properties();
+        // A private database for each connection, dropped when it is closed.
+        config.setProperty("url", "jdbc:h2:mem:");
+        Log log = new Log(Log.QUIET);
+        Dbms dbms = new Dbms(new TimingContext(false));
+        ScriptRunnerImpl scriptRunner = new ScriptRunnerImpl(new TimingContext(false));
+        try {
+            StatusCode code = new Interpreter(log, dir, config, false, dbms, scriptRunner, null, null, null)
+                    .interpret(loopSpec);
+            if (code != StatusCode.OK) {
+                throw new IllegalStateException("Unexpected status: " + code);
+            }
+            return code;
+        } finally {
+            scriptRunner.close();
+            for (Connection c : new ArrayList<>(dbms.connectionParameters.keySet())) {
+                dbms.closeConnection(c);
+            }
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package no.nr.dbspec;
 
-import org.treesitter.TSNode;
+import java.util.List;
 
 public class AssertionFailure extends RuntimeException {
-    final TSNode node;
+    final Node node;
     final Context context;
+    final List<String> differences;
 
-    public AssertionFailure(TSNode node, Context context) {
+    public AssertionFailure(Node node, Context context, List<String> differences) {
         this.node = node;
         this.context = context;
+        this.differences = differences;
     }
 }
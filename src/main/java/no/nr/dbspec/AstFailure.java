@@ -8,4 +8,8 @@ public class AstFailure extends RuntimeException {
     AstFailure(TSNode node) {
         this.node = node;
     }
+
+    AstFailure(Node node) {
+        this(node.ts);
+    }
 }
@@ -0,0 +1,118 @@
+package no.nr.dbspec;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on a bounded pool of worker threads while the interpreter continues.
+ * Tasks using the same resource (e.g. a database connection) are run one at a time.
+ * With a single worker, the tasks are run immediately in the calling thread instead.
+ * Otherwise, only the thread which created the object may use it.
+ * The tasks are run with the current statement at the time they were submitted, cf. Events.
+ */
+public class BackgroundTasks {
+
+    private static class Task {
+        final Object resource;
+        final Future<?> future;
+
+        Task(Object resource, Future<?> future) {
+            this.resource = resource;
+            this.future = future;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final List<Task> pending = new ArrayList<>();
+    private final Thread owner = Thread.currentThread();
+
+    public BackgroundTasks(int workers) {
+        this.executor = workers > 1 ? Executors.newFixedThreadPool(workers) : null;
+    }
+
+    public void submit(Object resource, Runnable task) {
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        checkOwner();
+        Iterator<Task> i = pending.iterator();
+        while (i.hasNext()) {
+            Task t = i.next();
+            if (t.resource == resource) {
+                i.remove();
+                await(t);
+            }
+        }
+        pending.add(new Task(resource, executor.submit(Events.withCurrentStatement(task))));
+    }
+
+    /**
+     * Wait until all tasks have finished.
+     * If any of them failed, the exception of the first one (in submission order) is rethrown.
+     */
+    public void awaitAll() {
+        if (executor == null) {
+            return;
+        }
+        checkOwner();
+        RuntimeException failure = null;
+        for (Task t : pending) {
+            try {
+                await(t);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        pending.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Wait for the remaining tasks, ignoring failures, and stop the workers.
+     */
+    public void shutdown() {
+        try {
+            awaitAll();
+        } catch (RuntimeException e) {
+            // Already handling another error.
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void checkOwner() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("Background tasks used by another thread than " + owner.getName());
+        }
+    }
+
+    private static void await(Task t) {
+        try {
+            t.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs several source files in the same JVM, one after the other or on a number of workers.
+ * Each file gets its own interpreter, but they should share the Dbms, so that connections with the same URL and
+ * parameters may be reused together with their prepared statements, cf. {@link Dbms#releaseConnection}.
+ * What each file writes to System.out and System.err is passed on in the order of the files.
+ */
+public class Batch {
+
+    public static class Result {
+        public final Path file;
+        public StatusCode status = StatusCode.INTERNAL_ERROR;
+        public long nanos;
+
+        Result(Path file) {
+            this.file = file;
+        }
+    }
+
+    private final Log log;
+    private final int workers;
+    private final Supplier<Interpreter> interpreters;
+
+    /**
+     * @param interpreters Creates a fresh interpreter for each file.
+     */
+    public Batch(Log log, int workers, Supplier<Interpreter> interpreters) {
+        this.log = log;
+        this.workers = workers;
+        this.interpreters = interpreters;
+    }
+
+    public static boolean isPattern(String arg) {
+        return arg.chars().anyMatch(c -> c == '*' || c == '?' || c == '[' || c == '{');
+    }
+
+    /**
+     * @param args File names and glob patterns (e.g. "specs/**.dbspec"), relative to dir.
+     * @return The files in the order given, with the matches of each pattern sorted.
+     */
+    public static List<Path> expand(Path dir, String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            if (!isPattern(arg)) {
+                files.add(dir.resolve(arg));
+                continue;
+            }
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+            try (Stream<Path> paths = Files.walk(dir)) {
+                files.addAll(paths
+                        .filter(p -> Files.isRegularFile(p) && matcher.matches(dir.relativize(p)))
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    public List<Result> run(List<Path> files) {
+        List<Result> results = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (Path file : files) {
+            Result r = new Result(file);
+            results.add(r);
+            tasks.add(() -> run(r));
+        }
+        if (workers > 1) {
+            List<int[]> independent = new ArrayList<>();
+            for (int i = 0; i < tasks.size(); i++) {
+                independent.add(new int[0]);
+            }
+            try (StatementScheduler scheduler = new StatementScheduler(workers)) {
+                scheduler.run(tasks, independent);
+            }
+        } else {
+            tasks.forEach(Runnable::run);
+        }
+        return results;
+    }
+
+    private void run(Result r) {
+        if (log.getLevel() > Log.QUIET) {
+            System.err.println("=== " + r.file);
+        }
+        long start = System.nanoTime();
+        Interpreter interpreter = interpreters.get();
+        try {
+            if (!Files.exists(r.file)) {
+                log.error("File not found.");
+                r.status = StatusCode.DBSPEC_FILE_NOT_FOUND;
+                return;
+            }
+            r.status = interpreter.interpret(r.file);
+        } finally {
+            interpreter.releaseConnections();
+            r.nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return The status of the first file which did not succeed, otherwise OK.
+     */
+    public static StatusCode status(List<Result> results) {
+        for (Result r : results) {
+            if (r.status != StatusCode.OK) {
+                return r.status;
+            }
+        }
+        return StatusCode.OK;
+    }
+
+    public static void printReport(List<Result> results, PrintStream out) {
+        long failed = results.stream().filter(r -> r.status != StatusCode.OK).count();
+        out.println();
+        out.printf("Batch Report: %d files, %d failed%n", results.size(), failed);
+        for (Result r : results) {
+            out.printf("  %-20s %10.3f s  %s%n", r.status, r.nanos / 1e9, r.file);
+        }
+    }
+}
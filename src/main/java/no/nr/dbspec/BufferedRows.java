@@ -0,0 +1,98 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of a query result, copied from a forward-only result set into a {@link RowBuffer}
+ * as soon as the query has been executed, so that later statements cannot affect them.
+ */
+public class BufferedRows implements QueryRows {
+
+    private final Dbms dbms;
+    private final Connection connection;
+    private final Map.Entry<String, List<Object>> query;
+    private final ResultSetMetaData metaData;
+    private final RowBuffer buffer;
+
+    public BufferedRows(Dbms dbms, Connection connection, Map.Entry<String, List<Object>> query, long memoryLimit)
+            throws SQLException {
+        this.dbms = dbms;
+        this.connection = connection;
+        this.query = query;
+        this.buffer = new RowBuffer(memoryLimit);
+        ResultSet resultSet = dbms.executeSqlQuery(connection, query);
+        try {
+            this.metaData = resultSet.getMetaData();
+            load(resultSet);
+        } finally {
+            dbms.release(resultSet);
+        }
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Map.Entry<String, List<Object>> getQuery() {
+        return query;
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public boolean isPending() {
+        return false;
+    }
+
+    private void load(ResultSet resultSet) throws SQLException {
+        try {
+            int columnCount = metaData.getColumnCount();
+            while (resultSet.next()) {
+                String[] row = new String[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = resultSet.getString(i + 1);
+                }
+                buffer.append(row);
+            }
+            buffer.finish();
+        } catch (IOException e) {
+            throw new SQLException("Unable to buffer rows on disk: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return buffer.getSize();
+    }
+
+    @Override
+    public boolean tryLockAndRewind() {
+        return buffer.tryLockAndRewind();
+    }
+
+    @Override
+    public void free() {
+        buffer.free();
+    }
+
+    @Override
+    public void close() {
+        buffer.close();
+    }
+
+    @Override
+    public String[] next() throws SQLException {
+        return buffer.next();
+    }
+}
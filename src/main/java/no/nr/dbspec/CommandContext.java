@@ -4,16 +4,36 @@ import java.util.Set;
 
 public class CommandContext implements Context {
 
-    private final Context parent;
-    private final Set<String> parameters;
+    private final NormalContext parent;
+    // The references to the parameters, indexed by their slots.
+    private final ParameterRef[] parameters;
 
-    public CommandContext(Context parent, Set<String> parameters) {
+    public CommandContext(NormalContext parent, Set<String> parameters) {
         this.parent = parent;
-        this.parameters = parameters;
+        Symbols symbols = parent.getSymbols();
+        for (String p : parameters) {
+            symbols.slot(p);
+        }
+        this.parameters = new ParameterRef[symbols.size()];
+        for (String p : parameters) {
+            this.parameters[symbols.slot(p)] = new ParameterRef(p);
+        }
     }
 
     @Override
     public Object getValue(String name) {
-        return parameters.contains(name) ? new ParameterRef(name) : parent.getValue(name);
+        int slot = parent.getSymbols().find(name);
+        ParameterRef ref = slot >= 0 && slot < parameters.length ? parameters[slot] : null;
+        return ref != null ? ref : parent.getValue(name);
+    }
+
+    @Override
+    public Object getValue(Node identifier) {
+        int slot = identifier.slot;
+        if (slot < 0) {
+            return getValue(identifier.text);
+        }
+        ParameterRef ref = slot < parameters.length ? parameters[slot] : null;
+        return ref != null ? ref : parent.getValue(identifier);
     }
 }
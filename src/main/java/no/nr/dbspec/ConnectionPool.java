@@ -0,0 +1,71 @@
+package no.nr.dbspec;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Idle database connections, by URL and parameters, so that they can be reused by later runs,
+ * cf. {@link Dbms#releaseConnection}. It may be shared by several Dbms objects (cf. Daemon). Thread-safe.
+ */
+public class ConnectionPool {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    // Most recently released first
+    private final Map<Map.Entry<String, Properties>, Deque<Connection>> idle = new HashMap<>();
+
+    /**
+     * @return An idle connection which is still valid, or null.
+     */
+    public Connection take(String url, Properties parameters) {
+        while (true) {
+            Connection c;
+            synchronized (this) {
+                Deque<Connection> connections = idle.get(Map.entry(url, parameters));
+                if (connections == null || connections.isEmpty()) {
+                    return null;
+                }
+                c = connections.pop();
+            }
+            try {
+                if (c.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    return c;
+                }
+            } catch (SQLException e) {
+                // Not valid
+            }
+            closeQuietly(c);
+        }
+    }
+
+    public synchronized void put(String url, Properties parameters, Connection connection) {
+        idle.computeIfAbsent(Map.entry(url, parameters), k -> new ArrayDeque<>()).push(connection);
+    }
+
+    /**
+     * Close the idle connections.
+     */
+    public void close() {
+        List<Connection> connections = new ArrayList<>();
+        synchronized (this) {
+            idle.values().forEach(connections::addAll);
+            idle.clear();
+        }
+        connections.forEach(ConnectionPool::closeQuietly);
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Ignored since we are done with the connection anyway.
+        }
+    }
+}
@@ -2,4 +2,12 @@ package no.nr.dbspec;
 
 public interface Context {
     Object getValue(String name);
+
+    /**
+     * The value of the variable referred to by an identifier.
+     * Contexts using the symbols of the source file may look it up by its slot instead of by name.
+     */
+    default Object getValue(Node identifier) {
+        return getValue(identifier.text);
+    }
 }
@@ -0,0 +1,262 @@
+package no.nr.dbspec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Serves runs over HTTP on the loopback interface, so that they avoid the startup time of the JVM
+ * (loading Tree-sitter, JDBC drivers etc.) and can reuse the parsers and database connections of earlier runs.
+ * Cf. the client script bin/dbspec-client.
+ * <p>
+ * A run is requested with POST /run, where each line of the (UTF-8) body is an argument,
+ * except the first line, which is the working directory.
+ * The response is streamed as lines starting with 1 (standard output) or 2 (standard error),
+ * followed by a line with 0 and the exit status code.
+ * <p>
+ * Since runs may execute scripts and write files, other users of the machine must not be able to request them.
+ * Hence, the daemon writes a random token to a file only readable by the user (cf. {@link #tokenFile}),
+ * which must be passed on as the header {@value #TOKEN_HEADER}. The file contains this header line,
+ * so that it can be given to curl as it is. Moreover, requests with Host or Origin headers which are not
+ * on the loopback interface are rejected, so that web pages cannot make the browser request runs.
+ */
+public class Daemon {
+
+    public interface Runner {
+        StatusCode run(String[] args, Path workingDir, ConnectionPool pool);
+    }
+
+    public static final String TOKEN_HEADER = "X-DbSpec-Token";
+
+    private static final Set<String> loopbackHosts = Set.of("127.0.0.1", "localhost", "[::1]");
+
+    private final Runner runner;
+    private final Path tokenFile;
+    private final byte[] token;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConnectionPool pool = new ConnectionPool();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * @param port 0 for any free port, cf. {@link #getPort()}
+     * @param workers The number of runs served at the same time
+     * @param tokenDir Where to write the token file, e.g. ~/.dbspec
+     */
+    public Daemon(Runner runner, int port, int workers, Path tokenDir) throws IOException {
+        this.runner = runner;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.tokenFile = tokenFile(tokenDir, getPort());
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.token = String.format("%064x", new BigInteger(1, random)).getBytes(StandardCharsets.US_ASCII);
+        this.executor = Executors.newFixedThreadPool(workers);
+        server.setExecutor(executor);
+        server.createContext("/run", this::handleRun);
+    }
+
+    /**
+     * @return The file with the token of the daemon on the given port.
+     */
+    public static Path tokenFile(Path tokenDir, int port) {
+        return tokenDir.resolve("daemon-" + port + ".token");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public Path getTokenFile() {
+        return tokenFile;
+    }
+
+    public void start() throws IOException {
+        writeTokenFile();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        pool.close();
+        try {
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException e) {
+            // The token is useless once the daemon has stopped.
+        }
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void writeTokenFile() throws IOException {
+        String content = TOKEN_HEADER + ": " + new String(token, StandardCharsets.US_ASCII) + "\n";
+        Path dir = tokenFile.getParent();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rwx------")));
+            // Only the owner may read a new temporary file (with permissions 0600) from the start.
+            Path tmp = Files.createTempFile(dir, "daemon-", ".tmp");
+            Files.writeString(tmp, content, StandardCharsets.US_ASCII);
+            Files.move(tmp, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            // The home directory of the user is assumed to be private.
+            Files.createDirectories(dir);
+            Files.writeString(tokenFile, content, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private boolean isAllowed(HttpExchange exchange) {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null || !isLoopback(host)) {
+            return false;
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null) {
+            int i = origin.indexOf("://");
+            if (i < 0 || !isLoopback(origin.substring(i + 3))) {
+                return false;
+            }
+        }
+        String t = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        return t != null && MessageDigest.isEqual(token, t.trim().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param host A host name, possibly followed by a port
+     */
+    private static boolean isLoopback(String host) {
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && colon > host.lastIndexOf(']')) {
+            host = host.substring(0, colon);
+        }
+        return loopbackHosts.contains(host.toLowerCase(Locale.ROOT));
+    }
+
+    private void handleRun(HttpExchange exchange) throws IOException {
+        try {
+            if (!isAllowed(exchange)) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            List<String> lines = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                    .lines()
+                    .collect(Collectors.toList());
+            if (lines.isEmpty()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            Path workingDir = Path.of(lines.get(0));
+            String[] args = lines.subList(1, lines.size()).toArray(new String[0]);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + Charset.defaultCharset());
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            run(args, workingDir, body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void run(String[] args, Path workingDir, OutputStream body) throws IOException {
+        LineChannel outChannel = new LineChannel(body, '1');
+        LineChannel errChannel = new LineChannel(body, '2');
+        PrintStream out = new PrintStream(outChannel, true, Charset.defaultCharset());
+        PrintStream err = new PrintStream(errChannel, true, Charset.defaultCharset());
+        StatusCode status;
+        ThreadOutput.redirect(out, err);
+        try {
+            status = runner.run(args, workingDir, pool);
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+            status = StatusCode.INTERNAL_ERROR;
+        } finally {
+            out.flush();
+            err.flush();
+            ThreadOutput.restore();
+        }
+        outChannel.close();
+        errChannel.close();
+        synchronized (body) {
+            body.write(('0' + Integer.toString(status.getValue()) + '\n').getBytes(StandardCharsets.UTF_8));
+            body.flush();
+        }
+    }
+
+    /**
+     * Passes on each line written to it as a line of the response, prefixed with the given character.
+     */
+    private static class LineChannel extends OutputStream {
+        private final OutputStream sink;
+        private final char prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineChannel(OutputStream sink, char prefix) {
+            this.sink = sink;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                emit();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        // NB. A line is passed on when it is complete, not when the stream is flushed.
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.size() > 0) {
+                emit();
+            }
+        }
+
+        private void emit() throws IOException {
+            synchronized (sink) {
+                sink.write(prefix);
+                line.writeTo(sink);
+                sink.write('\n');
+                sink.flush();
+            }
+            line.reset();
+        }
+    }
+}
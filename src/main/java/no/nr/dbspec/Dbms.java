@@ -6,60 +6,563 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.rowset.RowSetMetaDataImpl;
 
+/**
+ * Executes SQL on behalf of the interpreter.
+ * <p>
+ * Prepared statements are reused: A statement is taken out of the cache while in use,
+ * i.e. until it has been executed or its result set has been released,
+ * and then put back unless there is already an idle statement with the same key.
+ * The cache is bounded, and the least recently used statements are closed when it is full.
+ */
 public class Dbms {
     Map<Connection,Properties> connectionParameters;
+    private final Map<Connection, String> connectionUrls = new HashMap<>();
+    // The URLs without parameters (which may contain secrets), for metrics. Read without locking.
+    private final Map<Connection, String> connectionLabels = new ConcurrentHashMap<>();
+    private final ConnectionPool pool;
     private final TimingContext timingContext;
+    private final int fetchSize;
+    private final LinkedHashMap<StatementKey, PreparedStatement> statementCache;
+    private final Map<PreparedStatement, StatementKey> statementsInUse = new HashMap<>();
+    // The statements of open result sets for which we have turned auto-commit off, cf. executeSqlQuery,
+    // and the number of such statements per connection.
+    private final Map<PreparedStatement, Connection> transactionStatements = new HashMap<>();
+    private final Map<Connection, Integer> openTransactions = new HashMap<>();
+    private final AtomicLong changeCount = new AtomicLong();
+
+    // Statements resetting the state of a session (variables, temporary tables, search path etc.),
+    // by database product name. Connections to other DBMSs are closed rather than reused.
+    private static final Map<String, String> sessionResets = Map.of("PostgreSQL", "DISCARD ALL");
 
     public Dbms(TimingContext timingContext) {
+        this(timingContext, Settings.DEFAULT_FETCH_SIZE, Settings.DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public Dbms(TimingContext timingContext, int fetchSize, int statementCacheSize) {
+        this(timingContext, fetchSize, statementCacheSize, new ConnectionPool());
+    }
+
+    /**
+     * @param pool Where released connections are kept, cf. {@link #releaseConnection}
+     */
+    public Dbms(TimingContext timingContext, int fetchSize, int statementCacheSize, ConnectionPool pool) {
+        this.pool = pool;
         connectionParameters = new HashMap<Connection,Properties>();
         this.timingContext = timingContext;
+        this.fetchSize = fetchSize;
+        this.statementCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
     }
 
-    public Connection connect(String url, NormalContext ctx) throws SQLException {
+    private static final class StatementKey {
+        final Connection connection;
+        final String sql;
+        final int resultSetType;
+
+        StatementKey(Connection connection, String sql, int resultSetType) {
+            this.connection = connection;
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey k = (StatementKey) o;
+            return connection == k.connection && sql.equals(k.sql) && resultSetType == k.resultSetType;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(connection), sql, resultSetType);
+        }
+    }
+
+    public synchronized Connection connect(String url, NormalContext ctx) throws SQLException {
         Properties parameters = new Properties();
         ctx.forEach(parameters::put);
-        Connection c = DriverManager.getConnection(url, parameters);
+        Connection c = pool.take(url, parameters);
+        if (c == null) {
+            c = DriverManager.getConnection(url, parameters);
+        }
         connectionParameters.put(c, parameters);
+        connectionUrls.put(c, url);
+        connectionLabels.put(c, label(url));
         return c;
     }
 
+    private static String label(String url) {
+        int end = url.length();
+        for (char c : new char[] { '?', ';' }) {
+            int i = url.indexOf(c);
+            if (i >= 0 && i < end) {
+                end = i;
+            }
+        }
+        return url.substring(0, end);
+    }
+
+    /**
+     * Open another connection to the same database, with the same parameters.
+     * It should be closed using {@link #closeConnection(Connection)}.
+     */
+    public Connection cloneConnection(Connection connection) throws SQLException {
+        String url;
+        Properties parameters;
+        synchronized (this) {
+            url = connectionUrls.get(connection);
+            parameters = connectionParameters.get(connection);
+        }
+        if (url == null) {
+            throw new SQLException("Unknown connection");
+        }
+        Connection c = DriverManager.getConnection(url, parameters);
+        connectionLabels.put(c, label(url));
+        return c;
+    }
+
+    /**
+     * Close a connection together with its cached statements.
+     */
+    public void closeConnection(Connection connection) {
+        synchronized (this) {
+            statementCache.entrySet().removeIf(e -> {
+                if (e.getKey().connection != connection) {
+                    return false;
+                }
+                closeQuietly(e.getValue());
+                return true;
+            });
+            connectionParameters.remove(connection);
+            connectionUrls.remove(connection);
+        }
+        connectionLabels.remove(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Ignored since we are done with the connection anyway.
+        }
+    }
+
+    /**
+     * Make a connection returned by {@link #connect} available to later calls with the same URL and parameters,
+     * also from other Dbms objects sharing the connection pool. Uncommitted changes are rolled back,
+     * and the session is reset so that it does not affect later users of the connection.
+     * If we do not know how to reset sessions of the DBMS, the connection is closed instead.
+     * The cached statements of the connection are kept until {@link #closeStatements()},
+     * and are reused if the connection is returned by {@link #connect} of this object.
+     */
+    public void releaseConnection(Connection connection) {
+        String url;
+        Properties parameters;
+        synchronized (this) {
+            url = connectionUrls.remove(connection);
+            parameters = connectionParameters.remove(connection);
+            // The statements of result sets which were never released
+            statementsInUse.entrySet().removeIf(e -> {
+                if (e.getValue().connection != connection) {
+                    return false;
+                }
+                closeQuietly(e.getKey());
+                return true;
+            });
+            transactionStatements.values().removeIf(c -> c == connection);
+            openTransactions.remove(connection);
+        }
+        connectionLabels.remove(connection);
+        try {
+            if (url == null || connection.isClosed()) {
+                closeConnection(connection);
+                return;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            String reset = sessionResets.get(connection.getMetaData().getDatabaseProductName());
+            if (reset == null) {
+                closeConnection(connection);
+                return;
+            }
+            try (Statement s = connection.createStatement()) {
+                s.execute(reset);
+            }
+        } catch (SQLException e) {
+            closeConnection(connection);
+            return;
+        }
+        pool.put(url, parameters, connection);
+    }
+
+    /**
+     * Close the connections passed to {@link #releaseConnection} which have not been reused.
+     * NB. This affects all Dbms objects sharing the connection pool.
+     */
+    public void closeIdleConnections() {
+        pool.close();
+    }
+
+    /**
+     * The number of times the databases may have been changed (by us or by scripts).
+     */
+    public long getChangeCount() {
+        return changeCount.get();
+    }
+
+    public void registerChange() {
+        changeCount.incrementAndGet();
+    }
+
     public int executeSqlUpdate(Connection connection, Map.Entry<String, List<Object>> pair) throws SQLException {
         long startTime = System.nanoTime();
+        Events.Sql event = new Events.Sql();
+        event.begin();
+        registerChange();
         try {
-            return getPreparedStatement(connection, pair).executeUpdate();
+            PreparedStatement ps = getPreparedStatement(connection, pair, ResultSet.TYPE_SCROLL_INSENSITIVE);
+            try {
+                int count = ps.executeUpdate();
+                commit(event, "update", pair.getKey(), count);
+                return count;
+            } finally {
+                release(ps);
+            }
         } finally {
-            if (timingContext != null) {
-                timingContext.addSqlTime(System.nanoTime() - startTime);
+            addSqlTime(connection, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Execute the same statement with each of the given argument lists, in a single round-trip
+     * if the driver supports it. If one of the executions fails, the BatchUpdateException
+     * tells which (possibly after the driver has continued with the remaining ones).
+     */
+    public int[] executeSqlBatch(Connection connection, String sql, List<List<Object>> argsList) throws SQLException {
+        long startTime = System.nanoTime();
+        Events.Sql event = new Events.Sql();
+        event.begin();
+        registerChange();
+        try {
+            PreparedStatement ps = acquire(connection, sql, ResultSet.TYPE_SCROLL_INSENSITIVE);
+            try {
+                for (List<Object> args : argsList) {
+                    setArguments(ps, args);
+                    ps.addBatch();
+                }
+                int[] counts = ps.executeBatch();
+                if (event.shouldCommit()) {
+                    long rows = 0;
+                    for (int count : counts) {
+                        // Statement.SUCCESS_NO_INFO is negative.
+                        rows += Math.max(0, count);
+                    }
+                    commit(event, "batch", sql, rows);
+                }
+                return counts;
+            } finally {
+                // NB. The batch is emptied by executeBatch, even if it fails.
+                release(ps);
             }
+        } finally {
+            addSqlTime(connection, System.nanoTime() - startTime);
         }
     }
 
+    /**
+     * The result set can only be traversed once, but most drivers will then
+     * fetch the rows in chunks instead of all at once.
+     * Since the PostgreSQL driver only does so within a transaction, auto-commit is turned off
+     * (if it is on) until the result set is released, when the transaction is committed.
+     * Meanwhile, the connection should only be used for other queries.
+     * The result set must be passed to {@link #release(ResultSet)} when it is no longer needed.
+     */
     public ResultSet executeSqlQuery(Connection connection, Map.Entry<String, List<Object>> pair) throws SQLException {
         long startTime = System.nanoTime();
+        Events.Sql event = new Events.Sql();
+        event.begin();
+        try {
+            PreparedStatement ps = getPreparedStatement(connection, pair, ResultSet.TYPE_FORWARD_ONLY);
+            try {
+                beginTransaction(connection, ps);
+                ps.setFetchSize(fetchSize);
+                ResultSet rs = ps.executeQuery();
+                commit(event, "query", pair.getKey(), -1);
+                return rs;
+            } catch (SQLException e) {
+                release(ps);
+                throw e;
+            }
+        } finally {
+            addSqlTime(connection, System.nanoTime() - startTime);
+        }
+    }
+
+    private synchronized void beginTransaction(Connection connection, PreparedStatement ps) throws SQLException {
+        Integer open = openTransactions.get(connection);
+        if (open == null) {
+            if (!connection.getAutoCommit()) {
+                // Someone else is in charge of the transaction.
+                return;
+            }
+            connection.setAutoCommit(false);
+            open = 0;
+        }
+        openTransactions.put(connection, open + 1);
+        transactionStatements.put(ps, connection);
+    }
+
+    // Restores auto-commit, which commits the transaction, when the last result set using it is released.
+    private synchronized void endTransaction(PreparedStatement ps) throws SQLException {
+        Connection connection = transactionStatements.remove(ps);
+        if (connection == null) {
+            return;
+        }
+        int open = openTransactions.get(connection) - 1;
+        if (open > 0) {
+            openTransactions.put(connection, open);
+            return;
+        }
+        openTransactions.remove(connection);
+        connection.setAutoCommit(true);
+    }
+
+    /**
+     * Describe the columns of the rows returned by a query without executing it.
+     * @return A copy of the column types, precisions and scales, or null if the driver cannot tell.
+     */
+    public ResultSetMetaData describeSqlQuery(Connection connection, Map.Entry<String, List<Object>> pair)
+            throws SQLException {
+        PreparedStatement ps = getPreparedStatement(connection, pair, ResultSet.TYPE_FORWARD_ONLY);
+        try {
+            ResultSetMetaData md = ps.getMetaData();
+            if (md == null) {
+                return null;
+            }
+            // The original might not be usable after the statement has been closed.
+            RowSetMetaDataImpl copy = new RowSetMetaDataImpl();
+            copy.setColumnCount(md.getColumnCount());
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                copy.setColumnType(i, md.getColumnType(i));
+                copy.setPrecision(i, Math.max(0, md.getPrecision(i)));
+                copy.setScale(i, Math.max(0, md.getScale(i)));
+            }
+            return copy;
+        } finally {
+            release(ps);
+        }
+    }
+
+    private void addSqlTime(Connection connection, long nanos) {
+        if (timingContext != null) {
+            timingContext.addSqlTime(nanos);
+            Metrics metrics = timingContext.getMetrics();
+            if (metrics != null) {
+                metrics.observeSql(connectionLabels.getOrDefault(connection, "unknown"), nanos);
+            }
+        }
+    }
+
+    private static void commit(Events.Sql event, String operation, String sql, long rows) {
+        if (event.shouldCommit()) {
+            event.location = Events.location();
+            event.operation = operation;
+            event.sqlHash = sql.hashCode();
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    /**
+     * Count the rows returned by a query without transferring them.
+     */
+    public int countSqlQuery(Connection connection, Map.Entry<String, List<Object>> pair) throws SQLException {
+        Map.Entry<String, List<Object>> countPair = new AbstractMap.SimpleEntry<>(
+                "SELECT COUNT(*) FROM (" + pair.getKey() + ") dbspec_count",
+                pair.getValue());
+        long startTime = System.nanoTime();
+        PreparedStatement ps = getPreparedStatement(connection, countPair, ResultSet.TYPE_FORWARD_ONLY);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("No row count returned.");
+            }
+            return rs.getInt(1);
+        } finally {
+            release(ps);
+            addSqlTime(connection, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Count the rows of each query which are not matched by rows of the other,
+     * when the results are considered as multisets.
+     */
+    public long[] countSqlQueryDifferences(
+            Connection connection,
+            Map.Entry<String, List<Object>> left,
+            Map.Entry<String, List<Object>> right,
+            int columnCount) throws SQLException {
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT"
+                + " COALESCE(SUM(CASE WHEN dbspec_n > 0 THEN dbspec_n END), 0),"
+                + " COALESCE(SUM(CASE WHEN dbspec_n < 0 THEN -dbspec_n END), 0)"
+                + " FROM (" + differences(left, right, columnCount, args) + ") dbspec_d";
+        long startTime = System.nanoTime();
+        PreparedStatement ps = getPreparedStatement(
+                connection, new AbstractMap.SimpleEntry<>(sql, args), ResultSet.TYPE_FORWARD_ONLY);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("No row counts returned.");
+            }
+            return new long[] { rs.getLong(1), rs.getLong(2) };
+        } finally {
+            release(ps);
+            addSqlTime(connection, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * The distinct rows which occur a different number of times in the results of the two queries.
+     * The last column is the number of occurrences on the left side minus the number on the right side.
+     */
+    public ResultSet executeSqlQueryDifferences(
+            Connection connection,
+            Map.Entry<String, List<Object>> left,
+            Map.Entry<String, List<Object>> right,
+            int columnCount) throws SQLException {
+        List<Object> args = new ArrayList<>();
+        String sql = differences(left, right, columnCount, args);
+        return executeSqlQuery(connection, new AbstractMap.SimpleEntry<>(sql, args));
+    }
+
+    private static String differences(
+            Map.Entry<String, List<Object>> left,
+            Map.Entry<String, List<Object>> right,
+            int columnCount,
+            List<Object> args) {
+        args.addAll(left.getValue());
+        args.addAll(right.getValue());
+        StringBuilder columns = new StringBuilder();
+        for (int i = 1; i <= columnCount; i++) {
+            columns.append(i == 1 ? "" : ", ").append("dbspec_c").append(i);
+        }
+        return "SELECT " + columns + ", SUM(dbspec_n) AS dbspec_n FROM ("
+                + "SELECT dbspec_l.*, 1 AS dbspec_n FROM (" + left.getKey() + ") dbspec_l (" + columns + ")"
+                + " UNION ALL "
+                + "SELECT dbspec_r.*, -1 FROM (" + right.getKey() + ") dbspec_r (" + columns + ")"
+                + ") dbspec_u GROUP BY " + columns + " HAVING SUM(dbspec_n) <> 0";
+    }
+
+    /**
+     * Close the result set and make its statement available for reuse.
+     */
+    public void release(ResultSet resultSet) throws SQLException {
+        PreparedStatement ps = (PreparedStatement) resultSet.getStatement();
         try {
-            return getPreparedStatement(connection, pair).executeQuery();
+            resultSet.close();
         } finally {
+            release(ps);
+        }
+    }
+
+    /**
+     * Close all statements, including those of result sets which have not been released.
+     */
+    public synchronized void closeStatements() {
+        for (PreparedStatement ps : statementCache.values()) {
+            closeQuietly(ps);
+        }
+        statementCache.clear();
+        for (PreparedStatement ps : statementsInUse.keySet()) {
+            closeQuietly(ps);
+        }
+        statementsInUse.clear();
+        transactionStatements.clear();
+        openTransactions.clear();
+    }
+
+    private synchronized PreparedStatement acquire(Connection connection, String sql, int resultSetType)
+            throws SQLException {
+        StatementKey key = new StatementKey(connection, sql, resultSetType);
+        PreparedStatement ps = statementCache.remove(key);
+        if (ps != null && !ps.isClosed()) {
+            if (timingContext != null) {
+                timingContext.addStatementCacheHit();
+            }
+        } else {
             if (timingContext != null) {
-                timingContext.addSqlTime(System.nanoTime() - startTime);
+                timingContext.addStatementCacheMiss();
             }
+            ps = connection.prepareStatement(sql, resultSetType, ResultSet.CONCUR_READ_ONLY);
         }
+        statementsInUse.put(ps, key);
+        return ps;
     }
 
-    private static PreparedStatement getPreparedStatement(
+    private synchronized void release(PreparedStatement ps) throws SQLException {
+        try {
+            endTransaction(ps);
+        } finally {
+            releaseStatement(ps);
+        }
+    }
+
+    private synchronized void releaseStatement(PreparedStatement ps) {
+        StatementKey key = statementsInUse.remove(ps);
+        if (key == null || statementCache.containsKey(key)) {
+            closeQuietly(ps);
+        } else {
+            statementCache.put(key, ps);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            // Nothing more we can do, e.g. if the connection is gone.
+        }
+    }
+
+    private PreparedStatement getPreparedStatement(
             Connection connection,
-            Map.Entry<String, List<Object>> pair) throws SQLException {
-        String sql = pair.getKey();
-        List<Object> args = pair.getValue();
-        PreparedStatement ps = connection.prepareStatement(
-                sql,
-                ResultSet.TYPE_SCROLL_INSENSITIVE,
-                ResultSet.CONCUR_READ_ONLY);
+            Map.Entry<String, List<Object>> pair,
+            int resultSetType) throws SQLException {
+        PreparedStatement ps = acquire(connection, pair.getKey(), resultSetType);
+        try {
+            setArguments(ps, pair.getValue());
+        } catch (SQLException e) {
+            release(ps);
+            throw e;
+        }
+        return ps;
+    }
+
+    private static void setArguments(PreparedStatement ps, List<Object> args) throws SQLException {
         int i = 1;
         for (Object x : args) {
             // TODO: Should we also support other types?
@@ -68,7 +571,6 @@ public class Dbms {
             else throw new SQLException("Only string and integer arguments are currently supported.");
             i++;
         }
-        return ps;
     }
 
     private static void setNString(PreparedStatement ps, int parameterIndex, String value) throws SQLException {
@@ -0,0 +1,98 @@
+package no.nr.dbspec;
+
+import java.sql.Connection;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of a query which is not executed until the rows are needed, so that the database
+ * may compare them with the rows of another query instead (cf. RowComparison).
+ * This is only used for results which are compared by an assertion following the query
+ * without anything in between which might change the database (cf. StreamingAnalysis).
+ * Once executed, the rows are buffered as usual.
+ */
+public class DeferredRows implements QueryRows {
+
+    private final Dbms dbms;
+    private final Connection connection;
+    private final Map.Entry<String, List<Object>> query;
+    private final long memoryLimit;
+    private final long changeCount;
+    private ResultSetMetaData metaData;
+    private BufferedRows rows;
+
+    public DeferredRows(Dbms dbms, Connection connection, Map.Entry<String, List<Object>> query, long memoryLimit) {
+        this.dbms = dbms;
+        this.connection = connection;
+        this.query = query;
+        this.memoryLimit = memoryLimit;
+        this.changeCount = dbms.getChangeCount();
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Map.Entry<String, List<Object>> getQuery() {
+        return query;
+    }
+
+    /**
+     * @return The description of the columns, or null if the driver cannot tell before the query is executed.
+     */
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        if (rows != null) {
+            return rows.getMetaData();
+        }
+        if (metaData == null) {
+            metaData = dbms.describeSqlQuery(connection, query);
+        }
+        return metaData;
+    }
+
+    @Override
+    public boolean isPending() {
+        return rows == null && changeCount == dbms.getChangeCount();
+    }
+
+    private BufferedRows rows() throws SQLException {
+        if (rows == null) {
+            rows = new BufferedRows(dbms, connection, query, memoryLimit);
+        }
+        return rows;
+    }
+
+    @Override
+    public int getSize() throws SQLException {
+        return rows().getSize();
+    }
+
+    @Override
+    public boolean tryLockAndRewind() throws SQLException {
+        return rows().tryLockAndRewind();
+    }
+
+    @Override
+    public void free() {
+        if (rows != null) {
+            rows.free();
+        }
+    }
+
+    @Override
+    public String[] next() throws SQLException {
+        return rows().next();
+    }
+
+    @Override
+    public void close() {
+        if (rows != null) {
+            rows.close();
+        }
+    }
+}
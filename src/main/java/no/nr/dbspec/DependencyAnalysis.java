@@ -0,0 +1,174 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Field;
+import no.nr.dbspec.Node.Kind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds out which of the top-level statements of a source file must wait for which,
+ * so that the others may run at the same time (cf. StatementScheduler).
+ * A statement must wait for an earlier statement if
+ * - it reads a variable set by the earlier statement, or sets a variable read or set by it, or
+ * - both use the same resource: a database connection, scripts, SIARD metadata/outputs, or the log.
+ * Database connections are identified by the variables holding them.
+ * A variable set from other variables or from a query is assumed to carry their connections along,
+ * since e.g. rows may be fetched from the database when they are used.
+ */
+public class DependencyAnalysis {
+
+    // Resources other than connections, named so that they cannot be confused with variables.
+    private static final String SCRIPTS = "@scripts";
+    private static final String SIARD = "@siard";
+    private static final String LOG = "@log";
+
+    private static class Effects {
+        final Set<String> reads = new HashSet<>();
+        final Set<String> writes = new HashSet<>();
+        final Set<String> resources = new HashSet<>();
+
+        boolean conflictsWith(Effects other) {
+            return intersects(writes, other.reads)
+                    || intersects(writes, other.writes)
+                    || intersects(reads, other.writes)
+                    || intersects(resources, other.resources);
+        }
+    }
+
+    // The connections each variable might carry (including the one it holds, if any).
+    private final Map<String, Set<String>> carried = new HashMap<>();
+
+    private DependencyAnalysis() {
+    }
+
+    /**
+     * @return For each statement, the (increasing) indexes of the earlier statements it must wait for.
+     */
+    public static List<int[]> predecessors(List<Node> statements) {
+        DependencyAnalysis analysis = new DependencyAnalysis();
+        List<Effects> effects = new ArrayList<>();
+        for (Node s : statements) {
+            Effects e = new Effects();
+            analysis.visit(s, e);
+            effects.add(e);
+        }
+        List<int[]> result = new ArrayList<>();
+        for (int i = 0; i < effects.size(); i++) {
+            Effects e = effects.get(i);
+            List<Integer> before = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                if (effects.get(j).conflictsWith(e)) {
+                    before.add(j);
+                }
+            }
+            result.add(before.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return result;
+    }
+
+    private static boolean intersects(Set<String> a, Set<String> b) {
+        if (a.size() > b.size()) {
+            return intersects(b, a);
+        }
+        for (String s : a) {
+            if (b.contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> carriedBy(String variable) {
+        return carried.getOrDefault(variable, Collections.emptySet());
+    }
+
+    private void useConnection(Node identifier, Effects e) {
+        if (identifier == null) {
+            return;
+        }
+        e.reads.add(identifier.text);
+        e.resources.add(identifier.text);
+        e.resources.addAll(carriedBy(identifier.text));
+    }
+
+    private void visit(Node n, Effects e) {
+        switch (n.kind) {
+            case PARAMETER:
+                Node parameter = n.get(Field.NAME);
+                if (parameter != null) {
+                    e.writes.add(parameter.text);
+                }
+                break;
+            case SET:
+                Node name = n.get(Field.NAME);
+                Node value = n.get(Field.VALUE);
+                if (name == null || value == null) {
+                    break;
+                }
+                Effects v = new Effects();
+                visit(value, v);
+                Set<String> connections = carried.computeIfAbsent(name.text, x -> new HashSet<>());
+                if (value.kind == Kind.CONNECTION) {
+                    connections.add(name.text);
+                }
+                connections.addAll(v.resources);
+                e.reads.addAll(v.reads);
+                e.writes.addAll(v.writes);
+                e.writes.add(name.text);
+                e.resources.addAll(v.resources);
+                return;
+            case EXECUTE_SQL:
+            case QUERY:
+                useConnection(n.get(Field.CONNECTION), e);
+                break;
+            case SIARD_METADATA:
+            case SIARD_OUTPUT:
+                useConnection(n.get(Field.CONNECTION), e);
+                e.resources.add(SIARD);
+                break;
+            case EXECUTE_USING:
+            case SCRIPT_RESULT:
+                e.resources.add(SCRIPTS);
+                break;
+            case LOG:
+                e.resources.add(LOG);
+                break;
+            case VARIABLE_INSTANCE:
+                if (n.children.length > 0) {
+                    e.reads.add(n.children[0].text);
+                    e.resources.addAll(carriedBy(n.children[0].text));
+                }
+                return;
+            case FOR_LOOP:
+                Node resultSet = n.get(Field.RESULT_SET);
+                Node variables = n.get(Field.VARIABLES);
+                if (resultSet != null) {
+                    Set<String> rowConnections = Set.copyOf(carriedBy(resultSet.text));
+                    e.reads.add(resultSet.text);
+                    e.resources.addAll(rowConnections);
+                    if (variables != null) {
+                        for (Node var : variables.children) {
+                            carried.computeIfAbsent(var.text, x -> new HashSet<>()).addAll(rowConnections);
+                            e.writes.add(var.text);
+                        }
+                    }
+                }
+                Node body = n.get(Field.BODY);
+                if (body != null) {
+                    visit(body, e);
+                }
+                return;
+            default:
+                break;
+        }
+        for (Node c : n.children) {
+            visit(c, e);
+        }
+    }
+}
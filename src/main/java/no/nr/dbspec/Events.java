@@ -0,0 +1,154 @@
+package no.nr.dbspec;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the operations which usually take most of the time,
+ * so that they can be seen on the same timeline as garbage collection, socket I/O etc.
+ * Record them with e.g. {@code java -XX:StartFlightRecording=filename=dbspec.jfr -jar dbspec.jar ...}.
+ * When no recording is running, the events cost next to nothing.
+ * <p>
+ * Each event has the location (file:line) of the statement being interpreted by the current thread.
+ */
+public final class Events {
+
+    private Events() {}
+
+    @Name("no.nr.dbspec.Sql")
+    @Label("SQL")
+    @Category("DbSpec")
+    @Description("Execution of an SQL statement")
+    public static class Sql extends Event {
+        @Label("Statement")
+        String location;
+
+        @Label("Operation")
+        @Description("query, update or batch")
+        String operation;
+
+        @Label("SQL Hash")
+        @Description("Hash code of the SQL text, with ? in place of the interpolated values")
+        int sqlHash;
+
+        @Label("Rows")
+        @Description("The number of rows affected, or -1 for queries (whose rows are fetched afterwards)")
+        long rows;
+    }
+
+    @Name("no.nr.dbspec.Script")
+    @Label("Script")
+    @Category("DbSpec")
+    @Description("Execution of a script")
+    public static class Script extends Event {
+        @Label("Statement")
+        String location;
+
+        @Label("Interpreter")
+        String interpreter;
+
+        @Label("Script Size")
+        @DataAmount
+        long scriptBytes;
+    }
+
+    @Name("no.nr.dbspec.SiardTransfer")
+    @Label("SIARD Transfer")
+    @Category("DbSpec")
+    @Description("Extraction of a database to a SIARD file")
+    public static class SiardTransfer extends Event {
+        @Label("Statement")
+        String location;
+
+        @Label("File")
+        String path;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("no.nr.dbspec.SiardMetadata")
+    @Label("SIARD Metadata")
+    @Category("DbSpec")
+    @Description("Adjusting the metadata of a SIARD file")
+    public static class SiardMetadata extends Event {
+        @Label("Statement")
+        String location;
+
+        @Label("File")
+        String path;
+    }
+
+    @Name("no.nr.dbspec.LoopIteration")
+    @Label("Loop Iteration")
+    @Category("DbSpec")
+    @Description("One iteration of a for-loop")
+    public static class LoopIteration extends Event {
+        @Label("Statement")
+        String location;
+
+        @Label("Row")
+        @Description("The number of the row, starting at 1")
+        long row;
+    }
+
+    private static final class Current {
+        String file;
+        Node statement;
+    }
+
+    private static final ThreadLocal<Current> current = ThreadLocal.withInitial(Current::new);
+
+    /**
+     * Make the statement the current one of this thread.
+     * @return The previous statement, to pass to {@link #exitStatement}.
+     */
+    static Node enterStatement(String file, Node statement) {
+        Current c = current.get();
+        Node previous = c.statement;
+        c.file = file;
+        c.statement = statement;
+        return previous;
+    }
+
+    static void exitStatement(Node previous) {
+        current.get().statement = previous;
+    }
+
+    /**
+     * @return A task which runs the given one with the current statement of this thread
+     * (at the time of the call) as the current statement, e.g. in a worker thread.
+     */
+    static Runnable withCurrentStatement(Runnable task) {
+        Current c = current.get();
+        String file = c.file;
+        Node statement = c.statement;
+        return () -> {
+            String previousFile = current.get().file;
+            Node previous = enterStatement(file, statement);
+            try {
+                task.run();
+            } finally {
+                current.get().file = previousFile;
+                exitStatement(previous);
+            }
+        };
+    }
+
+    /**
+     * @return The location of the current statement of this thread, or null if there is none.
+     */
+    static String location() {
+        Current c = current.get();
+        return c.statement == null ? null : location(c.file, c.statement);
+    }
+
+    static String location(String file, Node statement) {
+        return file + ":" + (statement.ts != null ? statement.ts.getStartPoint().getRow() + 1 : 0);
+    }
+}
@@ -7,15 +7,18 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import no.nr.TreeSitterDbspec;
 import org.apache.commons.text.StringEscapeUtils;
 
+import no.nr.dbspec.Node.Field;
+import no.nr.dbspec.Node.Kind;
 import no.nr.dbspec.RoaeMd.RoaeMdType;
 import no.nr.dbspec.SiardMd.SiardMdType;
 import org.treesitter.TSNode;
@@ -33,16 +36,41 @@ public class Interpreter {
     private final Log log;
     private final Properties config;
     private final NormalContext context;
+    // Concurrent since top-level statements may run at the same time (cf. StatementScheduler)
     private final Map<String, SiardMd> siardMd;
     private final Map<SiardMd, List<RoaeMd>> commandMds;
     private final Dbms dbms;
     private final SiardExtractor siardExtractor;
     private final SiardMetadataAdjuster siardMetadataAdjuster;
     private final RoaeProducer roaeProducer;
+    private final long rowsInMemory;
+    private final RowComparison rowComparison;
+    private final boolean compareRowsInDatabase;
+    private final int batchSize;
+    private final int loopWorkers;
+    private final int statementWorkers;
+    private final BackgroundTasks siardTasks;
+    private final Profiler profiler;
+
+    // More worker threads than this would most likely be a mistake.
+    private static final int MAX_WORKERS = 1024;
+    private final Metrics metrics; // or null
 
     private String[] sourceLines;
-    private String[] lineEndings;
+    private String sourceName = "";
     private TSTree tree;
+    private Set<Node> streamableResults = Collections.emptySet();
+    private Set<Node> deferredQueries = Collections.emptySet();
+    private final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+    // The rows assigned to variables, with the contexts they were assigned in, cf. closeOverwrittenRows
+    private final Map<Rows, NormalContext> openRows = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    // Creating a parser is relatively expensive, and a parser can only be used by one thread at a time.
+    private static final ThreadLocal<TSParser> parsers = ThreadLocal.withInitial(() -> {
+        TSParser parser = new TSParser();
+        parser.setLanguage(new TreeSitterDbspec());
+        return parser;
+    });
 
     public Interpreter(
             Log log,
@@ -54,9 +82,25 @@ public class Interpreter {
             SiardExtractor siardExtractor,
             SiardMetadataAdjuster siardMetadataAdjuster,
             RoaeProducer roaeProducer) {
+        this(log, dir, config, useExistingSiard, dbms, scriptRunner, siardExtractor, siardMetadataAdjuster,
+                roaeProducer, new Profiler(false), null);
+    }
+
+    public Interpreter(
+            Log log,
+            Path dir,
+            Properties config,
+            boolean useExistingSiard,
+            Dbms dbms,
+            ScriptRunner scriptRunner,
+            SiardExtractor siardExtractor,
+            SiardMetadataAdjuster siardMetadataAdjuster,
+            RoaeProducer roaeProducer,
+            Profiler profiler,
+            Metrics metrics) {
         this.context = new NormalContext();
-        this.siardMd = new HashMap<>();
-        this.commandMds = new HashMap<>();
+        this.siardMd = new ConcurrentHashMap<>();
+        this.commandMds = new ConcurrentHashMap<>();
         this.log = log;
         this.dir = dir;
         this.config = config;
@@ -66,6 +110,21 @@ public class Interpreter {
         this.siardExtractor = siardExtractor;
         this.siardMetadataAdjuster = siardMetadataAdjuster;
         this.roaeProducer = roaeProducer;
+        this.profiler = profiler;
+        this.metrics = metrics;
+        Settings settings = new Settings(config, log);
+        this.rowsInMemory = settings.getLong(Settings.ROWS_IN_MEMORY, Settings.DEFAULT_ROWS_IN_MEMORY);
+        this.batchSize = settings.getInt(Settings.BATCH_SIZE, Settings.DEFAULT_BATCH_SIZE);
+        this.loopWorkers = settings.getInt(Settings.LOOP_WORKERS, 1, 1, MAX_WORKERS);
+        this.statementWorkers = settings.getInt(Settings.STATEMENT_WORKERS, 1, 1, MAX_WORKERS);
+        // With the statement scheduler, SIARD outputs already run alongside other statements.
+        this.siardTasks = new BackgroundTasks(statementWorkers > 1 ? 1 : settings.getInt(Settings.SIARD_WORKERS, 1, 1, MAX_WORKERS));
+        boolean ordered = !settings.getBoolean(Settings.UNORDERED_ROW_COMPARISON, false);
+        this.compareRowsInDatabase = !ordered && settings.getBoolean(Settings.COMPARE_ROWS_IN_DATABASE, false);
+        this.rowComparison = new RowComparison(
+                compareRowsInDatabase ? dbms : null,
+                ordered,
+                settings.getInt(Settings.MAX_REPORTED_DIFFERENCES, Settings.DEFAULT_MAX_REPORTED_DIFFERENCES));
     }
 
     void logNodeLines(TSNode n) {
@@ -94,17 +153,23 @@ public class Interpreter {
             return StatusCode.SPEC_UNREADABLE;
         }
         log.debug("--- Input ---\n%s-------------", sourceString);
-        TSParser parser = new TSParser();
-        parser.setLanguage(new TreeSitterDbspec());
-        tree = parser.parseString(null, sourceString);
+        tree = parsers.get().parseString(null, sourceString);
         log.debug("AST: %s\n", (Supplier<String>) () -> tree.getRootNode().toString());
 
         log.verbose("Starting execution.");
         try {
             sourceLines = tsLines(sourceString);
-            lineEndings = Utils.tsLineEndings(sourceString);
-            TSNode n = tree.getRootNode();
+            String[] lineEndings = Utils.tsLineEndings(sourceString);
+            Node n = new NodeCompiler(sourceLines, lineEndings, context.getSymbols()).compile(tree.getRootNode());
+            streamableResults = StreamingAnalysis.streamableResults(n);
+            if (compareRowsInDatabase) {
+                // Leaving the queries for the database to compare
+                deferredQueries = StreamingAnalysis.deferrableQueries(n);
+            }
+            profiler.start(n, file);
+            sourceName = file.getFileName().toString();
             interpretSourceFile(n, 0, context);
+            siardTasks.awaitAll();
             return StatusCode.OK;
         } catch (SemanticFailure e) {
             log.error("Semantic error: %s", e.reason);
@@ -123,10 +188,13 @@ public class Interpreter {
             return StatusCode.SCRIPT_ERROR;
         } catch (AssertionFailure e) {
             log.error("Assertion failed");
-            logNodeLines(e.node);
+            logNodeLines(e.node.ts);
             for (Map.Entry<String, String> me : assertionCtx(e.node, e.context).entrySet()) {
                 log.error("\t" + me.getKey() + "\t=\t" + me.getValue());
             }
+            for (String difference : e.differences) {
+                log.error("\t" + difference);
+            }
             log.maybePrintStackTrace(e);
             return StatusCode.ASSERTION_FAILURE;
         } catch (AstFailure e) {
@@ -138,74 +206,134 @@ public class Interpreter {
             // Internal error. Log stack trace except with log level QUIET.
             log.printStackTrace(e);
             return StatusCode.INTERNAL_ERROR;
+        } finally {
+            siardTasks.shutdown();
+            closeRows(null);
+            profiler.finish();
+        }
+    }
+
+    // For tests
+    NormalContext getContext() {
+        return context;
+    }
+
+    /**
+     * Hand the connections opened by the source file back to the Dbms for reuse, cf. {@link Batch}.
+     */
+    public void releaseConnections() {
+        synchronized (connections) {
+            connections.forEach(dbms::releaseConnection);
+            connections.clear();
         }
     }
 
     // Methods corresponding to non-terminal AST nodes
 
-    Stream<TSNode> getChildren(TSNode node) {
-        // Does not work currently, since getNamedChild always returns the first named child:
-        // return IntStream.range(0, node.getNamedChildCount()).mapToObj(node::getNamedChild);
-        return IntStream.range(0, node.getChildCount()).mapToObj(node::getChild).filter(TSNode::isNamed);
+    void interpretSourceFile(Node n, int level, NormalContext ctx) {
+        if (statementWorkers > 1) {
+            interpretScheduledSourceFile(n, level, ctx);
+            return;
+        }
+        for (Node c : n.children) {
+            interpretTopLevelStatement(c, level, ctx);
+        }
     }
 
-    void interpretSourceFile(TSNode n, int level, NormalContext ctx) {
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("parameters")) {
-                interpretParameters(c, level + 1, ctx);
-            } else {
-                interpretStatement(c, level, ctx);
+    private void interpretTopLevelStatement(Node n, int level, NormalContext ctx) {
+        if (n.kind == Kind.PARAMETERS) {
+            interpretParameters(n, level + 1, ctx);
+        } else {
+            if (n.kind != Kind.SIARD_OUTPUT && n.kind != Kind.LOG && n.kind != Kind.SET_INTER) {
+                // The statement might depend on or affect SIARD outputs still being produced.
+                siardTasks.awaitAll();
             }
-        });
+            interpretStatement(n, level, ctx);
+        }
     }
 
-    void interpretParameters(TSNode n, int level, NormalContext ctx) {
+    private void interpretScheduledSourceFile(Node n, int level, NormalContext ctx) {
+        List<Node> statements = Arrays.asList(n.children);
+        List<int[]> predecessors = DependencyAnalysis.predecessors(statements);
+        log.debugIndented(level, "* Running statements on %d workers", statementWorkers);
+        List<Runnable> tasks = new ArrayList<>();
+        for (Node c : statements) {
+            tasks.add(() -> interpretTopLevelStatement(c, level, ctx));
+        }
+        try (StatementScheduler scheduler = new StatementScheduler(statementWorkers)) {
+            scheduler.run(tasks, predecessors);
+        }
+    }
+
+    void interpretParameters(Node n, int level, NormalContext ctx) {
         log.debugIndented(level,"* Parameters");
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("parameter")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.PARAMETER) {
                 interpretParameter(c, level + 1, ctx);
             } else {
                 throw new AstFailure(n);
             }
-        });
+        }
     }
 
-    void interpretParameter(TSNode n, int level, NormalContext ctx) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretParameter(Node n, int level, NormalContext ctx) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         ctx.setValue(nameString, config.getProperty(nameString));
         String descriptionString = interpretShortDescrOf(n, level, ctx);
         log.debugIndented(level, "* Parameter: %s  [%s]", nameString, descriptionString);
     }
 
-    void interpretStatement(TSNode n, int level, NormalContext ctx) {
-        if (n.getType().equals("set")) {
-            interpretSet(n, level + 1, ctx);
-        } else if (n.getType().equals("execute_using")) {
-            interpretExecuteUsing(n, level + 1, ctx);
-        } else if (n.getType().equals("execute_sql")) {
-            interpretExecuteSql(n, level + 1, ctx);
-        } else if (n.getType().equals("siard_metadata")) {
-            interpretSiardMetadata(n, level + 1, ctx);
-        } else if (n.getType().equals("siard_output")) {
-            interpretSiardOutput(n, level + 1, ctx);
-        } else if (n.getType().equals("for_loop")) {
-            interpretForLoop(n, level + 1, ctx);
-        } else if (n.getType().equals("set_inter")) {
-            // Setting the interpolation symbol is handled by the lexer.
-        } else if (n.getType().equals("log")) {
-            interpretLog(n, level + 1, ctx);
-        } else if (n.getType().equals("assert")) {
-            interpretAssert(n, level + 1, ctx);
-        } else if (n.getType().equals("conditional")) {
-            interpretConditional(n, level + 1, ctx);
-        } else {
-            throw new AstFailure(n);
+    void interpretStatement(Node n, int level, NormalContext ctx) {
+        long start = profiler.enter();
+        Node previous = Events.enterStatement(sourceName, n);
+        try {
+            interpretStatementKind(n, level, ctx);
+        } finally {
+            Events.exitStatement(previous);
+            profiler.exit(n, start);
         }
     }
 
-    void interpretLog(TSNode n, int level, Context ctx) {
-        Object message = interpretBasicExpression(n.getNamedChild(0), level + 1, ctx);
+    private void interpretStatementKind(Node n, int level, NormalContext ctx) {
+        switch (n.kind) {
+            case SET:
+                interpretSet(n, level + 1, ctx);
+                break;
+            case EXECUTE_USING:
+                interpretExecuteUsing(n, level + 1, ctx);
+                break;
+            case EXECUTE_SQL:
+                interpretExecuteSql(n, level + 1, ctx);
+                break;
+            case SIARD_METADATA:
+                interpretSiardMetadata(n, level + 1, ctx);
+                break;
+            case SIARD_OUTPUT:
+                interpretSiardOutput(n, level + 1, ctx);
+                break;
+            case FOR_LOOP:
+                interpretForLoop(n, level + 1, ctx);
+                break;
+            case SET_INTER:
+                // Setting the interpolation symbol is handled by the lexer.
+                break;
+            case LOG:
+                interpretLog(n, level + 1, ctx);
+                break;
+            case ASSERT:
+                interpretAssert(n, level + 1, ctx);
+                break;
+            case CONDITIONAL:
+                interpretConditional(n, level + 1, ctx);
+                break;
+            default:
+                throw new AstFailure(n);
+        }
+    }
+
+    void interpretLog(Node n, int level, Context ctx) {
+        Object message = interpretBasicExpression(n.children[0], level + 1, ctx);
         ensureInstance(n, "A log message ", message, String.class, BigInteger.class);
         log.debugIndented(level, "* Log message: '%s'", message);
         if (log.getLevel() > Log.QUIET) {
@@ -214,110 +342,193 @@ public class Interpreter {
     }
 
     // For printing if an assertion fails.
-    private Map<String, String> assertionCtx(TSNode n, Context ctx) {
-        return comparisonCtx(n.getNamedChild(0), ctx);
+    private Map<String, String> assertionCtx(Node n, Context ctx) {
+        return comparisonCtx(n.children[0], ctx);
     }
 
-    void interpretAssert(TSNode n, int level, Context ctx) {
-        TSNode cn = n.getNamedChild(0);
-        boolean comparisonValue = interpretComparison(cn, level, ctx);
+    void interpretAssert(Node n, int level, Context ctx) {
+        Node cn = n.children[0];
+        List<String> differences = new ArrayList<>();
+        boolean comparisonValue = interpretComparison(cn, level, ctx, differences);
         log.debugIndented(level, "* Assertion: '%s'", comparisonValue);
+        if (metrics != null) {
+            metrics.addAssertion(comparisonValue);
+        }
         if (!comparisonValue) {
-            throw new AssertionFailure(n, ctx);
+            throw new AssertionFailure(n, ctx, differences);
         }
     }
 
-    void interpretSet(TSNode n, int level, NormalContext ctx) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSet(Node n, int level, NormalContext ctx) {
+        Node name = n.get(Field.NAME);
         String variableName = interpretIdentifier(name, level + 1);
-        TSNode value = getChildByFieldName(n, "value");
-        Object variableValue = value.getType().equals("raw") ? interpretRaw(value, level, ctx)
+        Node value = n.get(Field.VALUE);
+        Object variableValue = value.kind == Kind.RAW ? interpretRaw(value, level, ctx)
                 : interpretExpression(value, level, ctx);
         if (variableValue == null) {
             throw new AstFailure(n);
         }
+        if (value.kind == Kind.SCRIPT_RESULT && variableValue instanceof String) {
+            profiler.addBytes(n, ((String) variableValue).length());
+        }
         log.debugIndented(level, "* Set %s = '%s'", variableName, variableValue);
-        ctx.setValue(variableName, variableValue);
+        Object previous = ctx.getValue(name);
+        ctx.setValue(name, variableValue);
+        if (variableValue instanceof Rows) {
+            openRows.putIfAbsent((Rows) variableValue, ctx);
+        }
+        if (previous instanceof Rows && previous != variableValue) {
+            closeOverwrittenRows((Rows) previous, ctx);
+        }
+    }
+
+    /**
+     * Close rows (e.g. deleting their temporary file) when they are no longer the value of any variable.
+     * Rows are only closed by the context they were assigned in, since copies of it (cf. ParallelLoop)
+     * may share them.
+     */
+    private void closeOverwrittenRows(Rows rows, NormalContext ctx) {
+        synchronized (openRows) {
+            if (openRows.get(rows) != ctx || ctx.containsValue(rows)) {
+                return;
+            }
+            openRows.remove(rows);
+        }
+        rows.close();
     }
 
-    Object interpretExpression(TSNode n, int level, Context ctx) {
+    /**
+     * Close the rows assigned in the given context, or all rows if it is null.
+     */
+    private void closeRows(NormalContext ctx) {
+        List<Rows> closing = new ArrayList<>();
+        synchronized (openRows) {
+            openRows.entrySet().removeIf(e -> {
+                if (ctx != null && e.getValue() != ctx) {
+                    return false;
+                }
+                closing.add(e.getKey());
+                return true;
+            });
+        }
+        closing.forEach(Rows::close);
+    }
+
+    Object interpretExpression(Node n, int level, Context ctx) {
         Object expressionValue;
-        if (n.getType().equals("connection")) {
+        if (n.kind == Kind.CONNECTION) {
             expressionValue = interpretConnection(n, level + 1, ctx);
-        } else if (n.getType().equals("query")) {
-            expressionValue = interpretQuery(n, level + 1, ctx);
-        } else if (n.getType().equals("script_result")) {
-            expressionValue = interpretScriptResult(n, level + 1, ctx);
+        } else if (n.kind == Kind.QUERY) {
+            expressionValue = deferredQueries.contains(n)
+                    ? interpretDeferredQuery(n, level + 1, ctx)
+                    : interpretQuery(n, level + 1, ctx, streamableResults.contains(n));
+        } else if (n.kind == Kind.SCRIPT_RESULT) {
+            expressionValue = interpretScriptResult(n, level + 1, ctx, streamableResults.contains(n));
         } else {
             expressionValue = interpretBasicExpression(n, level, ctx);
         }
         return expressionValue;
     }
 
-    void interpretExecuteUsing(TSNode n, int level, Context ctx) {
-        TSNode interpreter = getChildByFieldName(n, "interpreter");
+    void interpretExecuteUsing(Node n, int level, Context ctx) {
+        Node interpreter = n.get(Field.INTERPRETER);
         Object interpreterString = interpretBasicExpression(interpreter, level, ctx);
         ensureInstance(n, "The interpreter command/path", interpreterString, String.class);
-        TSNode script = getChildByFieldName(n, "script");
+        Node script = n.get(Field.SCRIPT);
         String scriptString = interpretRaw(script, level + 1, ctx);
-        scriptRunner.execute(n, (String)interpreterString, scriptString, dir);
+        dbms.registerChange();
+        profiler.addBytes(n, scriptString.length());
+        scriptRunner.execute(n.ts, (String)interpreterString, scriptString, dir);
         log.debugIndented(level, "* Executing using interpreter '%s': '%s'", interpreterString, scriptString);
     }
 
-    String interpretScriptResult(TSNode n, int level, Context ctx) {
-        TSNode interpreter = getChildByFieldName(n, "interpreter");
+    /**
+     * @param asRows Whether the output should be returned as rows instead of as a string.
+     */
+    Object interpretScriptResult(Node n, int level, Context ctx, boolean asRows) {
+        Node interpreter = n.get(Field.INTERPRETER);
         Object interpreterString = interpretBasicExpression(interpreter, level, ctx);
         ensureInstance(n, "The interpreter command/path", interpreterString, String.class);
-        TSNode script = getChildByFieldName(n, "script");
+        Node script = n.get(Field.SCRIPT);
         String scriptString = interpretRaw(script, level + 1, ctx);
         log.debugIndented(level, "* Executing using interpreter %s: '%s'", interpreterString, scriptString);
-        return scriptRunner.execute(n, (String)interpreterString, scriptString, dir);
+        dbms.registerChange();
+        return asRows
+                ? scriptRunner.executeRows(n.ts, (String)interpreterString, scriptString, dir, rowsInMemory)
+                : scriptRunner.execute(n.ts, (String)interpreterString, scriptString, dir);
     }
 
-    Connection interpretConnection(TSNode n, int level, Context ctx) {
-        TSNode url = getChildByFieldName(n, "url");
+    Connection interpretConnection(Node n, int level, Context ctx) {
+        Node url = n.get(Field.URL);
         Object urlString = interpretBasicExpression(url, level, ctx);
         ensureInstance(n, "The URL", urlString, String.class);
-        TSNode properties = getChildByFieldName(n, "properties");
+        Node properties = n.get(Field.PROPERTIES);
         log.debugIndented(level, "* Connection: %s", urlString);
         NormalContext connectionContext = interpretKeyValuePairs(properties, level + 1, ctx);
         try {
-            return dbms.connect((String)urlString, connectionContext);
+            Connection connection = dbms.connect((String)urlString, connectionContext);
+            connections.add(connection);
+            return connection;
         } catch (SQLException e) {
             throw new SqlFailure(n, e.getMessage());
         }
     }
 
-    void interpretExecuteSql(TSNode n, int level, Context ctx) {
-        TSNode connection = getChildByFieldName(n, "connection");
+    void interpretExecuteSql(Node n, int level, Context ctx) {
+        interpretExecuteSql(n, level, ctx, null);
+    }
+
+    /**
+     * @param batch If not null, the statement is added to this batch instead of being executed immediately.
+     */
+    void interpretExecuteSql(Node n, int level, Context ctx, SqlBatch batch) {
+        Node connection = n.get(Field.CONNECTION);
         String connectionString = interpretIdentifier(connection, level + 1);
-        Object connectionObject = ctx.getValue(connectionString);
+        Object connectionObject = ctx.getValue(connection);
         ensureInstance(n, "The target", connectionObject, Connection.class);
-        TSNode sql = getChildByFieldName(n, "sql");
+        Node sql = n.get(Field.SQL);
         Map.Entry<String, List<Object>> pair = interpretRawSql(sql, level + 1, ctx);
         log.debugIndented(level, "* Executing SQL via connection %s: '%s'", connectionString, pair.getKey());
+        if (batch != null) {
+            batch.add(n, (Connection)connectionObject, pair);
+            return;
+        }
         try {
-            dbms.executeSqlUpdate((Connection)connectionObject, pair);
+            profiler.addRows(n, dbms.executeSqlUpdate((Connection)connectionObject, pair));
         } catch (SQLException e) {
             throw new SqlFailure(n, e.getMessage());
         }
     }
 
-    Rows interpretQuery(TSNode n, int level, Context ctx) {
-        TSNode connection = getChildByFieldName(n, "connection");
+    Rows interpretQuery(Node n, int level, Context ctx, boolean streaming) {
+        Node connection = n.get(Field.CONNECTION);
         String connectionString = interpretIdentifier(connection, level + 1);
-        Object connectionObject = ctx.getValue(connectionString);
+        Object connectionObject = ctx.getValue(connection);
         ensureInstance(n, "The target", connectionObject, Connection.class);
-        TSNode sql = getChildByFieldName(n, "sql");
+        Node sql = n.get(Field.SQL);
         Map.Entry<String, List<Object>> pair = interpretRawSql(sql, level + 1, ctx);
-        log.debugIndented(level, "* Executing SQL query via connection %s: '%s'", connectionString, pair.getKey());
+        log.debugIndented(level, "* Executing %sSQL query via connection %s: '%s'",
+                streaming ? "streaming " : "", connectionString, pair.getKey());
         try {
-            return new ResultSetRows(dbms.executeSqlQuery((Connection)connectionObject, pair));
+            return streaming
+                    ? new StreamingRows(dbms, (Connection)connectionObject, pair)
+                    : new BufferedRows(dbms, (Connection)connectionObject, pair, rowsInMemory);
         } catch (SQLException e) {
             throw new SqlFailure(n, e.getMessage());
         }
     }
 
+    Rows interpretDeferredQuery(Node n, int level, Context ctx) {
+        Node connection = n.get(Field.CONNECTION);
+        String connectionString = interpretIdentifier(connection, level + 1);
+        Object connectionObject = ctx.getValue(connection);
+        ensureInstance(n, "The target", connectionObject, Connection.class);
+        Node sql = n.get(Field.SQL);
+        Map.Entry<String, List<Object>> pair = interpretRawSql(sql, level + 1, ctx);
+        log.debugIndented(level, "* Deferring SQL query via connection %s: '%s'", connectionString, pair.getKey());
+        return new DeferredRows(dbms, (Connection)connectionObject, pair, rowsInMemory);
+    }
+
     private String skipExtension(String filename) {
         Path p = Path.of(filename);
         Path f = p.getFileName();
@@ -329,26 +540,45 @@ public class Interpreter {
         return i == -1 ? filename : filename.substring(0, filename.length() - n.length() + i);
     }
 
-    void interpretSiardOutput(TSNode n, int level, Context ctx) {
-        TSNode connection = getChildByFieldName(n, "connection");
+    void interpretSiardOutput(Node n, int level, Context ctx) {
+        Node connection = n.get(Field.CONNECTION);
         String connectionString = interpretIdentifier(connection, level + 1);
-        Object connectionObject = ctx.getValue(connectionString);
+        Object connectionObject = ctx.getValue(connection);
         ensureInstance(n, "The source", connectionObject, Connection.class);
         Connection dbmsConnection = (Connection)connectionObject;
         SiardMd md = siardMd.getOrDefault(connectionString, new SiardMd()); // TODO: Use dbmsConnection instead
         if (!md.hasChildren()) {
             log.warn("No SIARD metadata specified for connection '%s'.", connectionString);
         }
-        Object file = interpretBasicExpression(getChildByFieldName(n, "file"), level, ctx);
+        Object file = interpretBasicExpression(n.get(Field.FILE), level, ctx);
         ensureInstance(n, "The filename", file, String.class);
         String fileString = (String)file;
         log.debugIndented(level, "* SIARD output %s to '%s'", connectionString, fileString);
         Path siardFilePath = dir.resolve(fileString);
+        List<RoaeMd> commands = commandMds.get(md);
+        if (level > 1) {
+            // Only top-level outputs (at level 1) are produced in the background,
+            // since statements in loops and conditionals do not wait for them.
+            produceSiard(n, level, dbmsConnection, md, commands, siardFilePath);
+            return;
+        }
+        siardTasks.submit(dbmsConnection,
+                () -> produceSiard(n, level, dbmsConnection, md, commands, siardFilePath));
+    }
 
+    // NB. This may run in a worker thread, cf. BackgroundTasks.
+    private void produceSiard(Node n, int level, Connection dbmsConnection, SiardMd md, List<RoaeMd> commands,
+                              Path siardFilePath) {
         if (!useExistingSiard) {
             try {
                 log.verbose("Creating/replacing %s.", siardFilePath);
+                long startTime = System.nanoTime();
                 siardExtractor.transfer(dbmsConnection, siardFilePath);
+                double seconds = (System.nanoTime() - startTime) / 1_000_000_000.0;
+                long bytes = siardFilePath.toFile().length();
+                profiler.addBytes(n, bytes);
+                log.verbose("Extracted %s in %.3f s (%.1f MB, %.1f MB/s).", siardFilePath, seconds,
+                        bytes / 1e6, seconds > 0 ? bytes / 1e6 / seconds : 0.0);
             } catch (SiardException e) {
                 String reason = "SIARD transfer failed";
                 if (!e.getReason().isEmpty()) {
@@ -379,7 +609,6 @@ public class Interpreter {
         String roaeFileString = skipExtension(siardFilePath.toString()) + ".roae";
         try {
             Path roaePath = Path.of(roaeFileString);
-            List<RoaeMd> commands = commandMds.get(md);
             if (commands == null || commands.isEmpty()) {
                 String message = "No commands defined. ";
                 if (Files.exists(roaePath)) {
@@ -399,69 +628,69 @@ public class Interpreter {
         }
     }
 
-    String interpretSiardMetadataField(String fieldName, TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode field = getChildByFieldName(n, fieldName);
-        if (field == null) {
+    String interpretSiardMetadataField(Field field, Node n, int level, Context ctx, SiardMd parent) {
+        Node value = n.get(field);
+        if (value == null) {
             // Skip (i.e. keep current value) when not provided here.
             return "";
         }
-        Object fieldString = field.getType().equals("raw")
-                ? interpretRaw(field, level, ctx)
-                : interpretBasicExpression(field, level, ctx);
-        ensureInstance(n, "The field '" + fieldName + "'", fieldString, String.class);
-        log.debugIndented(level, "* SIARD metadata %s: %s", fieldName, fieldString);
+        Object fieldString = value.kind == Kind.RAW
+                ? interpretRaw(value, level, ctx)
+                : interpretBasicExpression(value, level, ctx);
+        ensureInstance(n, "The field '" + field.fieldName + "'", fieldString, String.class);
+        log.debugIndented(level, "* SIARD metadata %s: %s", field.fieldName, fieldString);
         if (parent != null) {
-            parent.add(new SiardMd(SiardMdType.INFO, fieldName, (String)fieldString));
+            parent.add(new SiardMd(SiardMdType.INFO, field.fieldName, (String)fieldString));
         }
         return (String)fieldString;
     }
 
-    void interpretSiardMetadata(TSNode n, int level, NormalContext ctx) {
-        TSNode connection = getChildByFieldName(n, "connection");
+    void interpretSiardMetadata(Node n, int level, NormalContext ctx) {
+        Node connection = n.get(Field.CONNECTION);
         String connectionString = interpretIdentifier(connection, level + 1);
         SiardMd md = siardMd.computeIfAbsent(connectionString, _x -> new SiardMd());
         log.debugIndented(level, "* SIARD metadata for %s", connectionString);
-        interpretSiardMetadataField("dbname", n, level + 1, ctx, md);
-        interpretSiardMetadataField("description", n, level + 1, ctx, md);
-        interpretSiardMetadataField("archiver", n, level + 1, ctx, md);
-        interpretSiardMetadataField("archiverContact", n, level + 1, ctx, md);
-        interpretSiardMetadataField("dataOwner", n, level + 1, ctx, md);
-        interpretSiardMetadataField("dataOriginTimespan", n, level + 1, ctx, md);
-        interpretSiardMetadataField("lobFolder", n, level + 1, ctx, md);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_schema")) {
+        interpretSiardMetadataField(Field.DBNAME, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.DESCRIPTION, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.ARCHIVER, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.ARCHIVER_CONTACT, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.DATA_OWNER, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.DATA_ORIGIN_TIMESPAN, n, level + 1, ctx, md);
+        interpretSiardMetadataField(Field.LOB_FOLDER, n, level + 1, ctx, md);
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_SCHEMA) {
                 interpretSiardSchema(c, level + 1, ctx, md);
-            } else if (c.getType().equals("command_declaration")) {
+            } else if (c.kind == Kind.COMMAND_DECLARATION) {
                 interpretCommandDeclaration(c, level + 1, ctx, md);
             }
-        });
+        }
     }
 
-    private String interpretMdDescr(TSNode n, int level, Context ctx) {
+    private String interpretMdDescr(Node n, int level, Context ctx) {
         String sd = interpretShortDescrOf(n, level, ctx);
-        return sd != null ? sd : interpretSiardMetadataField("description", n, level, ctx, null);
+        return sd != null ? sd : interpretSiardMetadataField(Field.DESCRIPTION, n, level, ctx, null);
     }
 
-    void interpretSiardSchema(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardSchema(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.SCHEMA, nameString, descriptionString);
         parent.add(md);
         log.debugIndented(level, "* SIARD schema: %s [%s]", nameString, descriptionString);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_type")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_TYPE) {
                 interpretSiardType(c, level + 1, ctx, md);
-            } else if (c.getType().equals("siard_table")) {
+            } else if (c.kind == Kind.SIARD_TABLE) {
                 interpretSiardTable(c, level + 1, ctx, md);
-            } else if (c.getType().equals("siard_view")) {
+            } else if (c.kind == Kind.SIARD_VIEW) {
                 interpretSiardView(c, level + 1, ctx, md);
             }
-        });
+        }
     }
 
-    void interpretSiardType(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardType(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.TYPE, nameString, descriptionString);
@@ -469,54 +698,54 @@ public class Interpreter {
         log.debugIndented(level, "* SIARD type: %s [%s]", nameString, descriptionString);
     }
 
-    void interpretSiardTable(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardTable(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.TABLE, nameString, descriptionString);
         parent.add(md);
         log.debugIndented(level, "* SIARD table: %s [%s]", nameString, descriptionString);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_column")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_COLUMN) {
                 interpretSiardColumn(c, level + 1, ctx, md);
-            } else if (c.getType().equals("siard_key")) {
+            } else if (c.kind == Kind.SIARD_KEY) {
                 interpretSiardKey(c, level + 1, ctx, md);
-            } else if (c.getType().equals("siard_check")) {
+            } else if (c.kind == Kind.SIARD_CHECK) {
                 interpretSiardCheck(c, level + 1, ctx, md);
             }
-        });
+        }
     }
 
-    void interpretSiardColumn(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardColumn(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.COLUMN, nameString, descriptionString);
         parent.add(md);
         log.debugIndented(level, "* SIARD column: %s [%s]", nameString, descriptionString);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_field")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_FIELD) {
                 interpretSiardField(c, level + 1, ctx, md);
             }
-        });
+        }
     }
 
-    void interpretSiardField(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardField(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.FIELD, nameString, descriptionString);
         parent.add(md);
         log.debugIndented(level, "* SIARD field: %s [%s]", nameString, descriptionString);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_field")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_FIELD) {
                 interpretSiardField(c, level + 1, ctx, parent);
             }
-        });
+        }
     }
 
-    void interpretSiardKey(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardKey(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.KEY, nameString, descriptionString);
@@ -524,8 +753,8 @@ public class Interpreter {
         log.debugIndented(level, "* SIARD key: %s [%s]", nameString, descriptionString);
     }
 
-    void interpretSiardCheck(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardCheck(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.CHECK, nameString, descriptionString);
@@ -533,34 +762,34 @@ public class Interpreter {
         log.debugIndented(level, "* SIARD check: %s [%s]", nameString, descriptionString);
     }
 
-    void interpretSiardView(TSNode n, int level, Context ctx, SiardMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretSiardView(Node n, int level, Context ctx, SiardMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         String descriptionString = interpretMdDescr(n, level, ctx);
         SiardMd md = new SiardMd(SiardMdType.VIEW, nameString, descriptionString);
         parent.add(md);
         log.debugIndented(level, "* SIARD view: %s [%s]", nameString, descriptionString);
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("siard_column")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.SIARD_COLUMN) {
                 interpretSiardColumn(c, level + 1, ctx, md);
             }
-        });
+        }
     }
 
-    void interpretCommandDeclaration(TSNode n, int level, NormalContext ctx, SiardMd parent) {
-        TSNode title = getChildByFieldName(n, "title");
-        Object titleString = title.getType().equals("raw")
+    void interpretCommandDeclaration(Node n, int level, NormalContext ctx, SiardMd parent) {
+        Node title = n.get(Field.TITLE);
+        Object titleString = title.kind == Kind.RAW
                 ? interpretRaw(title, level, ctx)
                 : interpretBasicExpression(title, level, ctx);
         ensureInstance(n, "The title", titleString, String.class);
         RoaeMd md = new RoaeMd(RoaeMdType.COMMAND, null, (String)titleString);
-        commandMds.computeIfAbsent(parent, x -> new ArrayList<>()).add(md);
+        commandMds.computeIfAbsent(parent, x -> new CopyOnWriteArrayList<>()).add(md);
         log.debugIndented(level, "* Command declaration: %s", titleString);
-        TSNode parameters = getChildByFieldName(n, "parameters");
+        Node parameters = n.get(Field.PARAMETERS);
         if (parameters != null) {
             interpretCommandParameters(parameters, level + 1, ctx, md);
         }
-        TSNode body = getChildByFieldName(n, "body");
+        Node body = n.get(Field.BODY);
 
         Set<String> parameterSet = md
                 .getChildren(RoaeMdType.PARAMETER)
@@ -578,19 +807,19 @@ public class Interpreter {
         log.debugIndented(level + 1, "%s", bodyString);
     }
 
-    void interpretCommandParameters(TSNode n, int level, NormalContext ctx, RoaeMd parent) {
+    void interpretCommandParameters(Node n, int level, NormalContext ctx, RoaeMd parent) {
         log.debugIndented(level, "* Parameters");
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("parameter")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.PARAMETER) {
                 interpretCommandParameter(c, level + 1, ctx, parent);
             } else {
                 throw new AstFailure(n);
             }
-        });
+        }
     }
 
-    void interpretCommandParameter(TSNode n, int level, NormalContext ctx, RoaeMd parent) {
-        TSNode name = getChildByFieldName(n, "name");
+    void interpretCommandParameter(Node n, int level, NormalContext ctx, RoaeMd parent) {
+        Node name = n.get(Field.NAME);
         String nameString = interpretIdentifier(name, level + 1);
         ctx.setValue(nameString, config.getProperty(nameString));
         String descriptionString = interpretShortDescrOf(n, level, ctx);
@@ -598,36 +827,44 @@ public class Interpreter {
         log.debugIndented(level, "* Parameter: %s  [%s]", nameString, descriptionString);
     }
 
-    void interpretForLoop(TSNode n, int level, NormalContext ctx) {
-        TSNode variables = getChildByFieldName(n, "variables");
+    void interpretForLoop(Node n, int level, NormalContext ctx) {
+        Node variables = n.get(Field.VARIABLES);
         List<String> variablesStrings = interpretForVariables(variables, level + 1);
-        TSNode resultSet = getChildByFieldName(n, "result_set");
+        Node resultSet = n.get(Field.RESULT_SET);
         String resultSetString = interpretIdentifier(resultSet, level + 1);
-        TSNode body = getChildByFieldName(n, "body");
+        Node body = n.get(Field.BODY);
         log.debugIndented(level, "* For loop: %s in %s",
                 String.join(", ", variablesStrings), resultSetString);
-        Object resObj = ctx.getValue(resultSetString);
+        Object resObj = ctx.getValue(resultSet);
         ensureInstance(n, "The expression", resObj, Rows.class, String.class);
         Rows rs = asRows(n, resObj);
-        int expectedCols = variablesStrings.size();
+        SqlBatch batch = batchSize > 1 && isBatchable(body) ? new SqlBatch(dbms, batchSize, profiler) : null;
+        if (batch == null && loopWorkers > 1 && isParallelizable(body) && !readsRows(body, ctx)) {
+            interpretParallelForLoop(n, level, ctx, rs, variables, body);
+            return;
+        }
         try {
             if (!rs.tryLockAndRewind()) {
                 throw new SemanticFailure(n, "Nested iteration over the same row set is not allowed.");
             }
             String[] row;
+            long rowCount = 0;
             while ((row = rs.next()) != null) {
-                int actualCols = row.length;
-                for (int i = 0; i < expectedCols; i++) {
-                    String colValue = i < actualCols ? row[i] : null;
-                    String var = variablesStrings.get(i);
-                    if (colValue == null) {
-                        ctx.clearValue(var);
-                    } else {
-                        ctx.setValue(var, colValue);
-                    }
+                rowCount++;
+                setLoopVariables(ctx, variables, row);
+                Events.LoopIteration event = new Events.LoopIteration();
+                event.begin();
+                if (batch != null) {
+                    interpretBatchedStatementBlock(body, level + 1, ctx, batch);
+                } else {
+                    interpretStatementBlock(body, level + 1, ctx);
                 }
-                interpretStatementBlock(body, level + 1, ctx);
+                commitLoopIteration(event, n, rowCount);
+            }
+            if (batch != null) {
+                batch.flush();
             }
+            addLoopRows(n, rowCount);
         } catch (SQLException e) {
             throw new SqlFailure(n, "Problem iterating through the result set:\n" + e.getMessage());
         } finally {
@@ -635,42 +872,174 @@ public class Interpreter {
         }
     }
 
-    List<String> interpretForVariables(TSNode n, int level) {
+    private void addLoopRows(Node loop, long rows) {
+        profiler.addRows(loop, rows);
+        if (metrics != null) {
+            metrics.addLoopRows(rows);
+        }
+    }
+
+    private void commitLoopIteration(Events.LoopIteration event, Node loop, long row) {
+        if (event.shouldCommit()) {
+            event.location = Events.location(sourceName, loop);
+            event.row = row;
+            event.commit();
+        }
+    }
+
+    private static void setLoopVariables(NormalContext ctx, Node variables, String[] row) {
+        for (int i = 0; i < variables.children.length; i++) {
+            String colValue = i < row.length ? row[i] : null;
+            Node var = variables.children[i];
+            if (colValue == null) {
+                ctx.clearValue(var);
+            } else {
+                ctx.setValue(var, colValue);
+            }
+        }
+    }
+
+    /**
+     * Each iteration gets a copy of the context, so variables set in the body are not visible
+     * after the loop (while the loop variables have the values of the last row, as usual).
+     */
+    private void interpretParallelForLoop(Node n, int level, NormalContext ctx, Rows rs,
+                                          Node variables, Node body) {
+        log.debugIndented(level, "* Running iterations on %d workers", loopWorkers);
+        try (ParallelLoop loop = new ParallelLoop(dbms, n, loopWorkers)) {
+            if (!rs.tryLockAndRewind()) {
+                throw new SemanticFailure(n, "Nested iteration over the same row set is not allowed.");
+            }
+            try {
+                String[] row;
+                long rowCount = 0;
+                while ((row = rs.next()) != null) {
+                    rowCount++;
+                    setLoopVariables(ctx, variables, row);
+                    long rowNumber = rowCount;
+                    if (!loop.submit(ctx, c -> {
+                        Events.LoopIteration event = new Events.LoopIteration();
+                        event.begin();
+                        try {
+                            interpretStatementBlock(body, level + 1, c);
+                        } finally {
+                            // The variables set by the iteration are not visible after it.
+                            closeRows(c);
+                        }
+                        commitLoopIteration(event, n, rowNumber);
+                    })) {
+                        break;
+                    }
+                }
+                addLoopRows(n, rowCount);
+            } finally {
+                rs.free();
+            }
+            loop.finish();
+        } catch (SQLException e) {
+            throw new SqlFailure(n, "Problem iterating through the result set:\n" + e.getMessage());
+        }
+    }
+
+    // Loops which only execute SQL and scripts, set variables, log and check things may be run in parallel.
+    private static boolean isParallelizable(Node block) {
+        for (Node c : block.children) {
+            switch (c.kind) {
+                case EXECUTE_SQL:
+                case EXECUTE_USING:
+                case LOG:
+                case ASSERT:
+                    break;
+                case SET:
+                    if (c.get(Field.VALUE).kind == Kind.CONNECTION) {
+                        return false;
+                    }
+                    break;
+                case CONDITIONAL:
+                    Node elseBlock = c.get(Field.ELSE);
+                    if (!isParallelizable(c.get(Field.THEN)) || elseBlock != null && !isParallelizable(elseBlock)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Rows have a single cursor, so iterations which read the same rows cannot run in parallel.
+    private static boolean readsRows(Node n, NormalContext ctx) {
+        if (n.kind == Kind.VARIABLE_INSTANCE && n.children.length > 0
+                && ctx.getValue(n.children[0]) instanceof Rows) {
+            return true;
+        }
+        for (Node c : n.children) {
+            if (readsRows(c, ctx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Loops consisting only of Execute via statements may be executed in batches.
+    private static boolean isBatchable(Node body) {
+        return body.children.length > 0
+                && Arrays.stream(body.children).allMatch(c -> c.kind == Kind.EXECUTE_SQL);
+    }
+
+    private void interpretBatchedStatementBlock(Node n, int level, NormalContext ctx, SqlBatch batch) {
+        log.debugIndented(level, "* Statement block (batched)");
+        for (Node c : n.children) {
+            try {
+                interpretExecuteSql(c, level + 1, ctx, batch);
+            } catch (RuntimeException e) {
+                // The preceding statements should have been executed before this failed.
+                batch.flush();
+                throw e;
+            }
+        }
+    }
+
+    List<String> interpretForVariables(Node n, int level) {
         List<String> variables = new ArrayList<>();
-        getChildren(n).forEach((TSNode c) -> {
-            if (c.getType().equals("identifier")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.IDENTIFIER) {
                 variables.add(interpretIdentifier(c, level + 1));
             } else {
                 throw new AstFailure(n);
             }
-        });
+        }
         return variables;
     }
 
-    void interpretConditional(TSNode n, int level, NormalContext ctx) {
-        TSNode condition = getChildByFieldName(n, "condition");
-        Boolean comparisonValue = interpretComparison(condition, level + 1, ctx);
+    void interpretConditional(Node n, int level, NormalContext ctx) {
+        Node condition = n.get(Field.CONDITION);
+        Boolean comparisonValue = interpretComparison(condition, level + 1, ctx, null);
         log.debugIndented(level, "* Conditional: value = '%s'", comparisonValue);
         if (comparisonValue) {
-            TSNode thenBlock = getChildByFieldName(n, "then");
+            Node thenBlock = n.get(Field.THEN);
             interpretStatementBlock(thenBlock, level + 1, ctx);
         } else {
-            TSNode elseBlock = getChildByFieldName(n, "else");
+            Node elseBlock = n.get(Field.ELSE);
             if (elseBlock != null) {
                 interpretStatementBlock(elseBlock, level + 1, ctx);
             }
         }
     }
 
-    void interpretStatementBlock(TSNode n, int level, NormalContext ctx) {
+    void interpretStatementBlock(Node n, int level, NormalContext ctx) {
         log.debugIndented(level, "* Statement block");
-        getChildren(n).forEach((TSNode c) -> interpretStatement(c, level, ctx));
+        for (Node c : n.children) {
+            interpretStatement(c, level, ctx);
+        }
     }
 
     // For printing if a comparison fails.
-    Map<String, String> comparisonCtx(TSNode n, Context ctx) {
-        return Stream.of("left", "right")
-                .map(n::getChildByFieldName)
+    Map<String, String> comparisonCtx(Node n, Context ctx) {
+        return Stream.of(Field.LEFT, Field.RIGHT)
+                .map(n::get)
+                .filter(Objects::nonNull)
                 .flatMap(this::basicExpressionVariableInstances)
                 .distinct()
                 .collect(Collectors.toMap(
@@ -678,12 +1047,16 @@ public class Interpreter {
                         var -> Utils.escape(ctx.getValue(var), true)));
     }
 
-    Boolean interpretComparison(TSNode n, int level, Context ctx) {
-        TSNode left = getChildByFieldName(n, "left");
+    /**
+     * @param differences If not null, this is where we describe the differences
+     *                    between row sets when '==' does not hold.
+     */
+    Boolean interpretComparison(Node n, int level, Context ctx, List<String> differences) {
+        Node left = n.get(Field.LEFT);
         Object leftValue = interpretBasicExpression(left, level + 1, ctx);
-        TSNode operator = getChildByFieldName(n, "operator");
+        Node operator = n.get(Field.OPERATOR);
         String operatorString = interpretComparisonOperator(operator, level + 1);
-        TSNode right = getChildByFieldName(n, "right");
+        Node right = n.get(Field.RIGHT);
         Object rightValue = interpretBasicExpression(right, level + 1, ctx);
 
         if (leftValue instanceof BigInteger && rightValue instanceof BigInteger) {
@@ -742,29 +1115,9 @@ public class Interpreter {
                 return eq;
             }
             try {
-                if (!ls.tryLockAndRewind()) {
-                    throw new SemanticFailure(n, "Already iterating over the left side.");
-                }
-                if (!rs.tryLockAndRewind()) {
-                    throw new SemanticFailure(n, "Already iterating over the right side.");
-                }
-                String[] lr, rr;
-                while ((lr = ls.next()) != null && (rr = rs.next()) != null) {
-                    if (lr.length != rr.length) {
-                        return !eq;
-                    }
-                    for (int i = 0; i < lr.length; i++) {
-                        if (!Objects.equals(lr[i], rr[i])) {
-                            return !eq;
-                        }
-                    }
-                }
-                return ((lr == null) && (rs.next() == null)) == eq;
+                return rowComparison.compare(n, ls, rs, eq ? differences : null) == eq;
             } catch (SQLException e) {
                 throw new SqlFailure(n, "Problem checking if the result sets are identical:\n" + e.getMessage());
-            } finally {
-                ls.free();
-                rs.free();
             }
         } else {
             throw new SemanticFailure(n, "Unsupported comparison between "
@@ -776,7 +1129,7 @@ public class Interpreter {
         }
     }
 
-    private Rows asRows(TSNode n, Object obj) {
+    private Rows asRows(Node n, Object obj) {
         if (obj instanceof Rows) {
             return (Rows) obj;
         }
@@ -787,52 +1140,52 @@ public class Interpreter {
     }
 
     // For printing if an assertion fails.
-    private Stream<String> basicExpressionVariableInstances(TSNode n) {
-        switch (n.getType()) {
-            case "variable_instance":
-                return Stream.of(interpretIdentifier(n.getNamedChild(0), -1));
-            case "dot_expression":
-                return basicExpressionVariableInstances(getChildByFieldName(n, "left"));
+    private Stream<String> basicExpressionVariableInstances(Node n) {
+        switch (n.kind) {
+            case VARIABLE_INSTANCE:
+                return Stream.of(interpretIdentifier(n.children[0], -1));
+            case DOT_EXPRESSION:
+                return basicExpressionVariableInstances(n.get(Field.LEFT));
             default:
                 return Stream.empty();
         }
     }
 
-    Object interpretBasicExpression(TSNode n, int level, Context ctx) {
-        switch (n.getType()) {
-            case "string":
+    Object interpretBasicExpression(Node n, int level, Context ctx) {
+        switch (n.kind) {
+            case STRING:
                 return interpretString(n, level + 1, ctx);
-            case "variable_instance":
+            case VARIABLE_INSTANCE:
                 return interpretVariableInstance(n, level + 1, ctx);
-            case "integer":
+            case INTEGER:
                 return interpretInteger(n, level + 1);
-            case "dot_expression":
+            case DOT_EXPRESSION:
                 return interpretDotExpression(n, level + 1, ctx);
             default:
                 throw new AstFailure(n);
         }
     }
 
-    Object interpretVariableInstance(TSNode n, int level, Context ctx) {
-        TSNode identifier = n.getNamedChild(0);
+    Object interpretVariableInstance(Node n, int level, Context ctx) {
+        Node identifier = n.children[0];
         String identifierName = interpretIdentifier(identifier, level + 1);
-        Object result = ctx.getValue(identifierName);
+        Object result = ctx.getValue(identifier);
         if (result == null) {
             throw new SemanticFailure(n, "The variable '" + identifierName + "' has not been set.");
         }
         return result;
     }
 
-    Object interpretDotExpression(TSNode n, int level, Context ctx) {
-        TSNode left = getChildByFieldName(n, "left");
+    Object interpretDotExpression(Node n, int level, Context ctx) {
+        Node left = n.get(Field.LEFT);
         Object leftValue = interpretBasicExpression(left, level + 1, ctx);
-        TSNode right = getChildByFieldName(n, "right");
+        Node right = n.get(Field.RIGHT);
         String rightOperator = interpretDotOperator(right, level + 1);
         log.debugIndented(level, "* Dot expression: value = '%s'.'%s'", leftValue, rightOperator);
         return dotExpressionValue(n, leftValue, rightOperator);
     }
 
-    private static Object dotExpressionValue(TSNode n, Object leftValue, String rightOperator) {
+    private static Object dotExpressionValue(Node n, Object leftValue, String rightOperator) {
         if (leftValue instanceof String) {
             String trimmed = ((String) leftValue).trim();
             if (rightOperator.equals("stripped")) {
@@ -883,39 +1236,45 @@ public class Interpreter {
         }
     }
 
-    String interpretString(TSNode n, int level, Context ctx) {
-        return getChildren(n).map(c -> {
-            switch (c.getType()) {
-                case "interpolation":
-                    String[] res = new String[1];
-                    interpretInterpolation(c, level, ctx, s -> res[0] = s, i -> res[0] = i.toString(), null);
-                    return res[0];
-                case "escape_sequence":
-                    return interpretEscapeSequence(c, level + 1);
-                case "string_content":
-                    return interpretStringContent(c, level + 1);
+    String interpretString(Node n, int level, Context ctx) {
+        if (n.constant != null) {
+            return (String) n.constant;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Node c : n.children) {
+            switch (c.kind) {
+                case INTERPOLATION:
+                    interpretInterpolation(c, level, ctx, sb::append, sb::append, null);
+                    break;
+                case ESCAPE_SEQUENCE:
+                    sb.append(interpretEscapeSequence(c, level + 1));
+                    break;
+                case STRING_CONTENT:
+                    sb.append(interpretStringContent(c, level + 1));
+                    break;
                 default:
                     throw new AstFailure(n);
             }
-        }).collect(Collectors.joining());
+        }
+        return sb.toString();
     }
 
     @SuppressWarnings("unused")
-    String interpretShortDescrOf(TSNode n, int level, Context ctx) {
-        TSNode description = getChildByFieldName(n, "description");
-        return description != null && description.getType().equals("short_description")
+    String interpretShortDescrOf(Node n, int level, Context ctx) {
+        Node description = n.get(Field.DESCRIPTION);
+        return description != null && description.kind == Kind.SHORT_DESCRIPTION
                 ? interpretShortDescription(description, level + 1)
                 : null;
     }
 
     void interpretInterpolation(
-            TSNode n,
+            Node n,
             int level,
             Context ctx,
             Consumer<String> stringArg,
             Consumer<BigInteger> intArg,
             Consumer<ParameterRef> parameterArg) {
-        Object x = interpretBasicExpression(n.getNamedChild(0), level, ctx);
+        Object x = interpretBasicExpression(n.children[0], level, ctx);
         if (x instanceof String) {
             stringArg.accept((String)x);
         } else if (x instanceof BigInteger) {
@@ -929,39 +1288,39 @@ public class Interpreter {
         }
     }
 
-    NormalContext interpretKeyValuePairs(TSNode n, int level, Context ctx) {
+    NormalContext interpretKeyValuePairs(Node n, int level, Context ctx) {
         NormalContext keyValuePairs = new NormalContext(); // NB: does not inherit from ctx
         if (n != null) {
-            getChildren(n).forEach(c -> {
-                if (c.getType().equals("key_value_pair")) {
+            for (Node c : n.children) {
+                if (c.kind == Kind.KEY_VALUE_PAIR) {
                     interpretKeyValuePair(c, level + 1, keyValuePairs, ctx);
                 } else {
                     throw new AstFailure(n);
                 }
-            });
+            }
         }
         return keyValuePairs;
     }
 
-    void interpretKeyValuePair(TSNode n, int level, NormalContext keyValuePairs, Context ctx) {
-        TSNode key = getChildByFieldName(n, "key");
+    void interpretKeyValuePair(Node n, int level, NormalContext keyValuePairs, Context ctx) {
+        Node key = n.get(Field.KEY);
         String keyString = interpretIdentifier(key, level + 1);
-        TSNode value = getChildByFieldName(n, "value");
-        Object valueString = value.getType().equals("raw")
+        Node value = n.get(Field.VALUE);
+        Object valueString = value.kind == Kind.RAW
                 ? interpretRaw(value, level, ctx)
                 : interpretBasicExpression(value, level, ctx);
         ensureInstance(n, "The " + keyString + " value", valueString, String.class);
         keyValuePairs.setValue(keyString, valueString);
     }
 
-    String interpretRaw(TSNode n, int level, Context ctx) {
+    String interpretRaw(Node n, int level, Context ctx) {
         StringBuilder sb = new StringBuilder();
         interpretRawSegments(n, level, ctx, sb::append, null);
         return sb.toString();
     }
 
     // We use Map.Entry since Java 11 has no built-in pair type
-    Map.Entry<String, List<Object>> interpretRawSql(TSNode n, int level, Context ctx) {
+    Map.Entry<String, List<Object>> interpretRawSql(Node n, int level, Context ctx) {
         StringBuilder sb = new StringBuilder();
         List<Object> args = new ArrayList<>();
         interpretRawSegments(n, level, ctx, sb::append, x -> {
@@ -972,17 +1331,14 @@ public class Interpreter {
     }
 
     private void interpretRawSegments(
-            TSNode n,
+            Node n,
             int level,
             Context ctx,
             Consumer<String> literalConsumer,
             Consumer<Object> argumentConsumer) {
         StringBuilder pending = new StringBuilder();
-        int nc = n.getChildCount();
-        for (int i = 0; i < nc; i++) {
-            TSNode c = n.getChild(i);
-            if (!c.isNamed()) continue;
-            if (c.getType().equals("raw_content")) {
+        for (Node c : n.children) {
+            if (c.kind == Kind.RAW_CONTENT) {
                 String rc = interpretRawContent(c, level + 1);
                 // We trim trailing newlines stemming from newlines after raw.
                 // This is an issue since we allow raw sections to continue after
@@ -1007,8 +1363,8 @@ public class Interpreter {
                 pending.setLength(0);
             }
 
-            switch (c.getType()) {
-                case "interpolation":
+            switch (c.kind) {
+                case INTERPOLATION:
                     String[] val = new String[1];
                     interpretInterpolation(c, level, ctx,
                             s -> val[0] = s,
@@ -1016,7 +1372,7 @@ public class Interpreter {
                             p -> val[0] = "${" + p + "}");
                     literalConsumer.accept(val[0]);
                     break;
-                case "interpolation2":
+                case INTERPOLATION2:
                     if (argumentConsumer == null) {
                         throw new SemanticFailure(c, "Safe interpolation ($$) cannot be used here.");
                     }
@@ -1034,85 +1390,42 @@ public class Interpreter {
     // Methods corresponding to terminal AST nodes
 
     @SuppressWarnings("unused")
-    String interpretIdentifier(TSNode n, int level) {
-        return nodeString(n);
+    String interpretIdentifier(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    String interpretShortDescription(TSNode n, int level) {
-        return nodeString(n);
+    String interpretShortDescription(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    String interpretEscapeSequence(TSNode n, int level) {
-        return StringEscapeUtils.unescapeJava(nodeString(n));
+    String interpretEscapeSequence(Node n, int level) {
+        return n.constant != null ? (String) n.constant : StringEscapeUtils.unescapeJava(n.text);
     }
 
     @SuppressWarnings("unused")
-    String interpretStringContent(TSNode n, int level) {
-        return nodeString(n);
+    String interpretStringContent(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    String interpretRawContent(TSNode n, int level) {
-        return nodeString(n);
+    String interpretRawContent(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    String interpretComparisonOperator(TSNode n, int level) {
-        return nodeString(n);
+    String interpretComparisonOperator(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    String interpretDotOperator(TSNode n, int level) {
-        return nodeString(n);
+    String interpretDotOperator(Node n, int level) {
+        return n.text;
     }
 
     @SuppressWarnings("unused")
-    BigInteger interpretInteger(TSNode n, int level) {
-        return new BigInteger(nodeString(n));
-    }
-
-    private String nodeString(TSNode n) {
-        TSPoint sp = n.getStartPoint();
-        TSPoint ep = n.getEndPoint();
-        if (sp.getRow() == ep.getRow()) {
-            return safeSourceString(sp.getRow(), sp.getColumn(), ep.getColumn());
-        }
-        StringBuilder sb = new StringBuilder();
-        int i = sp.getRow();
-        sb.append(sourceLines[i], sp.getColumn(), sourceLines[i].length());
-        sb.append(lineEndings[i++]);
-        while (i < ep.getRow()) {
-            sb.append(sourceLines[i]);
-            sb.append(lineEndings[i++]);
-        }
-        sb.append(safeSourceString(i, 0, ep.getColumn()));
-        return sb.toString();
-    }
-
-    // We must use this since 'to' may include a carriage return.
-    private String safeSourceString(int line, int from, int to) {
-        String str = sourceLines[line];
-        return str.substring(from, Math.min(str.length(), to));
-    }
-
-    /**
-     * Since TSNode::getChildByFieldName does not work as expected.
-     * (It appears to perform a depth first search rather than sticking to depth 1.
-     * This also leads to shadowing.)
-     * Also, when there may be more than one such child, we generally want the last one.
-     * Finally, it is more convenient to use actual null values when the node is not found
-     * than a TSNode object for which isNull() returns true.
-     */
-    private TSNode getChildByFieldName(TSNode n, String fieldName) {
-        int c = n.getChildCount();
-        return IntStream
-                .range(0, c)
-                .map(i -> c - i - 1)
-                .filter(i -> fieldName.equals(n.getFieldNameForChild(i)))
-                .mapToObj(n::getChild)
-                .findFirst()
-                .orElse(null);
+    BigInteger interpretInteger(Node n, int level) {
+        return n.constant != null ? (BigInteger) n.constant : new BigInteger(n.text);
     }
 }
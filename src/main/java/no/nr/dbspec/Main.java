@@ -12,7 +12,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class Main {
     private static final Option quietOpt = new Option(
@@ -33,6 +38,24 @@ public class Main {
     private static final Option timeOpt = new Option(
             "t", "time", false,
             "Print timing information to stderr at the end of execution.");
+    private static final Option profileOpt = new Option(
+            null, "profile", true,
+            "Write per-statement timings to a file: JSON if the name ends with .json, "
+                    + "otherwise collapsed stacks (for flame graphs).");
+    private static final Option metricsOpt = new Option(
+            null, "metrics", true,
+            "Write metrics to a file in OpenMetrics text format at the end of execution, "
+                    + "e.g. run.prom for the textfile collector of the Prometheus node exporter.");
+    private static final Option metricsIntervalOpt = new Option(
+            null, "metrics-interval", true,
+            "Also write the metrics every given number of seconds.");
+    private static final Option jobsOpt = new Option(
+            "j", "jobs", true,
+            "Run several files (or glob patterns like 'specs/*.dbspec') on the given number of workers.");
+    private static final Option daemonOpt = new Option(
+            null, "daemon", true,
+            "Serve runs requested by bin/dbspec-client on the given local port, "
+                    + "at most as many at a time as given by -j (default: the number of processors).");
     private static final Options options = new Options()
             .addOption(verboseOpt)
             .addOption(debugOpt)
@@ -40,20 +63,28 @@ public class Main {
             .addOption(dirOpt)
             .addOption(configOpt)
             .addOption(existingSiardOpt)
-            .addOption(timeOpt);
+            .addOption(timeOpt)
+            .addOption(profileOpt)
+            .addOption(metricsOpt)
+            .addOption(metricsIntervalOpt)
+            .addOption(jobsOpt)
+            .addOption(daemonOpt);
 
     public static void main(String[] args) {
-        System.exit(run(args).getValue());
+        System.exit(run(args, Path.of(System.getProperty("user.dir")), null).getValue());
     }
 
-    private static StatusCode run(String[] args) {
+    /**
+     * @param pool Connection pool shared with other runs, or null.
+     */
+    static StatusCode run(String[] args, Path workingDir, ConnectionPool pool) {
         CommandLine cmd;
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         try {
             cmd = parser.parse(options, args);
         } catch (ParseException e) {
-            formatter.printHelp("java -jar dbspec.jar OPTIONS FILENAME", options);
+            formatter.printHelp("java -jar dbspec.jar OPTIONS FILENAME...", options);
             return StatusCode.COULD_NOT_PARSE_OPTIONS;
         }
         int logLevel = cmd.hasOption(quietOpt) ? Log.QUIET
@@ -62,8 +93,16 @@ public class Main {
                 : Log.NORMAL;
         Log log = new Log(logLevel); // Default log level
 
+        if (cmd.hasOption(daemonOpt)) {
+            if (pool != null) {
+                log.error("A daemon cannot be started by a daemon.");
+                return StatusCode.COULD_NOT_PARSE_OPTIONS;
+            }
+            return runDaemon(cmd, log);
+        }
+
         String dirString = cmd.getOptionValue(dirOpt);
-        Path dir = Path.of(dirString == null ? System.getProperty("user.dir") : dirString);
+        Path dir = dirString == null ? workingDir : workingDir.resolve(dirString);
         if (!Files.isDirectory(dir)) {
             log.error("The directory does not exist: " + dir);
             return StatusCode.DIRECTORY_DOES_NOT_EXIST;
@@ -72,10 +111,41 @@ public class Main {
             log.error("Missing input filename.");
             return StatusCode.DBSPEC_FILE_NOT_SPECIFIED;
         }
+        boolean batch = cmd.getArgs().length > 1 || Batch.isPattern(cmd.getArgs()[0]) || cmd.hasOption(jobsOpt);
         Path file = dir.resolve(cmd.getArgs()[0]);
-        if (!Files.exists(file)) {
+        List<Path> files;
+        if (batch) {
+            try {
+                files = Batch.expand(dir, cmd.getArgs());
+            } catch (IOException e) {
+                log.error("Unable to list files: %s", e.getMessage());
+                return StatusCode.DBSPEC_FILE_NOT_FOUND;
+            }
+            if (files.isEmpty()) {
+                log.error("No files found.");
+                return StatusCode.DBSPEC_FILE_NOT_FOUND;
+            }
+        } else if (!Files.exists(file)) {
             log.error("File not found.");
             return StatusCode.DBSPEC_FILE_NOT_FOUND;
+        } else {
+            files = List.of(file);
+        }
+        int jobs = 1;
+        if (cmd.hasOption(jobsOpt)) {
+            try {
+                jobs = Integer.parseInt(cmd.getOptionValue(jobsOpt));
+            } catch (NumberFormatException e) {
+                jobs = 0;
+            }
+            if (jobs <= 0) {
+                log.error("The number of jobs must be a positive integer.");
+                return StatusCode.COULD_NOT_PARSE_OPTIONS;
+            }
+        }
+        if (batch && cmd.hasOption(profileOpt)) {
+            log.error("Profiles can only be written for a single file.");
+            return StatusCode.COULD_NOT_PARSE_OPTIONS;
         }
 
         String configFilename = cmd.getOptionValue(configOpt);
@@ -93,23 +163,167 @@ public class Main {
             return StatusCode.CONFIG_FILE_UNREADABLE;
         }
 
-        TimingContext timingContext = new TimingContext(cmd.hasOption(timeOpt));
-        Dbms dbms = new Dbms(timingContext);
-        Interpreter i = new Interpreter(log,
+        String metricsFilename = cmd.getOptionValue(metricsOpt);
+        Path metricsPath = metricsFilename == null ? null : dir.resolve(metricsFilename);
+        Metrics metrics = metricsPath == null ? null
+                : new Metrics(batch ? String.join(" ", cmd.getArgs()) : file.getFileName().toString());
+        long metricsInterval = 0;
+        if (cmd.hasOption(metricsIntervalOpt)) {
+            try {
+                metricsInterval = Long.parseLong(cmd.getOptionValue(metricsIntervalOpt));
+            } catch (NumberFormatException e) {
+                metricsInterval = -1;
+            }
+            if (metricsInterval <= 0) {
+                log.error("The metrics interval must be a positive number of seconds.");
+                return StatusCode.COULD_NOT_PARSE_OPTIONS;
+            }
+            if (metrics == null) {
+                log.error("The metrics interval requires --metrics.");
+                return StatusCode.COULD_NOT_PARSE_OPTIONS;
+            }
+        }
+
+        Settings settings = new Settings(config, log);
+        TimingContext timingContext = new TimingContext(cmd.hasOption(timeOpt), metrics);
+        ConnectionPool connectionPool = pool != null ? pool : new ConnectionPool();
+        Dbms dbms = new Dbms(timingContext,
+                settings.getInt(Settings.FETCH_SIZE, Settings.DEFAULT_FETCH_SIZE),
+                settings.getInt(Settings.STATEMENT_CACHE_SIZE, Settings.DEFAULT_STATEMENT_CACHE_SIZE),
+                connectionPool);
+        // The per-statement report is only made for a single file.
+        Profiler profiler = new Profiler(!batch && (cmd.hasOption(timeOpt) || cmd.hasOption(profileOpt)));
+        ScriptRunnerImpl scriptRunner = new ScriptRunnerImpl(timingContext,
+                settings.getBoolean(Settings.SCRIPT_SESSIONS, false));
+        SiardExtractorImpl siardExtractor = new SiardExtractorImpl(dbms, log, dir, timingContext,
+                settings.getBoolean(Settings.SIARD_IN_PROCESS, true),
+                settings.getBoolean(Settings.INCREMENTAL_SIARD, false));
+        SiardMetadataAdjusterImpl siardMetadataAdjuster =
+                new SiardMetadataAdjusterImpl(log, settings.getBoolean(Settings.STREAM_SIARD_METADATA, false));
+        RoaeProducerImpl roaeProducer = new RoaeProducerImpl();
+        Supplier<Interpreter> interpreters = () -> new Interpreter(log,
                 dir,
                 config,
                 cmd.hasOption(existingSiardOpt),
                 dbms,
-                new ScriptRunnerImpl(timingContext),
-                new SiardExtractorImpl(dbms, log, dir, timingContext),
-                new SiardMetadataAdjusterImpl(log),
-                new RoaeProducerImpl());
+                scriptRunner,
+                siardExtractor,
+                siardMetadataAdjuster,
+                roaeProducer,
+                profiler,
+                metrics);
 
-        StatusCode result = i.interpret(file);
+        ScheduledExecutorService metricsWriter = null;
+        if (metricsInterval > 0) {
+            metricsWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "dbspec-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            metricsWriter.scheduleAtFixedRate(
+                    () -> writeMetrics(metrics, metricsPath, log),
+                    metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+        StatusCode result;
+        List<Batch.Result> batchResults = null;
+        if (batch) {
+            batchResults = new Batch(log, jobs, interpreters).run(files);
+            result = Batch.status(batchResults);
+        } else {
+            Interpreter interpreter = interpreters.get();
+            try {
+                result = interpreter.interpret(file);
+            } finally {
+                interpreter.releaseConnections();
+            }
+        }
+        if (metricsWriter != null) {
+            // Lets a write in progress finish, but cancels the later ones
+            metricsWriter.shutdown();
+        }
+        dbms.closeStatements();
+        if (pool == null) {
+            connectionPool.close();
+        }
+        scriptRunner.close();
+        if (batchResults != null && logLevel > Log.QUIET) {
+            Batch.printReport(batchResults, System.err);
+        }
         timingContext.printReport();
+        if (cmd.hasOption(timeOpt)) {
+            profiler.printReport(System.err, 20);
+        }
+        String profileFilename = cmd.getOptionValue(profileOpt);
+        if (profileFilename != null) {
+            Path profilePath = dir.resolve(profileFilename);
+            try {
+                if (profileFilename.endsWith(".json")) {
+                    profiler.writeJson(profilePath);
+                } else {
+                    profiler.writeCollapsedStacks(profilePath);
+                }
+            } catch (IOException e) {
+                log.error("Unable to write profile: %s\n%s", profilePath, e.getMessage());
+            }
+        }
+        if (metrics != null) {
+            metrics.setStatus(result);
+            writeMetrics(metrics, metricsPath, log);
+        }
         return result;
     }
 
+    private static StatusCode runDaemon(CommandLine cmd, Log log) {
+        int port;
+        int workers = Runtime.getRuntime().availableProcessors();
+        try {
+            port = Integer.parseInt(cmd.getOptionValue(daemonOpt));
+            if (cmd.hasOption(jobsOpt)) {
+                workers = Integer.parseInt(cmd.getOptionValue(jobsOpt));
+            }
+        } catch (NumberFormatException e) {
+            log.error("The port and the number of jobs must be integers.");
+            return StatusCode.COULD_NOT_PARSE_OPTIONS;
+        }
+        if (port < 0 || port > 65535 || workers <= 0) {
+            log.error("Invalid port or number of jobs.");
+            return StatusCode.COULD_NOT_PARSE_OPTIONS;
+        }
+        Daemon daemon;
+        try {
+            daemon = new Daemon(Main::run, port, workers, Path.of(System.getProperty("user.home"), ".dbspec"));
+        } catch (IOException e) {
+            log.error("Unable to start the daemon: %s", e.getMessage());
+            return StatusCode.COULD_NOT_START_DAEMON;
+        }
+        try {
+            daemon.start();
+        } catch (IOException e) {
+            daemon.stop();
+            log.error("Unable to write the token file of the daemon: %s", e.getMessage());
+            return StatusCode.COULD_NOT_START_DAEMON;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+        if (log.getLevel() > Log.QUIET) {
+            System.err.printf("Listening on http://127.0.0.1:%d/run (token in %s)%n",
+                    daemon.getPort(), daemon.getTokenFile());
+        }
+        try {
+            daemon.awaitStop();
+        } catch (InterruptedException e) {
+            daemon.stop();
+        }
+        return StatusCode.OK;
+    }
+
+    private static synchronized void writeMetrics(Metrics metrics, Path path, Log log) {
+        try {
+            metrics.write(path);
+        } catch (IOException e) {
+            log.error("Unable to write metrics: %s\n%s", path, e.getMessage());
+        }
+    }
+
     public static final String DEFAULT_CONFIG_FILENAME = "dbspec.conf";
 
     public static Properties loadConfigFile(Path configPath) throws IOException {
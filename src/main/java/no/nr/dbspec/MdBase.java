@@ -1,16 +1,25 @@
 package no.nr.dbspec;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Metadata tree node. The children are also indexed by type and by type and name,
+ * so that looking them up does not depend on the number of children.
+ */
 public abstract class MdBase<T extends Enum<T>, D extends MdBase<T, D>> {
     private final T type;
     private final String name;
     private final String data;
     private final List<D> children;
+    private final Map<T, List<D>> childrenByType;
+    private final Map<T, Map<String, D>> childrenByName;
 
     /**
      * @param type Node type
@@ -22,6 +31,8 @@ public abstract class MdBase<T extends Enum<T>, D extends MdBase<T, D>> {
         this.name = name;
         this.data = data;
         this.children = new ArrayList<>();
+        this.childrenByType = new EnumMap<>(type.getDeclaringClass());
+        this.childrenByName = new EnumMap<>(type.getDeclaringClass());
     }
 
     public T getType() {
@@ -38,6 +49,12 @@ public abstract class MdBase<T extends Enum<T>, D extends MdBase<T, D>> {
 
     public void add(D child) {
         this.children.add(child);
+        T t = child.getType();
+        childrenByType.computeIfAbsent(t, x -> new ArrayList<>()).add(child);
+        if (child.getName() != null) {
+            // The first child with a given name is the one found.
+            childrenByName.computeIfAbsent(t, x -> new HashMap<>()).putIfAbsent(child.getName(), child);
+        }
     }
 
     public Stream<D> childStream() {
@@ -54,14 +71,13 @@ public abstract class MdBase<T extends Enum<T>, D extends MdBase<T, D>> {
     }
 
     public List<D> getChildren(T type) {
-        return childStream().filter((x) -> x.getType() == type).collect(Collectors.toList());
+        List<D> list = childrenByType.get(type);
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
     }
 
     public D getChild(T type, String name) {
-        Optional<D> found = childStream()
-                .filter(x -> x.getType() == type && x.getName().equals(name))
-                .findAny();
-        return found.orElse(null);
+        Map<String, D> map = childrenByName.get(type);
+        return map == null ? null : map.get(name);
     }
 
     public boolean hasChildren() {
@@ -0,0 +1,165 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing a run, which can be written as an OpenMetrics text file,
+ * e.g. for the textfile collector of the Prometheus node exporter.
+ * All metrics have the label spec=(name of the source file), so that several runs can be collected together.
+ * Thread-safe.
+ */
+public class Metrics {
+
+    // Upper bounds of the histogram buckets, in seconds
+    private static final double[] bounds = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300 };
+
+    private static class Histogram {
+        // The last bucket is +Inf.
+        final LongAdder[] buckets = new LongAdder[bounds.length + 1];
+        final LongAdder nanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < bounds.length && seconds > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            this.nanos.add(nanos);
+        }
+    }
+
+    private final String spec;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Histogram> sqlDurations = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> scriptDurations = new ConcurrentHashMap<>();
+    private final LongAdder loopRows = new LongAdder();
+    private final LongAdder siardBytes = new LongAdder();
+    private final LongAdder assertionsPassed = new LongAdder();
+    private final LongAdder assertionsFailed = new LongAdder();
+    private volatile StatusCode status;
+
+    public Metrics(String spec) {
+        this.spec = spec;
+    }
+
+    /**
+     * @param connection The URL of the connection, without parameters
+     */
+    public void observeSql(String connection, long nanos) {
+        sqlDurations.computeIfAbsent(connection, k -> new Histogram()).observe(nanos);
+    }
+
+    public void observeScript(String interpreter, long nanos) {
+        scriptDurations.computeIfAbsent(interpreter, k -> new Histogram()).observe(nanos);
+    }
+
+    public void addLoopRows(long rows) {
+        loopRows.add(rows);
+    }
+
+    public void addSiardBytes(long bytes) {
+        siardBytes.add(bytes);
+    }
+
+    public void addAssertion(boolean passed) {
+        (passed ? assertionsPassed : assertionsFailed).increment();
+    }
+
+    public void setStatus(StatusCode status) {
+        this.status = status;
+    }
+
+    /**
+     * Write the metrics to a file, replacing it atomically if possible,
+     * so that collectors never see a partially written file.
+     */
+    public void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            write(w);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void write(Writer w) throws IOException {
+        String specLabel = "spec=\"" + escape(spec) + "\"";
+
+        header(w, "dbspec_run_duration_seconds", "gauge", "Time since the run started.");
+        w.write("dbspec_run_duration_seconds{" + specLabel + "} " + seconds(System.nanoTime() - startNanos) + "\n");
+        StatusCode s = status;
+        if (s != null) {
+            header(w, "dbspec_exit_code", "gauge", "The exit status code of the run.");
+            w.write("dbspec_exit_code{" + specLabel + "} " + s.getValue() + "\n");
+        }
+
+        header(w, "dbspec_sql_duration_seconds", "histogram", "Time spent executing SQL, per connection.");
+        writeHistograms(w, "dbspec_sql_duration_seconds", specLabel, "connection", sqlDurations);
+        header(w, "dbspec_script_duration_seconds", "histogram", "Time spent running scripts, per interpreter.");
+        writeHistograms(w, "dbspec_script_duration_seconds", specLabel, "interpreter", scriptDurations);
+
+        header(w, "dbspec_loop_rows", "counter", "Rows iterated over by for-loops.");
+        w.write("dbspec_loop_rows_total{" + specLabel + "} " + loopRows.sum() + "\n");
+        header(w, "dbspec_siard_written_bytes", "counter", "Size of the SIARD files extracted.");
+        w.write("dbspec_siard_written_bytes_total{" + specLabel + "} " + siardBytes.sum() + "\n");
+        header(w, "dbspec_assertions", "counter", "Assertions checked, by result.");
+        w.write("dbspec_assertions_total{" + specLabel + ",result=\"passed\"} " + assertionsPassed.sum() + "\n");
+        w.write("dbspec_assertions_total{" + specLabel + ",result=\"failed\"} " + assertionsFailed.sum() + "\n");
+        w.write("# EOF\n");
+    }
+
+    private static void header(Writer w, String name, String type, String help) throws IOException {
+        w.write("# TYPE " + name + " " + type + "\n");
+        w.write("# HELP " + name + " " + help + "\n");
+        if (name.endsWith("_seconds")) {
+            w.write("# UNIT " + name + " seconds\n");
+        } else if (name.endsWith("_bytes")) {
+            w.write("# UNIT " + name + " bytes\n");
+        }
+    }
+
+    private static void writeHistograms(Writer w, String name, String specLabel, String key,
+                                        Map<String, Histogram> histograms) throws IOException {
+        // Sorted for stable output
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+            String labels = specLabel + "," + key + "=\"" + escape(e.getKey()) + "\"";
+            Histogram h = e.getValue();
+            long count = 0;
+            for (int i = 0; i < h.buckets.length; i++) {
+                count += h.buckets[i].sum();
+                String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                w.write(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + count + "\n");
+            }
+            w.write(name + "_count{" + labels + "} " + count + "\n");
+            w.write(name + "_sum{" + labels + "} " + seconds(h.nanos.sum()) + "\n");
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
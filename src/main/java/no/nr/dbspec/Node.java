@@ -0,0 +1,115 @@
+package no.nr.dbspec;
+
+import org.treesitter.TSNode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Plain Java counterpart of a Tree-sitter node, produced by {@link NodeCompiler}.
+ * Only named children and children with a field name are kept.
+ * The original TSNode is retained for error reporting only.
+ */
+public final class Node {
+
+    public enum Kind {
+        SOURCE_FILE, PARAMETERS, PARAMETER,
+        SET, SET_INTER, EXECUTE_USING, EXECUTE_SQL, SIARD_METADATA, SIARD_OUTPUT,
+        FOR_LOOP, LOG, ASSERT, CONDITIONAL,
+        CONNECTION, QUERY, SCRIPT_RESULT, RAW, RAW_CONTENT,
+        STRING, STRING_CONTENT, ESCAPE_SEQUENCE, INTERPOLATION, INTERPOLATION2,
+        VARIABLE_INSTANCE, DOT_EXPRESSION, INTEGER, IDENTIFIER, SHORT_DESCRIPTION, KEY_VALUE_PAIR,
+        SIARD_SCHEMA, SIARD_TYPE, SIARD_TABLE, SIARD_VIEW, SIARD_COLUMN, SIARD_FIELD, SIARD_KEY, SIARD_CHECK,
+        COMMAND_DECLARATION,
+        OTHER;
+
+        private static final Map<String, Kind> byType = new HashMap<>();
+
+        static {
+            for (Kind k : values()) {
+                byType.put(k.name().toLowerCase(), k);
+            }
+        }
+
+        static Kind of(String type) {
+            return byType.getOrDefault(type, OTHER);
+        }
+    }
+
+    public enum Field {
+        NAME("name"), VALUE("value"), DESCRIPTION("description"),
+        INTERPRETER("interpreter"), SCRIPT("script"),
+        URL("url"), PROPERTIES("properties"), CONNECTION("connection"), SQL("sql"), FILE("file"),
+        DBNAME("dbname"), ARCHIVER("archiver"), ARCHIVER_CONTACT("archiverContact"), DATA_OWNER("dataOwner"),
+        DATA_ORIGIN_TIMESPAN("dataOriginTimespan"), LOB_FOLDER("lobFolder"),
+        TITLE("title"), PARAMETERS("parameters"), BODY("body"),
+        VARIABLES("variables"), RESULT_SET("result_set"),
+        CONDITION("condition"), THEN("then"), ELSE("else"),
+        LEFT("left"), OPERATOR("operator"), RIGHT("right"), KEY("key");
+
+        private static final Map<String, Field> byName = new HashMap<>();
+
+        static {
+            for (Field f : values()) {
+                byName.put(f.fieldName, f);
+            }
+        }
+
+        final String fieldName;
+
+        Field(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        static Field of(String fieldName) {
+            return fieldName == null ? null : byName.get(fieldName);
+        }
+    }
+
+    private static final Node[] NO_NODES = new Node[0];
+    private static final int FIELD_COUNT = Field.values().length;
+
+    final Kind kind;
+    final TSNode ts;
+    final Node[] children;
+    /**
+     * The source text of nodes without named children (identifiers, operators, literals etc.), otherwise null.
+     */
+    final String text;
+    /**
+     * The variable slot of identifiers (cf. Symbols), otherwise -1.
+     */
+    final int slot;
+    /**
+     * The value of literals, computed when compiling: a BigInteger for integers,
+     * and a String for escape sequences and strings without interpolations. Otherwise null.
+     */
+    final Object constant;
+    private final Node[] fields;
+
+    Node(Kind kind, TSNode ts, Node[] children, Node[] fields, String text) {
+        this(kind, ts, children, fields, text, -1, null);
+    }
+
+    Node(Kind kind, TSNode ts, Node[] children, Node[] fields, String text, int slot, Object constant) {
+        this.kind = kind;
+        this.ts = ts;
+        this.children = children.length == 0 ? NO_NODES : children;
+        this.fields = fields;
+        this.text = text;
+        this.slot = slot;
+        this.constant = constant;
+    }
+
+    static Node[] newFieldArray() {
+        return new Node[FIELD_COUNT];
+    }
+
+    /**
+     * The child with the given field name, or null if there is none.
+     * If there are several such children, this is the last one.
+     */
+    Node get(Field field) {
+        return fields == null ? null : fields[field.ordinal()];
+    }
+}
@@ -0,0 +1,130 @@
+package no.nr.dbspec;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.treesitter.TSNode;
+import org.treesitter.TSPoint;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lowers a Tree-sitter syntax tree into {@link Node} objects.
+ * This is done once per source file so that the interpreter (and in particular
+ * loop bodies) never has to call into the native library or compare type strings.
+ * The text of each leaf is extracted once, and literals are evaluated once (cf. Node.constant).
+ * Equal short texts (e.g. keywords, operators and identifiers) share a single String.
+ */
+public class NodeCompiler {
+    // Longer texts (typically SQL and scripts) are rarely repeated, so we do not look for copies of them.
+    private static final int MAX_SHARED_LENGTH = 64;
+
+    private final String[] sourceLines;
+    private final String[] lineEndings;
+    private final Symbols symbols;
+    private final Map<String, String> sharedTexts = new HashMap<>();
+
+    public NodeCompiler(String[] sourceLines, String[] lineEndings) {
+        this(sourceLines, lineEndings, new Symbols());
+    }
+
+    /**
+     * @param symbols Where identifiers get their slots, cf. NormalContext.
+     */
+    public NodeCompiler(String[] sourceLines, String[] lineEndings, Symbols symbols) {
+        this.sourceLines = sourceLines;
+        this.lineEndings = lineEndings;
+        this.symbols = symbols;
+    }
+
+    public Node compile(TSNode n) {
+        int count = n.getChildCount();
+        List<Node> named = new ArrayList<>(count);
+        Node[] fields = null;
+        for (int i = 0; i < count; i++) {
+            TSNode c = n.getChild(i);
+            // NB. TSNode::getChildByFieldName does not work as expected.
+            // (It appears to perform a depth first search rather than sticking to depth 1.
+            // This also leads to shadowing.)
+            Node.Field field = Node.Field.of(n.getFieldNameForChild(i));
+            boolean isNamed = c.isNamed();
+            if (!isNamed && field == null) {
+                continue;
+            }
+            Node cn = compile(c);
+            if (isNamed) {
+                named.add(cn);
+            }
+            if (field != null) {
+                if (fields == null) {
+                    fields = Node.newFieldArray();
+                }
+                // When there is more than one such child, we generally want the last one.
+                fields[field.ordinal()] = cn;
+            }
+        }
+        String text = named.isEmpty() ? share(nodeString(n)) : null;
+        Node.Kind kind = Node.Kind.of(n.getType());
+        int slot = kind == Node.Kind.IDENTIFIER ? symbols.slot(text) : -1;
+        Node[] children = named.toArray(new Node[0]);
+        return new Node(kind, n, children, fields, text, slot, constant(kind, text, children));
+    }
+
+    private String share(String text) {
+        return text.length() > MAX_SHARED_LENGTH ? text : sharedTexts.computeIfAbsent(text, t -> t);
+    }
+
+    static Object constant(Node.Kind kind, String text, Node[] children) {
+        switch (kind) {
+            case INTEGER:
+                try {
+                    return new BigInteger(text);
+                } catch (NumberFormatException e) {
+                    // Reported when (and if) the literal is evaluated.
+                    return null;
+                }
+            case ESCAPE_SEQUENCE:
+                return StringEscapeUtils.unescapeJava(text);
+            case STRING:
+                StringBuilder sb = new StringBuilder();
+                for (Node c : children) {
+                    if (c.kind == Node.Kind.STRING_CONTENT) {
+                        sb.append(c.text);
+                    } else if (c.kind == Node.Kind.ESCAPE_SEQUENCE) {
+                        sb.append(c.constant);
+                    } else {
+                        return null;
+                    }
+                }
+                return sb.toString();
+            default:
+                return null;
+        }
+    }
+
+    private String nodeString(TSNode n) {
+        TSPoint sp = n.getStartPoint();
+        TSPoint ep = n.getEndPoint();
+        if (sp.getRow() == ep.getRow()) {
+            return safeSourceString(sp.getRow(), sp.getColumn(), ep.getColumn());
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = sp.getRow();
+        sb.append(sourceLines[i], sp.getColumn(), sourceLines[i].length());
+        sb.append(lineEndings[i++]);
+        while (i < ep.getRow()) {
+            sb.append(sourceLines[i]);
+            sb.append(lineEndings[i++]);
+        }
+        sb.append(safeSourceString(i, 0, ep.getColumn()));
+        return sb.toString();
+    }
+
+    // We must use this since 'to' may include a carriage return.
+    private String safeSourceString(int line, int from, int to) {
+        String str = sourceLines[line];
+        return str.substring(from, Math.min(str.length(), to));
+    }
+}
@@ -1,37 +1,126 @@
 package no.nr.dbspec;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiConsumer;
-import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Variables stored in a frame indexed by their slots (cf. Symbols).
+ * Values are set while holding the lock of the context, and the frame is replaced by a larger copy
+ * when it grows, so that values can be read without the lock while statements running at the same time
+ * use the context (cf. StatementScheduler).
+ * Names are looked up in the symbols, which are thread-safe as well.
+ */
 public class NormalContext implements Context {
-    Map<String,Object> bindings;
+    private final Symbols symbols;
+    private volatile AtomicReferenceArray<Object> values;
 
     public NormalContext() {
-        this.bindings = new HashMap<>();
+        this(new Symbols());
+    }
+
+    public NormalContext(Symbols symbols) {
+        this.symbols = symbols;
+        this.values = new AtomicReferenceArray<>(symbols.size());
+    }
+
+    /**
+     * A copy of another context, which can be changed independently.
+     */
+    public NormalContext(NormalContext other) {
+        this.symbols = other.symbols;
+        synchronized (other) {
+            this.values = copy(other.values, other.values.length());
+        }
+    }
+
+    public Symbols getSymbols() {
+        return symbols;
     }
 
     public void setValue(String name, Object value) {
-        bindings.put(name, value);
+        setValue(symbols.slot(name), value);
+    }
+
+    public void setValue(Node identifier, Object value) {
+        setValue(identifier.slot >= 0 ? identifier.slot : symbols.slot(identifier.text), value);
+    }
+
+    public synchronized void setValue(int slot, Object value) {
+        AtomicReferenceArray<Object> v = values;
+        if (slot < v.length()) {
+            v.set(slot, value);
+        } else {
+            v = copy(v, Math.max(slot + 1, symbols.size()));
+            v.set(slot, value);
+            values = v;
+        }
+    }
+
+    private static AtomicReferenceArray<Object> copy(AtomicReferenceArray<Object> values, int length) {
+        AtomicReferenceArray<Object> copy = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < values.length(); i++) {
+            copy.set(i, values.get(i));
+        }
+        return copy;
     }
 
     public void clearValue(String name) {
-        bindings.remove(name);
+        int slot = symbols.find(name);
+        if (slot >= 0) {
+            setValue(slot, null);
+        }
+    }
+
+    public void clearValue(Node identifier) {
+        setValue(identifier, null);
     }
 
     @Override
     public Object getValue(String name) {
-        return bindings.get(name);
+        int slot = symbols.find(name);
+        return slot < 0 ? null : getValue(slot);
+    }
+
+    @Override
+    public Object getValue(Node identifier) {
+        return identifier.slot >= 0 ? getValue(identifier.slot) : getValue(identifier.text);
+    }
+
+    public Object getValue(int slot) {
+        AtomicReferenceArray<Object> v = values;
+        return slot < v.length() ? v.get(slot) : null;
+    }
+
+    /**
+     * Whether the value (the same object) is the value of any variable.
+     */
+    public boolean containsValue(Object value) {
+        AtomicReferenceArray<Object> v = values;
+        for (int i = 0; i < v.length(); i++) {
+            if (v.get(i) == value) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String toString() {
-        return bindings.entrySet().stream()
-                .map(e -> String.format("%s='%s'", e.getKey(), e.getValue()))
+        AtomicReferenceArray<Object> v = values;
+        return IntStream.range(0, v.length())
+                .filter(i -> v.get(i) != null)
+                .mapToObj(i -> String.format("%s='%s'", symbols.name(i), v.get(i)))
                 .collect(Collectors.joining(", ", "[", "]"));
     }
 
     public void forEach(BiConsumer<String, Object> action) {
-        bindings.forEach((k, v) -> action.accept(k, getValue(k)));
+        AtomicReferenceArray<Object> v = values;
+        for (int i = 0; i < v.length(); i++) {
+            Object value = v.get(i);
+            if (value != null) {
+                action.accept(symbols.name(i), value);
+            }
+        }
     }
 }
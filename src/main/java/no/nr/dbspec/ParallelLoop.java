@@ -0,0 +1,187 @@
+package no.nr.dbspec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the iterations of a for-loop on a bounded pool of worker threads.
+ * Each iteration gets its own copy of the context, and each worker its own database connections,
+ * opened with the same parameters as those of the context.
+ * What the iterations write to System.out and System.err is passed on in iteration order.
+ * If an iteration fails, no more iterations are started, and when the running ones have finished,
+ * the failure of the first failing iteration is rethrown.
+ */
+public class ParallelLoop implements AutoCloseable {
+
+    public interface Body {
+        void run(NormalContext ctx);
+    }
+
+    private static class Iteration {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Throwable failure;
+    }
+
+    /**
+     * Replaces the connections of the loop's context by those of the current worker.
+     */
+    private class IterationContext extends NormalContext {
+        IterationContext(NormalContext parent) {
+            super(parent);
+        }
+
+        @Override
+        public Object getValue(int slot) {
+            Object value = super.getValue(slot);
+            return value instanceof Connection ? workerConnection((Connection) value) : value;
+        }
+    }
+
+    private final Dbms dbms;
+    private final Node loop;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<Iteration>> pending = new ArrayDeque<>();
+    private final ThreadLocal<Map<Connection, Connection>> workerConnections = ThreadLocal.withInitial(HashMap::new);
+    private final List<Connection> connections = Collections.synchronizedList(new ArrayList<>());
+    private Throwable failure;
+
+    /**
+     * @param loop Used when reporting that a connection could not be opened.
+     */
+    public ParallelLoop(Dbms dbms, Node loop, int workers) {
+        this.dbms = dbms;
+        this.loop = loop;
+        this.executor = Executors.newFixedThreadPool(workers);
+        // Enough to keep the workers busy while we wait for the output of the first iteration.
+        this.maxPending = 2 * workers;
+    }
+
+    /**
+     * Start an iteration with a copy of the given context.
+     * @return False if an earlier iteration has failed, in which case the loop should stop.
+     */
+    public boolean submit(NormalContext ctx, Body body) {
+        while (failure == null && pending.size() >= maxPending) {
+            finishFirst();
+        }
+        if (failure != null) {
+            return false;
+        }
+        NormalContext ic = new IterationContext(ctx);
+        pending.add(executor.submit(() -> run(ic, body)));
+        return true;
+    }
+
+    /**
+     * Wait for the iterations which have been started.
+     * If any of them failed, the failure of the first one is rethrown.
+     */
+    public void finish() {
+        while (!pending.isEmpty()) {
+            finishFirst();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Wait for the running iterations (ignoring failures), stop the workers and close their connections.
+     */
+    @Override
+    public void close() {
+        try {
+            while (!pending.isEmpty()) {
+                finishFirst();
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connections.forEach(dbms::closeConnection);
+            connections.clear();
+        }
+    }
+
+    private Iteration run(NormalContext ctx, Body body) {
+        Iteration it = new Iteration();
+        PrintStream out = new PrintStream(it.out, true, Charset.defaultCharset());
+        PrintStream err = new PrintStream(it.err, true, Charset.defaultCharset());
+        ThreadOutput.redirect(out, err);
+        try {
+            body.run(ctx);
+        } catch (RuntimeException | Error e) {
+            it.failure = e;
+        } finally {
+            out.flush();
+            err.flush();
+            ThreadOutput.restore();
+        }
+        return it;
+    }
+
+    private void finishFirst() {
+        Iteration it;
+        try {
+            it = pending.removeFirst().get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (failure != null) {
+            // This iteration would not have been run if the iterations had been run in sequence.
+            return;
+        }
+        byte[] out = it.out.toByteArray();
+        System.out.write(out, 0, out.length);
+        System.out.flush();
+        byte[] err = it.err.toByteArray();
+        System.err.write(err, 0, err.length);
+        System.err.flush();
+        failure = it.failure;
+    }
+
+    private Connection workerConnection(Connection c) {
+        Map<Connection, Connection> map = workerConnections.get();
+        Connection wc = map.get(c);
+        if (wc == null) {
+            if (map.containsValue(c)) {
+                // Already a connection of this worker, e.g. assigned to another variable.
+                return c;
+            }
+            try {
+                wc = dbms.cloneConnection(c);
+            } catch (SQLException e) {
+                throw new SqlFailure(loop, "Unable to open another connection for a worker: " + e.getMessage());
+            }
+            map.put(c, wc);
+            connections.add(wc);
+        }
+        return wc;
+    }
+}
@@ -0,0 +1,237 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the wall time, number of calls, rows and bytes of each statement of a source file.
+ * Statements in loop bodies are aggregated over the iterations, and the time of a statement
+ * includes the time of the statements nested in it.
+ * Rows are those iterated over by for-loops and those affected by Execute via,
+ * while bytes are those of scripts, their output, and SIARD files.
+ * The counters may be updated from several threads at once.
+ */
+public class Profiler {
+
+    private static final Set<Kind> statementKinds = EnumSet.of(
+            Kind.SET, Kind.SET_INTER, Kind.EXECUTE_USING, Kind.EXECUTE_SQL, Kind.SIARD_METADATA, Kind.SIARD_OUTPUT,
+            Kind.FOR_LOOP, Kind.LOG, Kind.ASSERT, Kind.CONDITIONAL);
+
+    private static class Stats {
+        final Node node;
+        final Stats parent;
+        final List<Stats> children = new ArrayList<>();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        Stats(Node node, Stats parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+
+        long selfNanos() {
+            long self = nanos.sum();
+            for (Stats c : children) {
+                self -= c.nanos.sum();
+            }
+            // Nested statements may have run in parallel.
+            return Math.max(0, self);
+        }
+    }
+
+    private final boolean enabled;
+    // Only modified by start(), so that lookups need no locking.
+    private volatile Map<Node, Stats> stats = new IdentityHashMap<>();
+    private final List<Stats> order = new ArrayList<>();
+    private String fileName = "";
+    private long startNanos;
+    private long endNanos;
+
+    public Profiler(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Prepare the counters for the statements of a source file.
+     */
+    public void start(Node root, Path file) {
+        if (!enabled) {
+            return;
+        }
+        Map<Node, Stats> map = new IdentityHashMap<>();
+        order.clear();
+        register(root, null, map);
+        fileName = file.getFileName().toString();
+        stats = map;
+        startNanos = System.nanoTime();
+        endNanos = 0;
+    }
+
+    public void finish() {
+        if (enabled) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    private void register(Node n, Stats parent, Map<Node, Stats> map) {
+        Stats s = parent;
+        if (statementKinds.contains(n.kind)) {
+            s = new Stats(n, parent);
+            if (parent != null) {
+                parent.children.add(s);
+            }
+            map.put(n, s);
+            order.add(s);
+        }
+        for (Node c : n.children) {
+            register(c, s, map);
+        }
+    }
+
+    /**
+     * @return The start time to pass to {@link #exit}.
+     */
+    public long enter() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void exit(Node n, long start) {
+        if (enabled) {
+            Stats s = stats.get(n);
+            if (s != null) {
+                s.nanos.add(System.nanoTime() - start);
+                s.calls.increment();
+            }
+        }
+    }
+
+    public void addRows(Node n, long rows) {
+        if (enabled) {
+            Stats s = stats.get(n);
+            if (s != null) {
+                s.rows.add(rows);
+            }
+        }
+    }
+
+    public void addBytes(Node n, long bytes) {
+        if (enabled) {
+            Stats s = stats.get(n);
+            if (s != null) {
+                s.bytes.add(bytes);
+            }
+        }
+    }
+
+    private static int line(Node n) {
+        return n.ts != null ? n.ts.getStartPoint().getRow() + 1 : 0;
+    }
+
+    private String label(Stats s) {
+        return fileName + ":" + line(s.node) + " " + s.node.kind.name().toLowerCase();
+    }
+
+    private String stack(Stats s) {
+        return s.parent == null ? label(s) : stack(s.parent) + ";" + label(s);
+    }
+
+    /**
+     * Print the statements which took the most time.
+     */
+    public void printReport(PrintStream out, int max) {
+        if (!enabled || order.isEmpty()) {
+            return;
+        }
+        List<Stats> sorted = new ArrayList<>(order);
+        sorted.sort(Comparator.comparingLong((Stats s) -> s.nanos.sum()).reversed());
+        long total = (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+        out.println();
+        out.println("Statements by time (including nested statements):");
+        out.printf("  %-30s %10s %7s %10s %10s %12s%n", "Statement", "Time (s)", "%", "Calls", "Rows", "Bytes");
+        for (Stats s : sorted.subList(0, Math.min(max, sorted.size()))) {
+            long nanos = s.nanos.sum();
+            if (nanos == 0) {
+                break;
+            }
+            out.printf("  %-30s %10.3f %6.1f%% %10d %10d %12d%n",
+                    label(s), nanos / 1e9, total > 0 ? nanos * 100.0 / total : 0.0,
+                    s.calls.sum(), s.rows.sum(), s.bytes.sum());
+        }
+    }
+
+    /**
+     * Write the time of each statement (excluding nested statements) in microseconds as "collapsed stacks",
+     * i.e. one line per statement with the enclosing statements separated by semicolons,
+     * as expected by flame graph tools.
+     */
+    public void writeCollapsedStacks(Path path) throws IOException {
+        try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Stats s : order) {
+                long micros = s.selfNanos() / 1000;
+                if (micros > 0) {
+                    w.write(stack(s) + " " + micros + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the counters of each statement as JSON.
+     */
+    public void writeJson(Path path) throws IOException {
+        try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            long total = (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+            w.write("{\n  \"file\": " + jsonString(fileName) + ",\n  \"totalNanos\": " + total
+                    + ",\n  \"statements\": [");
+            String separator = "\n";
+            for (Stats s : order) {
+                w.write(separator);
+                separator = ",\n";
+                w.write("    {\"line\": " + line(s.node)
+                        + ", \"kind\": " + jsonString(s.node.kind.name().toLowerCase())
+                        + ", \"stack\": " + jsonString(stack(s))
+                        + ", \"calls\": " + s.calls.sum()
+                        + ", \"nanos\": " + s.nanos.sum()
+                        + ", \"selfNanos\": " + s.selfNanos()
+                        + ", \"rows\": " + s.rows.sum()
+                        + ", \"bytes\": " + s.bytes.sum() + "}");
+            }
+            w.write("\n  ]\n}\n");
+        }
+    }
+
+    private static String jsonString(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,24 @@
+package no.nr.dbspec;
+
+import java.sql.Connection;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows resulting from a query, which may not have been fetched yet.
+ */
+public interface QueryRows extends Rows {
+    Connection getConnection();
+
+    Map.Entry<String, List<Object>> getQuery();
+
+    ResultSetMetaData getMetaData() throws SQLException;
+
+    /**
+     * Whether no rows have been fetched and nothing has been changed (as far as we know)
+     * since the query was executed, so that executing the query again should give the same rows.
+     */
+    boolean isPending();
+}
@@ -0,0 +1,107 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows which are appended once and then read any number of times.
+ * The rows are kept in memory until their (estimated) size exceeds a limit.
+ * Then they are moved to a {@link RowFile} together with the remaining rows,
+ * so that the memory usage is bounded regardless of the number of rows.
+ */
+public class RowBuffer implements Rows {
+
+    // Rough estimate of the memory used by a String object and the reference to it.
+    private static final int CELL_OVERHEAD = 48;
+
+    private final long memoryLimit;
+    private long memory = 0;
+    private List<String[]> rows = new ArrayList<>();
+    private RowFile file;
+    private RowFile.Cursor cursor;
+    private int pos = -1;
+    private boolean closing = false;
+
+    public RowBuffer(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public void append(String[] row) throws IOException {
+        for (String cell : row) {
+            memory += CELL_OVERHEAD + (cell == null ? 0 : 2L * cell.length());
+        }
+        if (file != null) {
+            file.append(row);
+        } else if (memory <= memoryLimit) {
+            rows.add(row);
+        } else {
+            file = new RowFile();
+            for (String[] r : rows) {
+                file.append(r);
+            }
+            rows = null;
+            file.append(row);
+        }
+    }
+
+    /**
+     * Must be called after the last row has been appended and before reading.
+     */
+    public void finish() throws IOException {
+        if (file != null) {
+            file.finish();
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return file != null ? file.getRowCount() : rows.size();
+    }
+
+    @Override
+    public boolean tryLockAndRewind() {
+        if (pos != -1) {
+            return false;
+        }
+        pos = 0;
+        cursor = file != null ? file.cursor() : null;
+        return true;
+    }
+
+    @Override
+    public void free() {
+        pos = -1;
+        cursor = null;
+        if (closing) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pos != -1) {
+            closing = true;
+            return;
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    @Override
+    public String[] next() throws SQLException {
+        if (file != null) {
+            if (cursor == null) {
+                cursor = file.cursor();
+            }
+            try {
+                return cursor.next();
+            } catch (IOException e) {
+                throw new SQLException("Unable to read buffered rows: " + e.getMessage(), e);
+            }
+        }
+        return pos < rows.size() ? rows.get(pos++) : null;
+    }
+}
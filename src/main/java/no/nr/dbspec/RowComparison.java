@@ -0,0 +1,321 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Compares row sets by first reading each side separately into a 128-bit fingerprint.
+ * The fingerprint either depends on the order of the rows, or it is the sum of the
+ * row hashes so that the rows are compared as multisets.
+ * Only if the fingerprints differ and the differences have been requested,
+ * do we make another pass to find (at most a given number of) mismatching rows.
+ * <p>
+ * If the row sets are compared as multisets and both sides are pending results of queries over
+ * the same connection (typically {@link DeferredRows}), we may first try to let the database compare them
+ * by grouping the union of the rows, so that only the number of mismatching rows (and the requested differences)
+ * are transferred. If the database does not accept the combined query, we fall back to comparing the rows ourselves.
+ */
+public class RowComparison {
+
+    // Rows per partition when looking for differences between unordered row sets
+    private static final long PARTITION_ROWS = 100_000;
+    private static final int MAX_PARTITIONS = 256;
+
+    private final Dbms dbms;
+    private final boolean ordered;
+    private final int maxDifferences;
+
+    public RowComparison(boolean ordered, int maxDifferences) {
+        this(null, ordered, maxDifferences);
+    }
+
+    /**
+     * @param dbms Used to compare query results in the database, or null if this should not be attempted.
+     *             Ignored for ordered comparisons.
+     */
+    public RowComparison(Dbms dbms, boolean ordered, int maxDifferences) {
+        this.dbms = dbms;
+        this.ordered = ordered;
+        this.maxDifferences = maxDifferences;
+    }
+
+    private class Fingerprint {
+        long h1 = 0;
+        long h2 = 0;
+        long rows = 0;
+
+        void add(String[] row) {
+            long r1 = rowHash(row, 0xcbf29ce484222325L, 0x100000001b3L);
+            long r2 = rowHash(row, 0x6a09e667f3bcc909L, 0x9e3779b97f4a7c15L);
+            if (ordered) {
+                h1 = h1 * 0xff51afd7ed558ccdL + r1;
+                h2 = h2 * 0xc4ceb9fe1a85ec53L + r2;
+            } else {
+                h1 += r1;
+                h2 += r2;
+            }
+            rows++;
+        }
+
+        boolean matches(Fingerprint other) {
+            return h1 == other.h1 && h2 == other.h2 && rows == other.rows;
+        }
+    }
+
+    /**
+     * @param differences If not null, descriptions of mismatching rows are added to this list.
+     * @return Whether the row sets are equal.
+     */
+    public boolean compare(Node n, Rows left, Rows right, List<String> differences) throws SQLException {
+        try {
+            if (canCompareInDatabase(left, right)) {
+                return compareInDatabase((QueryRows) left, (QueryRows) right, differences);
+            }
+        } catch (SQLException e) {
+            // E.g. the column types cannot be grouped. Compare the rows ourselves instead.
+        }
+        Fingerprint lf = fingerprint(n, left, "left");
+        Fingerprint rf = fingerprint(n, right, "right");
+        if (lf.matches(rf)) {
+            return true;
+        }
+        if (differences != null) {
+            if (lf.rows != rf.rows) {
+                differences.add(String.format("The left side has %d row%s, the right side %d.",
+                        lf.rows, Utils.pluralS((int) lf.rows), rf.rows));
+            }
+            if (ordered) {
+                orderedDifferences(n, left, right, differences);
+            } else {
+                unorderedDifferences(n, left, right, lf.rows + rf.rows, differences);
+            }
+        }
+        return false;
+    }
+
+    private boolean canCompareInDatabase(Rows left, Rows right) throws SQLException {
+        if (dbms == null || ordered || !(left instanceof QueryRows) || !(right instanceof QueryRows)) {
+            return false;
+        }
+        QueryRows lq = (QueryRows) left;
+        QueryRows rq = (QueryRows) right;
+        if (!lq.isPending() || !rq.isPending() || lq.getConnection() != rq.getConnection()) {
+            return false;
+        }
+        // Otherwise the database might consider e.g. 1 and 1.0 equal.
+        ResultSetMetaData lm = lq.getMetaData();
+        ResultSetMetaData rm = rq.getMetaData();
+        if (lm == null || rm == null || lm.getColumnCount() != rm.getColumnCount()) {
+            return false;
+        }
+        for (int i = 1; i <= lm.getColumnCount(); i++) {
+            if (lm.getColumnType(i) != rm.getColumnType(i)
+                    || lm.getPrecision(i) != rm.getPrecision(i)
+                    || lm.getScale(i) != rm.getScale(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean compareInDatabase(QueryRows left, QueryRows right, List<String> differences)
+            throws SQLException {
+        Connection c = left.getConnection();
+        int columnCount = left.getMetaData().getColumnCount();
+        long[] counts = dbms.countSqlQueryDifferences(c, left.getQuery(), right.getQuery(), columnCount);
+        if (counts[0] == 0 && counts[1] == 0) {
+            return true;
+        }
+        if (differences != null) {
+            // Not added directly, in case we have to fall back.
+            List<String> found = new ArrayList<>();
+            found.add(String.format("%d row%s only on the left side, %d only on the right side.",
+                    counts[0], Utils.pluralS((int) counts[0]), counts[1]));
+            ResultSet rs = dbms.executeSqlQueryDifferences(c, left.getQuery(), right.getQuery(), columnCount);
+            try {
+                while (rs.next()) {
+                    if (found.size() > maxDifferences) {
+                        found.add("...");
+                        break;
+                    }
+                    String[] row = new String[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        row[i] = rs.getString(i + 1);
+                    }
+                    found.add(onlyOn(rs.getLong(columnCount + 1), row));
+                }
+            } finally {
+                dbms.release(rs);
+            }
+            differences.addAll(found);
+        }
+        return false;
+    }
+
+    private Fingerprint fingerprint(Node n, Rows rows, String side) throws SQLException {
+        lock(n, rows, side);
+        try {
+            Fingerprint f = new Fingerprint();
+            String[] row;
+            while ((row = rows.next()) != null) {
+                f.add(row);
+            }
+            return f;
+        } finally {
+            rows.free();
+        }
+    }
+
+    private static void lock(Node n, Rows rows, String side) throws SQLException {
+        if (!rows.tryLockAndRewind()) {
+            throw new SemanticFailure(n, "Already iterating over the " + side + " side.");
+        }
+    }
+
+    private void orderedDifferences(Node n, Rows left, Rows right, List<String> differences) throws SQLException {
+        lock(n, left, "left");
+        try {
+            lock(n, right, "right");
+            try {
+                int count = 0;
+                for (long i = 1; ; i++) {
+                    String[] lr = left.next();
+                    String[] rr = right.next();
+                    if (lr == null && rr == null) {
+                        return;
+                    }
+                    if (lr == null || rr == null || !Arrays.equals(lr, rr)) {
+                        if (count == maxDifferences) {
+                            differences.add("...");
+                            return;
+                        }
+                        differences.add(String.format("Row %d: %s != %s", i, format(lr), format(rr)));
+                        count++;
+                    }
+                }
+            } finally {
+                right.free();
+            }
+        } finally {
+            left.free();
+        }
+    }
+
+    /**
+     * Distribute the rows of both sides among temporary files according to their hash,
+     * so that we only need to count the occurrences of the rows of a single partition at a time.
+     */
+    private void unorderedDifferences(Node n, Rows left, Rows right, long rows, List<String> differences)
+            throws SQLException {
+        int p = (int) Math.min(MAX_PARTITIONS, 1 + rows / PARTITION_ROWS);
+        RowFile[] lp = new RowFile[p];
+        RowFile[] rp = new RowFile[p];
+        try {
+            partition(n, left, "left", lp);
+            partition(n, right, "right", rp);
+            int count = 0;
+            for (int i = 0; i < p; i++) {
+                Map<List<String>, Integer> counts = new LinkedHashMap<>();
+                countRows(lp[i], counts, 1);
+                countRows(rp[i], counts, -1);
+                for (Map.Entry<List<String>, Integer> e : counts.entrySet()) {
+                    int c = e.getValue();
+                    if (c == 0) {
+                        continue;
+                    }
+                    if (count == maxDifferences) {
+                        differences.add("...");
+                        return;
+                    }
+                    differences.add(onlyOn(c, e.getKey().toArray(new String[0])));
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to partition rows: " + e.getMessage(), e);
+        } finally {
+            for (RowFile f : lp) {
+                if (f != null) {
+                    f.close();
+                }
+            }
+            for (RowFile f : rp) {
+                if (f != null) {
+                    f.close();
+                }
+            }
+        }
+    }
+
+    private static void partition(Node n, Rows rows, String side, RowFile[] files) throws SQLException, IOException {
+        int p = files.length;
+        for (int i = 0; i < p; i++) {
+            files[i] = new RowFile();
+        }
+        lock(n, rows, side);
+        try {
+            String[] row;
+            while ((row = rows.next()) != null) {
+                long h = rowHash(row, 0xcbf29ce484222325L, 0x100000001b3L);
+                files[(int) Long.remainderUnsigned(h, p)].append(row);
+            }
+        } finally {
+            rows.free();
+        }
+        for (RowFile f : files) {
+            f.finish();
+        }
+    }
+
+    private static void countRows(RowFile file, Map<List<String>, Integer> counts, int delta) throws IOException {
+        RowFile.Cursor cursor = file.cursor();
+        String[] row;
+        while ((row = cursor.next()) != null) {
+            counts.merge(Arrays.asList(row), delta, Integer::sum);
+        }
+    }
+
+    private static String onlyOn(long c, String[] row) {
+        return String.format("Only %s%s: %s",
+                c > 0 ? "left" : "right",
+                Math.abs(c) == 1 ? "" : " (" + Math.abs(c) + " times)",
+                format(row));
+    }
+
+    private static String format(String[] row) {
+        return row == null ? "(no row)" : Arrays.stream(row)
+                .map(x -> Utils.escape(x, true))
+                .collect(Collectors.joining(", ", "(", ")"));
+    }
+
+    static long rowHash(String[] row, long seed, long prime) {
+        long h = seed;
+        for (String cell : row) {
+            if (cell == null) {
+                h = (h ^ 0xff) * prime;
+            } else {
+                for (int i = 0; i < cell.length(); i++) {
+                    h = (h ^ cell.charAt(i)) * prime;
+                }
+                h = (h ^ cell.length()) * prime;
+            }
+        }
+        h = (h ^ row.length) * prime;
+        // Finalizer from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,193 @@
+package no.nr.dbspec;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file of rows in a compact binary format, read back through memory mappings.
+ * Each row is stored as: record length, column count, null bitmap, and then
+ * the UTF-8 encoded non-null cells, each prefixed by its length.
+ * All lengths and counts are variable-length unsigned integers (7 bits per byte).
+ * <p>
+ * The temporary file is deleted when the object is closed or garbage collected (and on most platforms
+ * immediately, with the open channel keeping it alive until then).
+ */
+public class RowFile {
+    private static final Cleaner cleaner = Cleaner.create();
+
+    // The size of the region mapped at a time (unless a single row is larger).
+    private static final int WINDOW_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+    private final Cleaner.Cleanable cleanable;
+    private OutputStream output;
+    private long length = 0;
+    private int rowCount = 0;
+    private byte[] record = new byte[256];
+
+    public RowFile() throws IOException {
+        Path path = Files.createTempFile("dbspec-rows-", ".bin");
+        channel = FileChannel.open(path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        FileChannel c = channel;
+        cleanable = cleaner.register(this, () -> {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Ignored since this is only cleaning up.
+            }
+        });
+        output = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void append(String[] row) throws IOException {
+        int n = row.length;
+        int pos = 0;
+        byte[][] cells = new byte[n][];
+        int bitmapLength = (n + 7) / 8;
+        int size = varIntLength(n) + bitmapLength;
+        for (int i = 0; i < n; i++) {
+            if (row[i] != null) {
+                cells[i] = row[i].getBytes(StandardCharsets.UTF_8);
+                size += varIntLength(cells[i].length) + cells[i].length;
+            }
+        }
+        ensureRecordCapacity(varIntLength(size) + size);
+        pos = putVarInt(record, pos, size);
+        pos = putVarInt(record, pos, n);
+        for (int i = 0; i < bitmapLength; i++) {
+            record[pos + i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            if (cells[i] == null) {
+                record[pos + i / 8] |= (byte) (1 << (i % 8));
+            }
+        }
+        pos += bitmapLength;
+        for (byte[] cell : cells) {
+            if (cell != null) {
+                pos = putVarInt(record, pos, cell.length);
+                System.arraycopy(cell, 0, record, pos, cell.length);
+                pos += cell.length;
+            }
+        }
+        output.write(record, 0, pos);
+        length += pos;
+        rowCount++;
+    }
+
+    /**
+     * Must be called after the last row has been appended and before reading.
+     */
+    public void finish() throws IOException {
+        if (output != null) {
+            output.flush();
+            output = null;
+            record = null;
+        }
+    }
+
+    /**
+     * Close and delete the file, after which the rows cannot be read.
+     */
+    public void close() {
+        cleanable.clean();
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Sequential reader. Several cursors may be used at the same time.
+     */
+    public class Cursor {
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        public String[] next() throws IOException {
+            if (output != null) {
+                throw new IllegalStateException("RowFile not finished.");
+            }
+            long pos = windowStart + (window == null ? 0 : window.position());
+            if (pos >= length) {
+                return null;
+            }
+            // A variable-length int occupies at most 5 bytes.
+            ensureMapped(pos, 5);
+            int size = getVarInt(window);
+            ensureMapped(windowStart + window.position(), size);
+            int n = getVarInt(window);
+            byte[] bitmap = new byte[(n + 7) / 8];
+            window.get(bitmap);
+            String[] row = new String[n];
+            for (int i = 0; i < n; i++) {
+                if ((bitmap[i / 8] & (1 << (i % 8))) == 0) {
+                    byte[] cell = new byte[getVarInt(window)];
+                    window.get(cell);
+                    row[i] = new String(cell, StandardCharsets.UTF_8);
+                }
+            }
+            return row;
+        }
+
+        private void ensureMapped(long pos, int needed) throws IOException {
+            if (window != null && pos + needed <= windowStart + window.limit()) {
+                return;
+            }
+            long size = Math.min(length - pos, Math.max(WINDOW_SIZE, needed));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            windowStart = pos;
+        }
+    }
+
+    private void ensureRecordCapacity(int capacity) {
+        if (record.length < capacity) {
+            record = new byte[Math.max(capacity, 2 * record.length)];
+        }
+    }
+
+    private static int varIntLength(int value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int putVarInt(byte[] bytes, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int getVarInt(MappedByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
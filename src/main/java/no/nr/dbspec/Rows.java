@@ -7,4 +7,11 @@ public interface Rows {
     boolean tryLockAndRewind() throws SQLException;
     void free();
     String[] next() throws SQLException;
+
+    /**
+     * Release what is held by the rows, e.g. a temporary file, after which they should not be used.
+     * If the rows are being iterated over, this happens when the iteration ends (cf. {@link #free()}).
+     */
+    default void close() {
+    }
 }
@@ -11,4 +11,8 @@ public class ScriptError extends Error {
         this.node = node;
         this.reason = reason;
     }
+
+    public ScriptError(Node node, String reason) {
+        this(node.ts, reason);
+    }
 }
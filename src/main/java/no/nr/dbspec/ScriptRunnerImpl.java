@@ -2,28 +2,69 @@ package no.nr.dbspec;
 
 import org.treesitter.TSNode;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFilePermissions;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
 
+/**
+ * Runs scripts by passing a script file to the interpreter, as if the script started with "#!interpreter".
+ * The script files are reused (rather than creating a new temporary file for every script)
+ * and deleted when the JVM exits.
+ * The output streams are read while the script is running, so that the script is never blocked by a full pipe.
+ * <p>
+ * Optionally, scripts for POSIX shells are run by a {@link ScriptSession} per interpreter,
+ * saving the cost of starting a new process for every script.
+ */
 public class ScriptRunnerImpl implements ScriptRunner {
-    private static final String EXEC_MARKER = "#!";
+    private static final Pattern tabPattern = Pattern.compile("\t");
+    private static final Pattern whitespacePattern = Pattern.compile("\\s+");
+
     private final TimingContext timingContext;
+    private final ConcurrentLinkedQueue<Path> scriptFiles = new ConcurrentLinkedQueue<>();
+    private final boolean useSessions;
+    // By interpreter command and directory. Each session runs one script at a time.
+    private final Map<List<String>, SessionSlot> sessions = new ConcurrentHashMap<>();
+
+    private static class SessionSlot {
+        volatile ScriptSession session;
+    }
 
     // From https://stackoverflow.com/a/21541615
     private static final boolean isPosix =
             FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
 
     public ScriptRunnerImpl(TimingContext timingContext) {
+        this(timingContext, false);
+    }
+
+    public ScriptRunnerImpl(TimingContext timingContext, boolean useSessions) {
         this.timingContext = timingContext;
+        this.useSessions = useSessions;
+    }
+
+    /**
+     * Stop the interpreter sessions.
+     */
+    public void close() {
+        for (SessionSlot slot : sessions.values()) {
+            ScriptSession session = slot.session;
+            if (session != null) {
+                session.close();
+            }
+        }
+        sessions.clear();
     }
 
     /**
@@ -31,49 +72,186 @@ public class ScriptRunnerImpl implements ScriptRunner {
      */
     @Override
     public String execute(TSNode n, String interpreter, String script, Path dir) {
+        String[] command = whitespacePattern.split(interpreter.trim());
+        if (useSessions && ScriptSession.supports(command)) {
+            return Utils.stripFinalNewline(runInSession(n, command, script, dir));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        run(n, interpreter, script, dir, stdout -> {
+            stdout.transferTo(output);
+            return null;
+        });
+        return Utils.stripFinalNewline(output.toString(Charset.defaultCharset()));
+    }
+
+    @Override
+    public Rows executeRows(TSNode n, String interpreter, String script, Path dir, long memoryLimit) {
+        if (useSessions && ScriptSession.supports(whitespacePattern.split(interpreter.trim()))) {
+            // The session output is not streamed.
+            return new StringRows(execute(n, interpreter, script, dir));
+        }
+        return run(n, interpreter, script, dir, stdout -> {
+            RowBuffer rows = new RowBuffer(memoryLimit);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stdout, Charset.defaultCharset()));
+            String line;
+            // Like StringRows of the stripped output, we ignore a final empty line.
+            boolean emptyLine = false;
+            while ((line = reader.readLine()) != null) {
+                if (emptyLine) {
+                    rows.append(new String[]{""});
+                }
+                emptyLine = line.isEmpty();
+                if (!emptyLine) {
+                    rows.append(tabPattern.split(line, -1));
+                }
+            }
+            rows.finish();
+            return rows;
+        });
+    }
+
+    interface OutputHandler<T> {
+        T handle(InputStream stdout) throws IOException;
+    }
+
+    /**
+     * If anything fails, the process is killed, and its script file is only reused once the process has exited.
+     */
+    <T> T run(TSNode n, String interpreter, String script, Path dir, OutputHandler<T> handler) {
         long startTime = System.nanoTime();
-        String result;
+        Events.Script event = new Events.Script();
+        event.begin();
+        Path scriptFile = null;
+        Process process = null;
         try {
-            // Create script and make it executable
-            // The suffix .ps1 for non-posix systems is a hack since PowerShell only accepts this suffix.
-            File tempFile = File.createTempFile("script-", isPosix ? "" : ".ps1");
-            tempFile.deleteOnExit();
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            if (isPosix) {
-                bos.write(EXEC_MARKER.getBytes());
-                bos.write(interpreter.getBytes());
-                bos.write(10); // LF
+            scriptFile = takeScriptFile();
+            Files.writeString(scriptFile, script, Charset.defaultCharset());
+            List<String> cmd = new ArrayList<>(List.of(whitespacePattern.split(interpreter.trim())));
+            cmd.add(scriptFile.toString());
+
+            process = new ProcessBuilder(cmd).directory(dir.toFile()).start();
+            Process p = process;
+            process.getOutputStream().close();
+            // A thread of its own, since the tasks of a shared pool might be waiting for this script.
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            Thread stderrReader = new Thread(() -> {
+                try (InputStream err = p.getErrorStream()) {
+                    err.transferTo(stderr);
+                } catch (IOException e) {
+                    // The error output is only used for the error message.
+                }
+            }, "script-stderr");
+            stderrReader.setDaemon(true);
+            stderrReader.start();
+            T result;
+            try (InputStream stdout = process.getInputStream()) {
+                result = handler.handle(stdout);
+            }
+            int exitValue = process.waitFor();
+            stderrReader.join();
+            if (exitValue != 0) {
+                String error = stderr.toString(Charset.defaultCharset());
+                throw new ScriptError(n, ("Exit value: " + exitValue + "\n" + error).trim());
             }
-            bos.write(script.getBytes());
-            bos.close();
-            fos.close();
-            if (isPosix) {
-                Files.setPosixFilePermissions(tempFile.toPath(), PosixFilePermissions.fromString("rwx------"));
+            commit(event, interpreter, script);
+            return result;
+        } catch (IOException e) {
+            throw new ScriptError(n, e.getMessage());
+        } catch (InterruptedException e) {
+            throw new ScriptError(n, "Interrupted");
+        } finally {
+            if (process != null && process.isAlive()) {
+                process.destroyForcibly();
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // The process might still be reading the file.
+                    scriptFile = null;
+                }
+            }
+            if (scriptFile != null) {
+                scriptFiles.add(scriptFile);
+            }
+            addShellTime(whitespacePattern.split(interpreter.trim())[0], System.nanoTime() - startTime);
+        }
+    }
+
+    // NB. Scripts are run one at a time by each session, while different sessions may run at the same time.
+    private String runInSession(TSNode n, String[] command, String script, Path dir) {
+        List<String> key = new ArrayList<>(List.of(command));
+        key.add(dir.toAbsolutePath().toString());
+        SessionSlot slot = sessions.computeIfAbsent(key, k -> new SessionSlot());
+        synchronized (slot) {
+            return runInSession(n, command, script, dir, slot);
+        }
+    }
+
+    private String runInSession(TSNode n, String[] command, String script, Path dir, SessionSlot slot) {
+        long startTime = System.nanoTime();
+        Events.Script event = new Events.Script();
+        event.begin();
+        Path scriptFile = null;
+        try {
+            ScriptSession session = slot.session;
+            if (session == null || !session.isAlive()) {
+                session = new ScriptSession(command, dir);
+                slot.session = session;
             }
-            List<String> cmd = new LinkedList<>();
-            if (!isPosix) {
-                cmd.addAll(Arrays.asList(interpreter.split(" ")));
+            scriptFile = takeScriptFile();
+            Files.writeString(scriptFile, script, Charset.defaultCharset());
+            ScriptSession.Result result;
+            try {
+                result = session.run(scriptFile);
+            } catch (IOException e) {
+                slot.session = null;
+                throw e;
             }
-            cmd.add(tempFile.getAbsolutePath());
-
-            // Execute script and collect output
-            Process process = new ProcessBuilder(cmd).directory(dir.toFile()).start();
-            process.waitFor();
-            if (process.exitValue() != 0) {
-                result = new String(process.getErrorStream().readAllBytes());
-                throw new ScriptError(n, ("Exit value: " + process.exitValue() + "\n" + result).trim());
+            if (result.exitValue != 0) {
+                throw new ScriptError(n, ("Exit value: " + result.exitValue + "\n" + result.stderr).trim());
             }
-            result = new String(process.getInputStream().readAllBytes());
+            commit(event, String.join(" ", command), script);
+            return result.stdout;
         } catch (IOException e) {
             throw new ScriptError(n, e.getMessage());
         } catch (InterruptedException e) {
             throw new ScriptError(n, "Interrupted");
         } finally {
-            if (timingContext != null) {
-                timingContext.addShellTime(System.nanoTime() - startTime);
+            if (scriptFile != null) {
+                scriptFiles.add(scriptFile);
             }
+            addShellTime(command[0], System.nanoTime() - startTime);
+        }
+    }
+
+    private void addShellTime(String program, long nanos) {
+        if (timingContext != null) {
+            timingContext.addShellTime(nanos);
+            Metrics metrics = timingContext.getMetrics();
+            if (metrics != null) {
+                // E.g. "python3" for "/usr/bin/python3 -u"
+                metrics.observeScript(program.substring(
+                        Math.max(program.lastIndexOf('/'), program.lastIndexOf('\\')) + 1), nanos);
+            }
+        }
+    }
+
+    private static void commit(Events.Script event, String interpreter, String script) {
+        if (event.shouldCommit()) {
+            event.location = Events.location();
+            event.interpreter = interpreter;
+            event.scriptBytes = script.length();
+            event.commit();
+        }
+    }
+
+    private Path takeScriptFile() throws IOException {
+        Path file = scriptFiles.poll();
+        if (file == null) {
+            // The suffix .ps1 for non-posix systems is a hack since PowerShell only accepts this suffix.
+            file = Files.createTempFile("script-", isPosix ? "" : ".ps1");
+            file.toFile().deleteOnExit();
         }
-        return Utils.stripFinalNewline(result);
+        return file;
     }
 }
@@ -0,0 +1,149 @@
+package no.nr.dbspec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A long-lived POSIX shell process which runs scripts on request.
+ * Each script is sourced in a subshell, so that it cannot affect later scripts,
+ * and a delimiter line (including the exit status on stdout) is written
+ * to both output streams afterwards. The streams are drained by separate threads.
+ */
+public class ScriptSession {
+    private static final List<String> shells = List.of("sh", "bash", "dash", "ksh", "zsh");
+
+    // Marks the end of output from the stream, e.g. if the process is gone.
+    private static final byte[] END = new byte[0];
+
+    private final Process process;
+    private final OutputStream stdin;
+    private final String delimiter = "dbspec-" + UUID.randomUUID();
+    private final BlockingQueue<byte[]> stdoutFrames = new LinkedBlockingQueue<>();
+    private final BlockingQueue<byte[]> stderrFrames = new LinkedBlockingQueue<>();
+
+    public static class Result {
+        final int exitValue;
+        final String stdout;
+        final String stderr;
+
+        Result(int exitValue, String stdout, String stderr) {
+            this.exitValue = exitValue;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    /**
+     * Whether the interpreter is a shell which can be used for sessions,
+     * e.g. "/bin/bash" or "/usr/bin/env sh" (but not "/bin/bash -e").
+     */
+    public static boolean supports(String[] command) {
+        if (command.length == 2 && command[0].endsWith("/env")) {
+            command = new String[]{command[1]};
+        }
+        if (command.length != 1) {
+            return false;
+        }
+        String name = Path.of(command[0]).getFileName().toString();
+        return shells.contains(name);
+    }
+
+    public ScriptSession(String[] command, Path dir) throws IOException {
+        process = new ProcessBuilder(command).directory(dir.toFile()).start();
+        stdin = process.getOutputStream();
+        startReader(process.getInputStream(), stdoutFrames);
+        startReader(process.getErrorStream(), stderrFrames);
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    public Result run(Path scriptFile) throws IOException, InterruptedException {
+        String quoted = "'" + scriptFile.toString().replace("'", "'\\''") + "'";
+        String command = "( . " + quoted + " ) </dev/null\n"
+                + "dbspec_status=$?\n"
+                + "printf '\\n%s:%d\\n' '" + delimiter + "' \"$dbspec_status\"\n"
+                + "printf '\\n%s\\n' '" + delimiter + "' >&2\n";
+        stdin.write(command.getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+        byte[] out = stdoutFrames.take();
+        byte[] err = stderrFrames.take();
+        if (out == END || err == END) {
+            close();
+            throw new IOException("The interpreter session ended unexpectedly.");
+        }
+        // The last line of the stdout frame is the exit status.
+        int statusStart = out.length;
+        while (statusStart > 0 && out[statusStart - 1] != '\n') {
+            statusStart--;
+        }
+        int exitValue = Integer.parseInt(new String(out, statusStart, out.length - statusStart, StandardCharsets.UTF_8));
+        // Also remove the newline written before the delimiter.
+        return new Result(exitValue,
+                new String(out, 0, Math.max(0, statusStart - 1), Charset.defaultCharset()),
+                new String(err, 0, Math.max(0, err.length - 1), Charset.defaultCharset()));
+    }
+
+    public void close() {
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            // Ignored since we are giving up the process anyway.
+        }
+        process.destroy();
+    }
+
+    /**
+     * Split the stream into frames at the delimiter lines.
+     * For stdout, the frame includes the exit status following the delimiter.
+     */
+    private void startReader(InputStream stream, BlockingQueue<byte[]> frames) {
+        byte[] marker = delimiter.getBytes(StandardCharsets.UTF_8);
+        Thread t = new Thread(() -> {
+            try (InputStream in = new BufferedInputStream(stream)) {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) != -1) {
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    byte[] l = line.toByteArray();
+                    line.reset();
+                    if (startsWith(l, marker)) {
+                        int skip = l.length > marker.length && l[marker.length] == ':' ? marker.length + 1 : l.length;
+                        frame.write(l, skip, l.length - skip);
+                        frames.add(frame.toByteArray());
+                        frame.reset();
+                    } else {
+                        frame.write(l);
+                        frame.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                // Treated as the end of the stream.
+            }
+            frames.add(END);
+        }, "dbspec-script-session");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        return bytes.length >= prefix.length
+                && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+    }
+}
@@ -10,4 +10,8 @@ public class SemanticFailure extends RuntimeException {
         this.node = node;
         this.reason = reason;
     }
+
+    public SemanticFailure(Node node, String reason) {
+        this(node.ts, reason);
+    }
 }
@@ -0,0 +1,173 @@
+package no.nr.dbspec;
+
+import java.util.Properties;
+
+/**
+ * Interpreter settings read from the configuration file.
+ * NB. The names contain a dot so that they cannot clash with DbSpec parameters.
+ */
+public class Settings {
+    /**
+     * Number of rows fetched from the database at a time by queries.
+     */
+    public static final String FETCH_SIZE = "dbspec.fetchSize";
+
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * The maximal number of idle prepared statements kept for reuse.
+     */
+    public static final String STATEMENT_CACHE_SIZE = "dbspec.statementCacheSize";
+
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 100;
+
+    /**
+     * The maximal number of executions sent to the database at a time by for-loops whose bodies
+     * only consist of Execute via statements. Consecutive executions of the same SQL are batched.
+     * NB. If an execution fails, some of the later ones in the same batch may already have been executed.
+     * With the default value 1, every statement is executed separately.
+     */
+    public static final String BATCH_SIZE = "dbspec.batchSize";
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    /**
+     * The number of iterations of a for-loop which may run at the same time.
+     * This only applies to loops whose bodies consist of Execute using, Execute via, Set (except of connections),
+     * Log, Assert and conditional statements. Each worker thread uses its own database connections,
+     * and variables set in the body are local to each iteration.
+     * Loops whose bodies read query results assigned before the loop are run in sequence.
+     * The output is written in the usual order, and the first failing iteration (in that order) is reported.
+     * NB. The iterations must be independent of each other, since they may run in any order.
+     */
+    public static final String LOOP_WORKERS = "dbspec.loopWorkers";
+
+    /**
+     * The number of top-level statements which may run at the same time.
+     * A statement waits for the earlier statements setting the variables it uses (or using the variables it sets),
+     * and for those using the same database connection, cf. DependencyAnalysis.
+     * Scripts run one at a time, and so do SIARD metadata and output statements. SIARD_WORKERS is then ignored.
+     * The output is written in the usual order, and the first failing statement (in that order) is reported.
+     * NB. Later statements which do not depend on the failing one may already have been run and taken effect.
+     * Scripts are assumed not to affect the databases or files used by statements running at the same time.
+     */
+    public static final String STATEMENT_WORKERS = "dbspec.statementWorkers";
+
+    /**
+     * Whether scripts for POSIX shells (e.g. "/bin/bash") should be run by a long-lived process
+     * per interpreter instead of starting a new process each time.
+     * Each script still runs in its own subshell, with stdin redirected from /dev/null.
+     */
+    public static final String SCRIPT_SESSIONS = "dbspec.scriptSessions";
+
+    /**
+     * Whether SIARD extraction should run in this JVM (if possible) rather than in a separate JVM.
+     */
+    public static final String SIARD_IN_PROCESS = "dbspec.siardInProcess";
+
+    /**
+     * The number of SIARD outputs which may be produced at the same time.
+     * Consecutive Output statements then run in parallel, while any other statement
+     * (except Log) waits until the outputs before it have been produced.
+     */
+    public static final String SIARD_WORKERS = "dbspec.siardWorkers";
+
+    /**
+     * Whether to keep an existing SIARD file if no tables have changed since it was created.
+     * This is decided using table fingerprints stored next to the SIARD file, which cover the columns,
+     * keys, comments and rows of tables and the definitions of views, but not e.g. check constraints,
+     * triggers, routines, types or users. Changes only to these are not noticed.
+     */
+    public static final String INCREMENTAL_SIARD = "dbspec.incrementalSiard";
+
+    /**
+     * Whether to adjust the metadata of SIARD files by rewriting header/metadata.xml directly,
+     * copying the other entries without decompressing them, instead of opening the file with the SIARD API.
+     * Off by default until the two have been compared on more SIARD files than those of the tests.
+     */
+    public static final String STREAM_SIARD_METADATA = "dbspec.streamSiardMetadata";
+
+    /**
+     * Number of bytes of query results kept in memory before they are moved to a temporary file.
+     */
+    public static final String ROWS_IN_MEMORY = "dbspec.rowsInMemory";
+
+    public static final long DEFAULT_ROWS_IN_MEMORY = 16L << 20;
+
+    /**
+     * Whether row sets should be compared as multisets, i.e. ignoring the order of the rows.
+     */
+    public static final String UNORDERED_ROW_COMPARISON = "dbspec.unorderedRowComparison";
+
+    /**
+     * The maximal number of mismatching rows reported when an assertion comparing row sets fails.
+     */
+    public static final String MAX_REPORTED_DIFFERENCES = "dbspec.maxReportedDifferences";
+
+    public static final int DEFAULT_MAX_REPORTED_DIFFERENCES = 10;
+
+    /**
+     * Whether to let the database compare the results of two queries over the same connection
+     * (if possible) instead of fetching the rows. Only used with {@link #UNORDERED_ROW_COMPARISON}.
+     * This applies to queries whose results are only used by an assertion following them,
+     * which are then not executed until the assertion.
+     * Off by default since the database may consider values equal which have different string representations,
+     * e.g. because of case-insensitive collations.
+     */
+    public static final String COMPARE_ROWS_IN_DATABASE = "dbspec.compareRowsInDatabase";
+
+    private final Properties config;
+    private final Log log;
+
+    public Settings(Properties config, Log log) {
+        this.config = config;
+        this.log = log;
+    }
+
+    /**
+     * None of the integer settings can be negative.
+     */
+    public int getInt(String name, int defaultValue) {
+        return getInt(name, defaultValue, 0, Integer.MAX_VALUE);
+    }
+
+    public int getInt(String name, int defaultValue, int min, int max) {
+        long value = getLong(name, defaultValue);
+        if (value < min || value > max) {
+            log.warn("Ignoring value of %s outside the range %d to %d: %d", name, min, max, value);
+            return defaultValue;
+        }
+        return (int) value;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = config.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.trim().toLowerCase()) {
+            case "true":
+            case "yes":
+                return true;
+            case "false":
+            case "no":
+                return false;
+            default:
+                log.warn("Ignoring invalid value of %s: '%s'", name, value);
+                return defaultValue;
+        }
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = config.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value of %s: '%s'", name, value);
+            return defaultValue;
+        }
+    }
+}
@@ -2,29 +2,62 @@ package no.nr.dbspec;
 
 import ch.admin.bar.siard2.cmd.SiardFromDb;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InaccessibleObjectException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.util.*;
 import java.util.function.Supplier;
 
+/**
+ * Runs SiardFromDb, by default in this JVM. If that is not possible, i.e. because classes cannot be loaded
+ * or because of missing --add-opens options, it is run in a separate JVM instead
+ * (which can also be chosen in the configuration). Other failures of the extraction are reported as they are.
+ * The output is passed on to the log (at debug level) as it is produced.
+ */
 public class SiardExtractorImpl implements SiardExtractor {
     private static final String SIARD_CMD_DRIVERS_PROPERTY = "ch.admin.bar.siard2.cmd.drivers";
     private static final String SIARD_CMD_LOG_PROPERTY = "java.util.logging.config.file";
+
+    // During in-process extraction, System.out is redirected per thread.
     private final Dbms dbms;
     private final Log log;
     private final Path dir;
     private final TimingContext timingContext;
+    private final boolean inProcess;
+    private final boolean incremental;
 
     public SiardExtractorImpl(Dbms dbms, Log log, Path dir, TimingContext timingContext) {
+        this(dbms, log, dir, timingContext, true, false);
+    }
+
+    /**
+     * @param incremental Whether to skip the extraction if no tables have changed since the existing
+     *                    SIARD file was created, cf. {@link TableFingerprints}.
+     */
+    public SiardExtractorImpl(Dbms dbms, Log log, Path dir, TimingContext timingContext,
+                              boolean inProcess, boolean incremental) {
         this.dbms = dbms;
         this.log = log;
         this.dir = dir;
         this.timingContext = timingContext;
+        this.inProcess = inProcess;
+        this.incremental = incremental;
     }
 
-    private List<String> fileProperty(String property, String resourceName) throws URISyntaxException {
+    private String fileProperty(String property, String resourceName) throws URISyntaxException {
         String value = System.getProperty(property);
         if (value == null) {
             URL url = getClass().getResource(resourceName);
@@ -32,6 +65,11 @@ public class SiardExtractorImpl implements SiardExtractor {
                 value = url.getPath();
             }
         }
+        return value;
+    }
+
+    private List<String> fileOption(String property, String resourceName) throws URISyntaxException {
+        String value = fileProperty(property, resourceName);
         return value == null ? Collections.emptyList()
                 : Collections.singletonList("-D" + property + "=" + value);
     }
@@ -40,63 +78,45 @@ public class SiardExtractorImpl implements SiardExtractor {
     public void transfer(Connection conn, Path path) throws SiardException {
         log.verbose("Creating/replacing %s...", path);
         long startTime = System.nanoTime();
+        Events.SiardTransfer event = new Events.SiardTransfer();
+        event.begin();
         try {
             String jdbcUrl = conn.getMetaData().getURL();
             String dbUser = dbms.connectionParameters.get(conn).getProperty("user");
             String dbPassword = dbms.connectionParameters.get(conn).getProperty("password");
-            List<String> cmd = new ArrayList<String>();
-
-            // https://stackoverflow.com/a/61860951
-            cmd.add(ProcessHandle.current().info().command().orElseThrow());
-            cmd.add("-cp");
-            cmd.add(System.getProperty("java.class.path"));
-
-            // Compatibility with JAVA 17 and later, cf. https://github.com/keeps/dbptk-developer
-            cmd.add("--add-opens"); cmd.add("java.xml/com.sun.org.apache.xerces.internal.jaxp=ALL-UNNAMED");
-            cmd.add("--add-opens"); cmd.add("java.xml/com.sun.org.apache.xalan.internal.xsltc.trax=ALL-UNNAMED");
-            cmd.add("-Dfile.encoding=UTF-8");
-
-            // SiardCmd config files
-            cmd.addAll(fileProperty(SIARD_CMD_DRIVERS_PROPERTY, "/etc/jdbcdrivers.properties"));
-            cmd.addAll(fileProperty(SIARD_CMD_LOG_PROPERTY, "/etc/logging.properties"));
-
-            cmd.add(SiardFromDb.class.getCanonicalName()); // Main class
-
-            // SiardFromDb options
-            cmd.add("-o");
-            cmd.add(String.format("-j=%s", jdbcUrl));
-            cmd.add(String.format("-u=%s", dbUser));
-            cmd.add(String.format("-p=%s", dbPassword));
-            cmd.add(String.format("-s=%s", path.toFile().getCanonicalPath()));
-            log.debug("SIARD command: %s", (Supplier<String>) () -> String.join(" ", cmd));
-
-            ProcessBuilder pb = new ProcessBuilder(cmd)
-                    .redirectErrorStream(true)
-                    .directory(dir.toFile());
-            boolean showOutput = log.getLevel() >= Log.DEBUG;
-            if (showOutput) {
-                log.debug("Output from SIARD command:");
-                pb.inheritIO();
-                // TODO: Ideally, we should also redirect standard output from this process to standard error (where
-                // we do the other debug logging) but that may not be worth the effort.
+            List<String> args = new ArrayList<>();
+            args.add("-o");
+            args.add(String.format("-j=%s", jdbcUrl));
+            args.add(String.format("-u=%s", dbUser));
+            args.add(String.format("-s=%s", path.toFile().getCanonicalPath()));
+            log.debug("SIARD arguments: %s", (Supplier<String>) () -> String.join(" ", args));
+
+            Properties fingerprints = null;
+            Path fingerprintsPath = TableFingerprints.pathFor(path);
+            if (incremental) {
+                fingerprints = TableFingerprints.compute(dbms, conn);
+                if (fingerprints == null) {
+                    log.verbose("Unable to compute table fingerprints with this DBMS. Extracting %s anyway.", path);
+                } else if (isUpToDate(path, fingerprintsPath, fingerprints)) {
+                    log.verbose("No tables have changed since %s was created. Keeping it.", path);
+                    return;
+                }
+                // In case the extraction fails
+                Files.deleteIfExists(fingerprintsPath);
             }
-            Process p = pb.start();
-            String output = new String(p.getInputStream().readAllBytes());
-            if (showOutput) {
-                log.newline();
+            extract(args, dbPassword);
+            if (fingerprints != null) {
+                TableFingerprints.store(fingerprintsPath, fingerprints);
             }
-            p.waitFor();
-            if (p.exitValue() != 0) {
-                StringBuilder sb = new StringBuilder();
-                sb.append("Exit value ").append(p.exitValue()).append(".");
-                if (!showOutput) {
-                    String ls = System.lineSeparator();
-                    String dashes = "-".repeat(72);
-                    sb.append(" Output:").append(ls).append(dashes).append(ls);
-                    sb.append(output);
-                    sb.append(ls).append(dashes);
-                }
-                throw new SiardException(sb.toString());
+            Metrics metrics = timingContext != null ? timingContext.getMetrics() : null;
+            if (metrics != null) {
+                metrics.addSiardBytes(Files.size(path));
+            }
+            if (event.shouldCommit()) {
+                event.location = Events.location();
+                event.path = path.toString();
+                event.bytes = Files.size(path);
+                event.commit();
             }
         } catch (SiardException e) {
             throw e;
@@ -109,4 +129,154 @@ public class SiardExtractorImpl implements SiardExtractor {
             }
         }
     }
+
+    private boolean isUpToDate(Path path, Path fingerprintsPath, Properties fingerprints) throws IOException {
+        Properties old = Files.exists(path) ? TableFingerprints.load(fingerprintsPath) : null;
+        if (old == null || !TableFingerprints.sameDatabase(old, fingerprints)) {
+            return false;
+        }
+        List<String> changed = TableFingerprints.changedTables(old, fingerprints);
+        if (!changed.isEmpty()) {
+            log.verbose("Tables changed since %s was created: %s", path, String.join(", ", changed));
+        }
+        return changed.isEmpty();
+    }
+
+    private void extract(List<String> args, String dbPassword) throws Exception {
+        if (inProcess) {
+            try {
+                transferInProcess(args, dbPassword);
+                return;
+            } catch (LinkageError | InaccessibleObjectException e) {
+                log.maybePrintStackTrace(e);
+                log.verbose("Unable to run SIARD extraction in this JVM (%s), using a separate JVM instead.", e);
+            }
+        }
+        transferForked(args, dbPassword);
+    }
+
+    private void transferInProcess(List<String> args, String dbPassword) throws Exception {
+        String drivers = fileProperty(SIARD_CMD_DRIVERS_PROPERTY, "/etc/jdbcdrivers.properties");
+        if (drivers != null) {
+            System.setProperty(SIARD_CMD_DRIVERS_PROPERTY, drivers);
+        }
+        List<String> siardArgs = new ArrayList<>(args);
+        siardArgs.add(String.format("-p=%s", dbPassword));
+        StringBuilder output = new StringBuilder();
+        int result;
+        RuntimeException error = null;
+        LineLogger lineLogger = new LineLogger(output);
+        PrintStream out = new PrintStream(lineLogger, false, Charset.defaultCharset());
+        ThreadOutput.redirect(out, null);
+        try {
+            result = new SiardFromDb(siardArgs.toArray(new String[0])).getReturn();
+        } catch (InaccessibleObjectException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            error = e;
+            result = -1;
+        } finally {
+            out.flush();
+            lineLogger.close();
+            ThreadOutput.restore();
+        }
+        if (error != null) {
+            log.maybePrintStackTrace(error);
+            throw new SiardException(failure("Failed: " + error, output));
+        }
+        if (result != 0) {
+            throw new SiardException(failure("Return value " + result + ".", output));
+        }
+    }
+
+    private void transferForked(List<String> args, String dbPassword) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+
+        // https://stackoverflow.com/a/61860951
+        cmd.add(ProcessHandle.current().info().command().orElseThrow());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+
+        // Compatibility with JAVA 17 and later, cf. https://github.com/keeps/dbptk-developer
+        cmd.add("--add-opens"); cmd.add("java.xml/com.sun.org.apache.xerces.internal.jaxp=ALL-UNNAMED");
+        cmd.add("--add-opens"); cmd.add("java.xml/com.sun.org.apache.xalan.internal.xsltc.trax=ALL-UNNAMED");
+        cmd.add("-Dfile.encoding=UTF-8");
+
+        // SiardCmd config files
+        cmd.addAll(fileOption(SIARD_CMD_DRIVERS_PROPERTY, "/etc/jdbcdrivers.properties"));
+        cmd.addAll(fileOption(SIARD_CMD_LOG_PROPERTY, "/etc/logging.properties"));
+
+        cmd.add(SiardFromDbLauncher.class.getCanonicalName()); // Main class
+        cmd.addAll(args);
+        log.debug("SIARD command: %s", (Supplier<String>) () -> String.join(" ", cmd));
+
+        Process p = new ProcessBuilder(cmd)
+                .redirectErrorStream(true)
+                .directory(dir.toFile())
+                .start();
+        try (Writer w = new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8)) {
+            w.write(String.valueOf(dbPassword));
+            w.write('\n');
+        }
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logLine(output, line);
+            }
+        }
+        p.waitFor();
+        if (p.exitValue() != 0) {
+            throw new SiardException(failure("Exit value " + p.exitValue() + ".", output));
+        }
+    }
+
+    private void logLine(StringBuilder output, String line) {
+        log.debugIndented(1, "%s", line);
+        output.append(line).append(System.lineSeparator());
+    }
+
+    // The output is only included if it has not already been logged.
+    private String failure(String status, StringBuilder output) {
+        StringBuilder sb = new StringBuilder(status);
+        if (log.getLevel() < Log.DEBUG) {
+            String ls = System.lineSeparator();
+            String dashes = "-".repeat(72);
+            sb.append(" Output:").append(ls).append(dashes).append(ls);
+            sb.append(output);
+            sb.append(dashes);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Passes each line written to the stream on to the log.
+     */
+    private class LineLogger extends OutputStream {
+        private final StringBuilder output;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineLogger(StringBuilder output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                String s = line.toString(Charset.defaultCharset());
+                logLine(output, s.endsWith("\r") ? s.substring(0, s.length() - 1) : s);
+                line.reset();
+            } else {
+                line.write(b);
+            }
+        }
+
+        // Log the last line even if it is incomplete.
+        @Override
+        public void close() {
+            if (line.size() > 0) {
+                write('\n');
+            }
+        }
+    }
 }
@@ -0,0 +1,24 @@
+package no.nr.dbspec;
+
+import ch.admin.bar.siard2.cmd.SiardFromDb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Main class for running SiardFromDb in a separate JVM.
+ * The database password is read from the first line of standard input,
+ * so that it is not visible on the command line.
+ */
+public class SiardFromDbLauncher {
+    public static void main(String[] args) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String password = reader.readLine();
+        String[] siardArgs = Arrays.copyOf(args, args.length + 1);
+        siardArgs[args.length] = "-p=" + password;
+        SiardFromDb.main(siardArgs);
+    }
+}
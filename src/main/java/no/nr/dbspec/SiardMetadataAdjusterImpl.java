@@ -5,11 +5,14 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.function.IntFunction;
 
 import no.nr.dbspec.SiardMd.SiardMdType;
 import ch.admin.bar.siard2.api.Archive;
@@ -22,28 +25,63 @@ import ch.admin.bar.siard2.api.MetaSchema;
 import ch.admin.bar.siard2.api.MetaTable;
 import ch.admin.bar.siard2.api.MetaType;
 import ch.admin.bar.siard2.api.MetaView;
-import ch.admin.bar.siard2.api.Schema;
 import ch.admin.bar.siard2.api.primary.ArchiveImpl;
 
 import static no.nr.dbspec.Utils.pluralS;
 
 public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
 
+    private static final String METADATA_ENTRY = "header/metadata.xml";
+
     private final Log log;
+    private final boolean streaming;
 
     public SiardMetadataAdjusterImpl(Log log) {
+        this(log, false);
+    }
+
+    /**
+     * @param streaming Whether to rewrite the metadata of the SIARD file directly (if possible)
+     *                  instead of opening it with the SIARD API.
+     */
+    public SiardMetadataAdjusterImpl(Log log, boolean streaming) {
         this.log = log;
+        this.streaming = streaming;
     }
 
     @Override
     public void updateMetadata(Path siardFilePath, SiardMd mdo, Connection connection) throws SiardException {
+        Events.SiardMetadata event = new Events.SiardMetadata();
+        event.begin();
+        updateMetadataOf(siardFilePath, mdo, connection);
+        if (event.shouldCommit()) {
+            event.location = Events.location();
+            event.path = siardFilePath.toString();
+            event.commit();
+        }
+    }
+
+    private void updateMetadataOf(Path siardFilePath, SiardMd mdo, Connection connection) throws SiardException {
+        Map<String, String> dbLevelMetadata = getDbLevelMetadata(mdo, connection);
+        if (streaming) {
+            try {
+                ZipEntryReplacer.replace(siardFilePath, METADATA_ENTRY,
+                        (in, out) -> new SiardMetadataRewriter(log, mdo, dbLevelMetadata).rewrite(in, out));
+                return;
+            } catch (ZipEntryReplacer.UnsupportedZipException e) {
+                log.verbose("Using the SIARD API to adjust the metadata since: %s", e.getMessage());
+            } catch (IOException e) {
+                log.maybePrintStackTrace(e);
+                throw new SiardException(e);
+            }
+        }
         Archive archive = ArchiveImpl.newInstance();
         try {
             File siardFile = siardFilePath.toFile();
             try {
                 archive.open(siardFile);
                 MetaData md = archive.getMetaData();
-                updateDbLevelMetadata(md, mdo, connection);
+                updateDbLevelMetadata(md, dbLevelMetadata);
                 updateArchiveMetadata(archive, mdo);
             } finally {
                 archive.close();
@@ -54,7 +92,11 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
         }
     }
 
-    private void updateDbLevelMetadata(MetaData md, SiardMd mdo, Connection connection) {
+    /**
+     * @return The values of the database level metadata fields to set, e.g. "dbname".
+     */
+    private Map<String, String> getDbLevelMetadata(SiardMd mdo, Connection connection) {
+        Map<String, String> res = new LinkedHashMap<>();
         String x = getInfoField(mdo, "dbname");
         if (x == null) {
             try {
@@ -63,28 +105,41 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
                 throw new SiardException(e.getMessage());
             }
         }
+        if (x != null) res.put("dbname", x);
+        for (String name : List.of("description", "archiver", "archiverContact", "dataOwner", "dataOriginTimespan")) {
+            if (null != (x = getInfoField(mdo, name))) res.put(name, x);
+        }
+        return res;
+    }
+
+    private void updateDbLevelMetadata(MetaData md, Map<String, String> values) {
         // SiardApi refuses to change this field:
         // try {
         //     md.setProducerApplication("DbSpec in combination with: " + md.getProducerApplication());
         // } catch (IOException e) {
         //     throw new SiardException(e.getMessage());
         // }
-        if (x != null) md.setDbName(x);
-        if (null != (x = getInfoField(mdo, "description"))) md.setDescription(x);
-        if (null != (x = getInfoField(mdo, "archiver"))) md.setArchiver(x);
-        if (null != (x = getInfoField(mdo, "archiverContact"))) md.setArchiverContact(x);
-        if (null != (x = getInfoField(mdo, "dataOwner"))) md.setDataOwner(x);
-        if (null != (x = getInfoField(mdo, "dataOriginTimespan"))) md.setDataOriginTimespan(x);
+        String x;
+        if (null != (x = values.get("dbname"))) md.setDbName(x);
+        if (null != (x = values.get("description"))) md.setDescription(x);
+        if (null != (x = values.get("archiver"))) md.setArchiver(x);
+        if (null != (x = values.get("archiverContact"))) md.setArchiverContact(x);
+        if (null != (x = values.get("dataOwner"))) md.setDataOwner(x);
+        if (null != (x = values.get("dataOriginTimespan"))) md.setDataOriginTimespan(x);
     }
 
-    private void updateArchiveMetadata(Archive archive, SiardMd mdo) {
+    /**
+     * The SIARD API looks up schemas, tables, columns etc. by name using linear search.
+     * Instead, we index each collection once, so that adjusting the metadata of wide schemas
+     * takes linear rather than quadratic time.
+     */
+    void updateArchiveMetadata(Archive archive, SiardMd mdo) {
+        Map<String, MetaSchema> all = index(archive.getSchemas(), i -> archive.getSchema(i).getMetaSchema(),
+                MetaSchema::getName);
         HashSet<String> schemas = new HashSet<>();
         for (SiardMd sObj : mdo.getChildren(SiardMdType.SCHEMA)) {
             String name = sObj.getName();
-            Schema schema =
-                    ensureNotNull("Schema", "", name, archive::getSchema);
-            MetaSchema metaSchema =
-                    ensureNotNull("Schema metadata", "", name, _n -> schema.getMetaSchema());
+            MetaSchema metaSchema = ensureNotNull("Schema", "", name, all::get);
             metaSchema.setDescription(sObj.getData());
             String prefix = name + ".";
             updateTableMetadata(metaSchema, sObj, prefix);
@@ -92,24 +147,18 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
             updateTypeMetadata(metaSchema, sObj, prefix);
             schemas.add(name);
         }
-        int nMissing = archive.getSchemas() - schemas.size();
-        if (nMissing > 0) {
-            String missing = IntStream
-                    .range(0, archive.getSchemas())
-                    .mapToObj(archive::getSchema)
-                    .map(Schema::getMetaSchema)
-                    .map(MetaSchema::getName)
-                    .filter(Predicate.not(schemas::contains))
-                    .collect(Collectors.joining(", "));
-            log.warn("Schema%s not mentioned in Metadata: %s", pluralS(nMissing), missing);
+        List<String> missing = notMentioned(all, schemas);
+        if (!missing.isEmpty()) {
+            log.warn("Schema%s not mentioned in Metadata: %s", pluralS(missing.size()), String.join(", ", missing));
         }
     }
 
     private void updateTableMetadata(MetaSchema schema, SiardMd mdo, String prefix) {
+        Map<String, MetaTable> all = index(schema.getMetaTables(), schema::getMetaTable, MetaTable::getName);
         HashSet<String> tables = new HashSet<>();
         for (SiardMd tObj : mdo.getChildren(SiardMdType.TABLE)) {
             String name = tObj.getName();
-            MetaTable table = ensureNotNull("Table", prefix, name, schema::getMetaTable);
+            MetaTable table = ensureNotNull("Table", prefix, name, all::get);
             table.setDescription(tObj.getData());
             String p2 = prefix + name + ".";
             updateTableColumnMetadata(table, tObj, p2);
@@ -117,47 +166,37 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
             updateCheckMetadata(table, tObj, p2);
             tables.add(name);
         }
-        int nMissing = schema.getMetaTables()- tables.size();
-        if (nMissing > 0) {
-            String missing = IntStream
-                    .range(0, schema.getMetaTables())
-                    .mapToObj(schema::getMetaTable)
-                    .map(MetaTable::getName)
-                    .filter(Predicate.not(tables::contains))
-                    .collect(Collectors.joining(", "));
+        List<String> missing = notMentioned(all, tables);
+        if (!missing.isEmpty()) {
             log.warn("Table%s of schema '%s' not mentioned in Metadata: %s",
-                    pluralS(nMissing), stripTrailingDots(prefix), missing);
+                    pluralS(missing.size()), stripTrailingDots(prefix), String.join(", ", missing));
         }
     }
 
     private void updateTableColumnMetadata(MetaTable table, SiardMd mdo, String prefix) {
+        Map<String, MetaColumn> all = index(table.getMetaColumns(), table::getMetaColumn, MetaColumn::getName);
         HashSet<String> columns = new HashSet<>();
         for (SiardMd cObj : mdo.getChildren(SiardMdType.COLUMN)) {
             String name = cObj.getName();
-            MetaColumn column =
-                    ensureNotNull("Column of " + table.getName(), prefix, name, table::getMetaColumn);
+            MetaColumn column = ensureNotNull("Column of " + table.getName(), prefix, name, all::get);
             column.setDescription(cObj.getData());
             updateFieldMetadata(column, cObj, prefix + name + ".");
             columns.add(name);
         }
-        int nMissing = table.getMetaColumns() - columns.size();
-        if (nMissing > 0) {
-            String missing = columns.isEmpty() ? "." : ": " + IntStream
-                    .range(0, table.getMetaColumns())
-                    .mapToObj(table::getMetaColumn)
-                    .map(MetaColumn::getName)
-                    .filter(Predicate.not(columns::contains))
-                    .collect(Collectors.joining(", "));
+        List<String> missing = notMentioned(all, columns);
+        if (!missing.isEmpty()) {
             log.warn("Column%s of table '%s' not mentioned in Metadata%s",
-                    pluralS(nMissing), stripTrailingDots(prefix), missing);
+                    pluralS(missing.size()), stripTrailingDots(prefix),
+                    columns.isEmpty() ? "." : ": " + String.join(", ", missing));
         }
     }
 
     private void updateViewMetadata(MetaSchema schema, SiardMd mdo, String prefix) {
+        Map<String, MetaView> all = index(schema.getMetaViews(), schema::getMetaView, MetaView::getName);
         HashSet<String> views = new HashSet<>();
         for (SiardMd vObj : mdo.getChildren(SiardMdType.VIEW)) {
             String name = vObj.getName();
-            MetaView view = ensureNotNull("View", prefix, name, schema::getMetaView);
+            MetaView view = ensureNotNull("View", prefix, name, all::get);
             view.setDescription(vObj.getData());
             String p2 = prefix + name + ".";
             updateViewColumnMetadata(view, vObj, p2);
@@ -167,31 +206,35 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
             }
             views.add(name);
         }
-        int nMissing = schema.getMetaViews() - views.size();
-        if (nMissing > 0) {
-            String missing = IntStream
-                    .range(0, schema.getMetaViews())
-                    .mapToObj(schema::getMetaView)
-                    .map(MetaView::getName)
-                    .filter(Predicate.not(views::contains))
-                    .collect(Collectors.joining(", "));
+        List<String> missing = notMentioned(all, views);
+        if (!missing.isEmpty()) {
             log.warn("View%s of schema '%s' not mentioned in Metadata: %s",
-                    pluralS(nMissing), stripTrailingDots(prefix), missing);
+                    pluralS(missing.size()), stripTrailingDots(prefix), String.join(", ", missing));
         }
     }
 
     private void updateViewColumnMetadata(MetaView view, SiardMd mdo, String prefix) {
-        for (SiardMd cObj : mdo.getChildren(SiardMdType.COLUMN)) {
+        List<SiardMd> cObjs = mdo.getChildren(SiardMdType.COLUMN);
+        if (cObjs.isEmpty()) {
+            return;
+        }
+        Map<String, MetaColumn> all = index(view.getMetaColumns(), view::getMetaColumn, MetaColumn::getName);
+        for (SiardMd cObj : cObjs) {
             String name = cObj.getName();
-            MetaColumn column = ensureNotNull("View column", prefix, name, view::getMetaColumn);
+            MetaColumn column = ensureNotNull("View column", prefix, name, all::get);
             column.setDescription(cObj.getData());
             updateFieldMetadata(column, cObj, prefix + name + ".");
         }
     }
 
     private void updateTypeMetadata(MetaSchema schema, SiardMd mdo, String prefix) {
-        for (SiardMd tObj : mdo.getChildren(SiardMdType.TYPE)) {
-            MetaType type = ensureNotNull("Type", prefix, tObj.getName(), schema::getMetaType);
+        List<SiardMd> tObjs = mdo.getChildren(SiardMdType.TYPE);
+        if (tObjs.isEmpty()) {
+            return;
+        }
+        Map<String, MetaType> all = index(schema.getMetaTypes(), schema::getMetaType, MetaType::getName);
+        for (SiardMd tObj : tObjs) {
+            MetaType type = ensureNotNull("Type", prefix, tObj.getName(), all::get);
             type.setDescription(tObj.getData());
         }
     }
@@ -211,19 +254,53 @@ public class SiardMetadataAdjusterImpl implements SiardMetadataAdjuster {
     }
 
     private void updateKeyMetadata(MetaTable table, SiardMd mdo, String prefix) {
-        for (SiardMd kObj : mdo.getChildren(SiardMdType.KEY)) {
-            MetaForeignKey key = ensureNotNull("Foreign key", prefix, kObj.getName(), table::getMetaForeignKey);
+        List<SiardMd> kObjs = mdo.getChildren(SiardMdType.KEY);
+        if (kObjs.isEmpty()) {
+            return;
+        }
+        Map<String, MetaForeignKey> all =
+                index(table.getMetaForeignKeys(), table::getMetaForeignKey, MetaForeignKey::getName);
+        for (SiardMd kObj : kObjs) {
+            MetaForeignKey key = ensureNotNull("Foreign key", prefix, kObj.getName(), all::get);
             key.setDescription(kObj.getData());
         }
     }
 
     private void updateCheckMetadata(MetaTable table, SiardMd mdo, String prefix) {
-        for (SiardMd cObj : mdo.getChildren(SiardMdType.KEY)) {
-            MetaCheckConstraint check = ensureNotNull("Check", prefix, cObj.getName(), table::getMetaCheckConstraint);
+        List<SiardMd> cObjs = mdo.getChildren(SiardMdType.CHECK);
+        if (cObjs.isEmpty()) {
+            return;
+        }
+        Map<String, MetaCheckConstraint> all =
+                index(table.getMetaCheckConstraints(), table::getMetaCheckConstraint, MetaCheckConstraint::getName);
+        for (SiardMd cObj : cObjs) {
+            MetaCheckConstraint check = ensureNotNull("Check", prefix, cObj.getName(), all::get);
             check.setDescription(cObj.getData());
         }
     }
 
+    /**
+     * @return The elements in their original order, by name. If several have the same name, the first one wins.
+     */
+    private static <T> Map<String, T> index(int count, IntFunction<T> getter, Function<T, String> name) {
+        Map<String, T> res = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            T x = getter.apply(i);
+            res.putIfAbsent(name.apply(x), x);
+        }
+        return res;
+    }
+
+    private static List<String> notMentioned(Map<String, ?> all, Set<String> mentioned) {
+        List<String> res = new ArrayList<>();
+        for (String name : all.keySet()) {
+            if (!mentioned.contains(name)) {
+                res.add(name);
+            }
+        }
+        return res;
+    }
+
     private static <T> T ensureNotNull(String kind, String prefix, String name, Function<String, T> getter) {
         T res = getter.apply(name);
         if (res == null) {
@@ -0,0 +1,432 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import no.nr.dbspec.SiardMd.SiardMdType;
+
+import static no.nr.dbspec.Utils.pluralS;
+
+/**
+ * Adjusts SIARD 2 metadata (header/metadata.xml) in a single streaming pass,
+ * with the same effect and warnings as adjusting it through the SIARD API.
+ * Whenever an element mentioned in the {@link SiardMd} tree has been identified (by its name),
+ * its description is replaced or inserted at the position required by the schema (metadata.xsd).
+ */
+class SiardMetadataRewriter {
+
+    private enum Kind {
+        ARCHIVE("siardArchive", SiardMdType.METADATA, null,
+                "dbname", "description", "archiver", "archiverContact", "dataOwner", "dataOriginTimespan",
+                "lobFolder", "producerApplication", "archivalDate", "messageDigest", "clientMachine",
+                "databaseProduct", "connection", "databaseUser", "schemas", "users", "roles", "privileges"),
+        SCHEMA("schema", SiardMdType.SCHEMA, "Schema",
+                "name", "folder", "description", "types", "routines", "tables", "views"),
+        TYPE("type", SiardMdType.TYPE, "Type",
+                "name", "category", "underSchema", "underType", "instantiable", "final", "base", "attributes",
+                "description"),
+        TABLE("table", SiardMdType.TABLE, "Table",
+                "name", "folder", "description", "columns", "primaryKey", "foreignKeys", "candidateKeys",
+                "checkConstraints", "triggers", "rows"),
+        VIEW("view", SiardMdType.VIEW, "View",
+                "name", "columns", "query", "queryOriginal", "description", "rows"),
+        COLUMN("column", SiardMdType.COLUMN, null,
+                "name", "lobFolder", "type", "typeOriginal", "typeSchema", "typeName", "nullable", "defaultValue",
+                "mimeType", "fields", "description"),
+        FIELD("field", SiardMdType.FIELD, "Column field",
+                "name", "lobFolder", "fields", "mimeType", "description"),
+        KEY("foreignKey", SiardMdType.KEY, "Foreign key",
+                "name", "referencedSchema", "referencedTable", "reference", "matchType", "deleteAction",
+                "updateAction", "description"),
+        CHECK("checkConstraint", SiardMdType.CHECK, "Check",
+                "name", "condition", "description");
+
+        final String element;
+        final SiardMdType mdType;
+        final String label;
+        final List<String> sequence;
+
+        Kind(String element, SiardMdType mdType, String label, String... sequence) {
+            this.element = element;
+            this.mdType = mdType;
+            this.label = label;
+            this.sequence = List.of(sequence);
+        }
+    }
+
+    // The element kinds we adjust inside each kind of element, by the name of the enclosing list element.
+    // The order determines the order in which missing elements are reported.
+    private static final Map<Kind, Map<String, Kind>> CONTAINERS = new EnumMap<>(Kind.class);
+
+    static {
+        CONTAINERS.put(Kind.ARCHIVE, Map.of("schemas", Kind.SCHEMA));
+        Map<String, Kind> schema = new LinkedHashMap<>();
+        schema.put("tables", Kind.TABLE);
+        schema.put("views", Kind.VIEW);
+        schema.put("types", Kind.TYPE);
+        CONTAINERS.put(Kind.SCHEMA, schema);
+        Map<String, Kind> table = new LinkedHashMap<>();
+        table.put("columns", Kind.COLUMN);
+        table.put("foreignKeys", Kind.KEY);
+        table.put("checkConstraints", Kind.CHECK);
+        CONTAINERS.put(Kind.TABLE, table);
+        CONTAINERS.put(Kind.VIEW, Map.of("columns", Kind.COLUMN));
+        CONTAINERS.put(Kind.COLUMN, Map.of("fields", Kind.FIELD));
+    }
+
+    private enum Mode {
+        OWNER, // An element which may be adjusted
+        CONTAINER, // A list of such elements
+        NAME, // The name of an OWNER
+        COPY, // Copied as it is
+        SKIP, // The content is replaced
+        DROP // Removed together with the content
+    }
+
+    private static class Frame {
+        final Mode mode;
+        final StartElement start;
+        final Kind kind;
+        final Frame owner; // The enclosing OWNER, if any
+        boolean resolved;
+        String name;
+        String path; // E.g. "s.t" for table t of schema s
+        SiardMd md;
+        Map<String, String> values; // Child elements to set, where null means that they should be removed
+        final Set<String> done = new HashSet<>();
+        String childIndent;
+        boolean hasQueryOriginal;
+        final Map<Kind, Set<String>> mentioned = new EnumMap<>(Kind.class);
+        final Map<Kind, List<String>> notMentioned = new EnumMap<>(Kind.class);
+        final StringBuilder text = new StringBuilder();
+
+        Frame(Mode mode, StartElement start, Kind kind, Frame owner) {
+            this.mode = mode;
+            this.start = start;
+            this.kind = kind;
+            this.owner = owner;
+        }
+
+        Set<String> mentioned(Kind k) {
+            return mentioned.computeIfAbsent(k, _k -> new HashSet<>());
+        }
+
+        List<String> notMentioned(Kind k) {
+            return notMentioned.computeIfAbsent(k, _k -> new ArrayList<>());
+        }
+    }
+
+    private final Log log;
+    private final SiardMd mdo;
+    private final Map<String, String> dbLevelMetadata;
+    private final XMLEventFactory events = XMLEventFactory.newInstance();
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private final StringBuilder space = new StringBuilder(); // Whitespace not yet written
+    private XMLEventWriter writer;
+
+    /**
+     * @param dbLevelMetadata Values of the child elements of siardArchive to set, e.g. "dbname".
+     */
+    SiardMetadataRewriter(Log log, SiardMd mdo, Map<String, String> dbLevelMetadata) {
+        this.log = log;
+        this.mdo = mdo;
+        this.dbLevelMetadata = dbLevelMetadata;
+    }
+
+    void rewrite(InputStream in, OutputStream out) throws IOException {
+        try {
+            XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+            inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+            while (reader.hasNext()) {
+                XMLEvent e = reader.nextEvent();
+                if (e.isStartElement()) {
+                    start(e.asStartElement());
+                } else if (e.isEndElement()) {
+                    end(e.asEndElement());
+                } else if (e.isCharacters()) {
+                    characters(e.asCharacters());
+                } else if (stack.isEmpty() || stack.peek().mode != Mode.SKIP && stack.peek().mode != Mode.DROP) {
+                    write(e);
+                }
+            }
+            writer.close();
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid SIARD metadata: " + e.getMessage(), e);
+        }
+    }
+
+    private void characters(Characters c) throws XMLStreamException {
+        Frame top = stack.peek();
+        if (top == null) {
+            return;
+        }
+        switch (top.mode) {
+            case SKIP:
+            case DROP:
+                return;
+            case NAME:
+                top.text.append(c.getData());
+                break;
+            case OWNER:
+            case CONTAINER:
+                if (c.isWhiteSpace()) {
+                    space.append(c.getData());
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        write(c);
+    }
+
+    private void start(StartElement s) throws XMLStreamException {
+        String local = s.getName().getLocalPart();
+        Frame top = stack.peek();
+        if (top == null) {
+            if (!local.equals(Kind.ARCHIVE.element)) {
+                throw new XMLStreamException("Unexpected root element: " + local);
+            }
+            Frame f = new Frame(Mode.OWNER, s, Kind.ARCHIVE, null);
+            f.resolved = true;
+            f.path = "";
+            f.md = mdo;
+            f.values = dbLevelMetadata;
+            stack.push(f);
+            write(s);
+            return;
+        }
+        switch (top.mode) {
+            case SKIP:
+            case DROP:
+                stack.push(new Frame(Mode.DROP, s, null, null));
+                return;
+            case CONTAINER:
+                stack.push(local.equals(top.kind.element)
+                        ? new Frame(Mode.OWNER, s, top.kind, top.owner)
+                        : new Frame(Mode.COPY, s, null, null));
+                write(s);
+                return;
+            case OWNER:
+                if (!top.resolved) {
+                    if (local.equals("name")) {
+                        stack.push(new Frame(Mode.NAME, s, null, top));
+                        write(s);
+                        return;
+                    }
+                    resolve(top, null);
+                }
+                if (top.md != null) {
+                    startChild(top, s);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        stack.push(new Frame(Mode.COPY, s, null, null));
+        write(s);
+    }
+
+    private void startChild(Frame f, StartElement s) throws XMLStreamException {
+        String local = s.getName().getLocalPart();
+        if (space.length() > 0) {
+            f.childIndent = space.toString();
+        }
+        int i = f.kind.sequence.indexOf(local);
+        if (i >= 0) {
+            insertMissing(f, i);
+        }
+        if (local.equals("queryOriginal")) {
+            f.hasQueryOriginal = true;
+        }
+        if (f.values.containsKey(local) && f.done.add(local)) {
+            String value = f.values.get(local);
+            if (value == null) {
+                space.setLength(0);
+                stack.push(new Frame(Mode.DROP, s, null, null));
+            } else {
+                write(s);
+                write(events.createCharacters(value));
+                stack.push(new Frame(Mode.SKIP, s, null, null));
+            }
+            return;
+        }
+        Kind k = CONTAINERS.getOrDefault(f.kind, Map.of()).get(local);
+        stack.push(k == null ? new Frame(Mode.COPY, s, null, null) : new Frame(Mode.CONTAINER, s, k, f));
+        write(s);
+    }
+
+    private void end(EndElement e) throws XMLStreamException {
+        Frame f = stack.pop();
+        switch (f.mode) {
+            case DROP:
+                return;
+            case NAME:
+                write(e);
+                resolve(f.owner, f.text.toString());
+                return;
+            case OWNER:
+                if (!f.resolved) {
+                    resolve(f, null);
+                }
+                if (f.md != null) {
+                    insertMissing(f, f.kind.sequence.size());
+                    finish(f);
+                }
+                break;
+            default:
+                break;
+        }
+        write(e);
+    }
+
+    /**
+     * Called when the name of an element has been read.
+     */
+    private void resolve(Frame f, String name) {
+        f.resolved = true;
+        f.name = name;
+        Frame owner = f.owner;
+        if (name == null || owner == null || owner.md == null) {
+            return;
+        }
+        SiardMd md = owner.md.getChild(f.kind.mdType, name);
+        if (md == null) {
+            owner.notMentioned(f.kind).add(name);
+        } else if (owner.mentioned(f.kind).add(name)) {
+            // If there are several elements with the same name, only the first one is adjusted.
+            f.md = md;
+            f.path = owner.path.isEmpty() ? name : owner.path + "." + name;
+            f.values = new HashMap<>();
+            f.values.put("description", md.getData());
+        }
+    }
+
+    /**
+     * Inserts the elements to be set which should precede the child element at the given position.
+     */
+    private void insertMissing(Frame f, int position) throws XMLStreamException {
+        boolean atEnd = position == f.kind.sequence.size();
+        for (int i = 0; i < position; i++) {
+            String local = f.kind.sequence.get(i);
+            if (!f.values.containsKey(local) || !f.done.add(local)) {
+                continue;
+            }
+            String value = f.values.get(local);
+            if (value == null) {
+                continue;
+            }
+            QName name = f.start.getName();
+            String indent = space.toString();
+            if (atEnd) {
+                // Before the whitespace preceding the end tag
+                if (f.childIndent != null) {
+                    writer.add(events.createCharacters(f.childIndent));
+                }
+            } else {
+                flushSpace();
+            }
+            writer.add(events.createStartElement(name.getPrefix(), name.getNamespaceURI(), local));
+            writer.add(events.createCharacters(value));
+            writer.add(events.createEndElement(name.getPrefix(), name.getNamespaceURI(), local));
+            if (!atEnd) {
+                space.append(indent);
+            }
+        }
+    }
+
+    /**
+     * Checks that every child of the SiardMd object was found, and warns about those which were not mentioned.
+     */
+    private void finish(Frame f) {
+        String prefix = f.path.isEmpty() ? "" : f.path + ".";
+        for (Kind k : CONTAINERS.getOrDefault(f.kind, Map.of()).values()) {
+            Set<String> mentioned = f.mentioned(k);
+            for (SiardMd child : f.md.getChildren(k.mdType)) {
+                if (!mentioned.contains(child.getName())) {
+                    String label = k != Kind.COLUMN ? k.label
+                            : f.kind == Kind.VIEW ? "View column"
+                            : "Column of " + f.name;
+                    throw new SiardException(label + " not found: " + prefix + child.getName());
+                }
+            }
+        }
+        switch (f.kind) {
+            case ARCHIVE:
+                List<String> schemas = f.notMentioned(Kind.SCHEMA);
+                if (!schemas.isEmpty()) {
+                    log.warn("Schema%s not mentioned in Metadata: %s",
+                            pluralS(schemas.size()), String.join(", ", schemas));
+                }
+                break;
+            case SCHEMA:
+                warnNotMentioned(f, Kind.TABLE, "Table");
+                warnNotMentioned(f, Kind.VIEW, "View");
+                break;
+            case TABLE:
+                List<String> columns = f.notMentioned(Kind.COLUMN);
+                if (!columns.isEmpty()) {
+                    log.warn("Column%s of table '%s' not mentioned in Metadata%s",
+                            pluralS(columns.size()), f.path,
+                            f.mentioned(Kind.COLUMN).isEmpty() ? "." : ": " + String.join(", ", columns));
+                }
+                break;
+            case VIEW:
+                if (!f.hasQueryOriginal) {
+                    // Since SIARD Suite does not extract the original queries for PostgreSQL (as of March 2025).
+                    log.warn("Original query missing for view '%s'.", f.path);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void warnNotMentioned(Frame schema, Kind k, String what) {
+        List<String> missing = schema.notMentioned(k);
+        if (!missing.isEmpty()) {
+            log.warn("%s%s of schema '%s' not mentioned in Metadata: %s",
+                    what, pluralS(missing.size()), schema.path, String.join(", ", missing));
+        }
+    }
+
+    private void flushSpace() throws XMLStreamException {
+        if (space.length() > 0) {
+            writer.add(events.createCharacters(space.toString()));
+            space.setLength(0);
+        }
+    }
+
+    private void write(XMLEvent e) throws XMLStreamException {
+        flushSpace();
+        writer.add(e);
+    }
+}
@@ -0,0 +1,88 @@
+package no.nr.dbspec;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects consecutive executions of the same SQL text over the same connection,
+ * so that they can be sent to the database as JDBC batches.
+ * The nodes are kept so that errors and affected rows are still attributed to the statement in question.
+ */
+public class SqlBatch {
+    private final Dbms dbms;
+    private final int batchSize;
+    private final Profiler profiler;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<List<Object>> argsList = new ArrayList<>();
+    private Connection connection;
+    private String sql;
+
+    public SqlBatch(Dbms dbms, int batchSize, Profiler profiler) {
+        this.dbms = dbms;
+        this.batchSize = batchSize;
+        this.profiler = profiler;
+    }
+
+    public void add(Node n, Connection connection, Map.Entry<String, List<Object>> pair) {
+        if (connection != this.connection || !pair.getKey().equals(sql)) {
+            flush();
+            this.connection = connection;
+            this.sql = pair.getKey();
+        }
+        nodes.add(n);
+        argsList.add(pair.getValue());
+        if (nodes.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Execute the collected statements, if any.
+     */
+    public void flush() {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        try {
+            addRows(dbms.executeSqlBatch(connection, sql, argsList));
+        } catch (BatchUpdateException e) {
+            addRows(e.getUpdateCounts());
+            throw new SqlFailure(nodes.get(failedIndex(e.getUpdateCounts(), nodes.size())), e.getMessage());
+        } catch (SQLException e) {
+            throw new SqlFailure(nodes.get(0), e.getMessage());
+        } finally {
+            nodes.clear();
+            argsList.clear();
+        }
+    }
+
+    private void addRows(int[] updateCounts) {
+        if (updateCounts == null) {
+            return;
+        }
+        for (int i = 0; i < updateCounts.length && i < nodes.size(); i++) {
+            // Statement.SUCCESS_NO_INFO and EXECUTE_FAILED are negative.
+            profiler.addRows(nodes.get(i), Math.max(0, updateCounts[i]));
+        }
+    }
+
+    /**
+     * Drivers either stop at the first failure or mark the failed statements.
+     */
+    static int failedIndex(int[] updateCounts, int size) {
+        if (updateCounts == null) {
+            return 0;
+        }
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+                return i;
+            }
+        }
+        return Math.min(updateCounts.length, size - 1);
+    }
+}
@@ -10,4 +10,8 @@ public class SqlFailure extends RuntimeException {
         this.node = node;
         this.reason = reason;
     }
+
+    public SqlFailure(Node node, String reason) {
+        this(node.ts, reason);
+    }
 }
@@ -0,0 +1,155 @@
+package no.nr.dbspec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs statements on a bounded pool of worker threads, each as soon as the statements it depends on
+ * (cf. DependencyAnalysis) have finished.
+ * What the statements write to System.out and System.err is passed on in statement order.
+ * If a statement fails, the statements after it are not started, and when the running ones have finished,
+ * the failure of the first failing statement is rethrown.
+ * The statements before it are still run, just as if the statements had been run in sequence.
+ * Later statements which had already been started have still been run, so their output is passed on as well.
+ */
+public class StatementScheduler implements AutoCloseable {
+
+    private static class Statement {
+        final Runnable body;
+        final List<Integer> successors = new ArrayList<>();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int waitingFor;
+        boolean finished;
+        Throwable failure;
+
+        Statement(Runnable body) {
+            this.body = body;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    public StatementScheduler(int workers) {
+        this.executor = Executors.newFixedThreadPool(workers);
+    }
+
+    /**
+     * @param predecessors For each statement, the indexes of the earlier statements it must wait for.
+     */
+    public void run(List<Runnable> statements, List<int[]> predecessors) {
+        List<Statement> all = new ArrayList<>();
+        for (Runnable s : statements) {
+            all.add(new Statement(s));
+        }
+        for (int i = 0; i < all.size(); i++) {
+            for (int p : predecessors.get(i)) {
+                if (p >= i) {
+                    throw new IllegalArgumentException("Statement " + i + " cannot wait for statement " + p);
+                }
+                all.get(p).successors.add(i);
+                all.get(i).waitingFor++;
+            }
+        }
+        BlockingQueue<Integer> done = new LinkedBlockingQueue<>();
+        int firstFailure = all.size();
+        int running = 0;
+        int printed = 0;
+        for (int i = 0; i < all.size(); i++) {
+            if (all.get(i).waitingFor == 0) {
+                start(all, i, done);
+                running++;
+            }
+        }
+        while (running > 0) {
+            int i = take(done);
+            running--;
+            Statement s = all.get(i);
+            s.finished = true;
+            if (s.failure != null && i < firstFailure) {
+                firstFailure = i;
+            }
+            for (int j : s.successors) {
+                Statement t = all.get(j);
+                if (--t.waitingFor == 0 && j < firstFailure) {
+                    start(all, j, done);
+                    running++;
+                }
+            }
+            while (printed < firstFailure && printed < all.size() && all.get(printed).finished) {
+                print(all.get(printed++));
+            }
+        }
+        if (firstFailure < all.size()) {
+            while (printed < all.size()) {
+                Statement s = all.get(printed++);
+                if (s.finished) {
+                    print(s);
+                }
+            }
+            Throwable failure = all.get(firstFailure).failure;
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Stop the workers.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void start(List<Statement> all, int i, BlockingQueue<Integer> done) {
+        Statement s = all.get(i);
+        executor.execute(() -> {
+            PrintStream out = new PrintStream(s.out, true, Charset.defaultCharset());
+            PrintStream err = new PrintStream(s.err, true, Charset.defaultCharset());
+            ThreadOutput.redirect(out, err);
+            try {
+                s.body.run();
+            } catch (RuntimeException | Error e) {
+                s.failure = e;
+            } finally {
+                out.flush();
+                err.flush();
+                ThreadOutput.restore();
+                done.add(i);
+            }
+        });
+    }
+
+    private static int take(BlockingQueue<Integer> done) {
+        try {
+            return done.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void print(Statement s) {
+        byte[] out = s.out.toByteArray();
+        System.out.write(out, 0, out.length);
+        System.out.flush();
+        byte[] err = s.err.toByteArray();
+        System.err.write(err, 0, err.length);
+        System.err.flush();
+    }
+}
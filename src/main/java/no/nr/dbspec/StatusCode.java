@@ -15,6 +15,7 @@ public enum StatusCode {
     DBSPEC_FILE_NOT_SPECIFIED(102),
     DBSPEC_FILE_NOT_FOUND(103),
     CONFIG_FILE_UNREADABLE(104), // It does, however, exist.
+    COULD_NOT_START_DAEMON(105),
     ;
 
     private final int value;
@@ -0,0 +1,203 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Field;
+import no.nr.dbspec.Node.Kind;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the queries and scripts whose results may be streamed, i.e. fetched using a forward-only result set,
+ * or read from the output of the script directly into rows (without holding it as a single string).
+ * This is the case if the variable they are assigned to is only used once in the whole source file,
+ * namely as the row set of a for-loop immediately following the assignment.
+ * Anything else (.size, comparisons, more loops) might need the rows more than once.
+ * Moreover, the body of the loop must not run scripts or use the connection of a query,
+ * since this could change the rows not fetched yet (or fail while the result set is open).
+ * <p>
+ * Similarly, it finds the queries whose execution may be deferred until their rows are needed (cf. DeferredRows),
+ * since the only use of the variable is as an operand of an assertion following the assignment, with only
+ * statements in between which do not change anything, i.e. Set statements (except of script results) and Log.
+ */
+public class StreamingAnalysis {
+
+    private enum Place {
+        ASSIGNMENT,
+        LOOP_HEADER,
+        ASSERTION,
+        OTHER
+    }
+
+    private static class Occurrence {
+        final Node node;
+        final Place place;
+
+        Occurrence(Node node, Place place) {
+            this.node = node;
+            this.place = place;
+        }
+    }
+
+    private final Map<String, List<Occurrence>> assignments = new HashMap<>();
+    private final Map<String, List<Occurrence>> uses = new HashMap<>();
+    // The for-loop statement immediately following the assignment of each result, if any
+    private final Map<Node, Node> followingLoops = new IdentityHashMap<>();
+    // The first statement following the assignment of each query which might change something, if any
+    private final Map<Node, Node> followingEffects = new IdentityHashMap<>();
+    // The variable instances which are operands of assertions
+    private final Set<Node> assertedOperands = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private StreamingAnalysis() {
+    }
+
+    /**
+     * @return The query and script result nodes (i.e. values of Set statements) whose results may be streamed.
+     */
+    public static Set<Node> streamableResults(Node root) {
+        StreamingAnalysis analysis = new StreamingAnalysis();
+        analysis.visit(root);
+        Set<Node> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        analysis.assignments.forEach((name, list) -> {
+            List<Occurrence> u = analysis.uses.getOrDefault(name, Collections.emptyList());
+            if (u.size() != 1 || u.get(0).place != Place.LOOP_HEADER) {
+                return;
+            }
+            Node loop = u.get(0).node;
+            for (Occurrence a : list) {
+                if (analysis.followingLoops.get(a.node) == loop && isSafeBody(loop.get(Field.BODY), a.node)) {
+                    result.add(a.node);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return The query nodes (i.e. values of Set statements) which may be executed when their rows are needed.
+     */
+    public static Set<Node> deferrableQueries(Node root) {
+        StreamingAnalysis analysis = new StreamingAnalysis();
+        analysis.visit(root);
+        Set<Node> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        analysis.assignments.forEach((name, list) -> {
+            List<Occurrence> u = analysis.uses.getOrDefault(name, Collections.emptyList());
+            if (u.size() != 1 || u.get(0).place != Place.ASSERTION) {
+                return;
+            }
+            for (Occurrence a : list) {
+                if (a.node.kind == Kind.QUERY && analysis.followingEffects.get(a.node) == u.get(0).node) {
+                    result.add(a.node);
+                }
+            }
+        });
+        return result;
+    }
+
+    // Whether the statement can be run between a query and its deferred execution.
+    private static boolean isInert(Node statement) {
+        switch (statement.kind) {
+            case LOG:
+            case SET_INTER:
+                return true;
+            case SET:
+                Node value = statement.get(Field.VALUE);
+                return value != null && value.kind != Kind.SCRIPT_RESULT;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSafeBody(Node body, Node result) {
+        if (body == null) {
+            return true;
+        }
+        Node connection = result.get(Field.CONNECTION);
+        return isSafe(body, connection == null ? null : connection.text);
+    }
+
+    private static boolean isSafe(Node n, String connection) {
+        switch (n.kind) {
+            case EXECUTE_USING:
+            case SCRIPT_RESULT:
+                return false;
+            case EXECUTE_SQL:
+            case QUERY:
+            case SIARD_METADATA:
+            case SIARD_OUTPUT:
+                Node c = n.get(Field.CONNECTION);
+                if (c == null || c.text == null || c.text.equals(connection)) {
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        for (Node c : n.children) {
+            if (!isSafe(c, connection)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void visit(Node n) {
+        switch (n.kind) {
+            case SET:
+                Node name = n.get(Field.NAME);
+                Node value = n.get(Field.VALUE);
+                if (name != null && value != null && (value.kind == Kind.QUERY || value.kind == Kind.SCRIPT_RESULT)) {
+                    record(assignments, name.text, value, Place.ASSIGNMENT);
+                }
+                break;
+            case ASSERT:
+                Node comparison = n.children.length > 0 ? n.children[0] : null;
+                for (Field f : new Field[] { Field.LEFT, Field.RIGHT }) {
+                    Node operand = comparison == null ? null : comparison.get(f);
+                    if (operand != null && operand.kind == Kind.VARIABLE_INSTANCE && operand.children.length > 0) {
+                        record(uses, operand.children[0].text, n, Place.ASSERTION);
+                        assertedOperands.add(operand);
+                    }
+                }
+                break;
+            case VARIABLE_INSTANCE:
+                if (n.children.length > 0 && !assertedOperands.contains(n)) {
+                    record(uses, n.children[0].text, n, Place.OTHER);
+                }
+                break;
+            case FOR_LOOP:
+                Node resultSet = n.get(Field.RESULT_SET);
+                if (resultSet != null) {
+                    record(uses, resultSet.text, n, Place.LOOP_HEADER);
+                }
+                break;
+            default:
+                break;
+        }
+        for (int i = 0; i < n.children.length; i++) {
+            Node c = n.children[i];
+            Node value = c.kind == Kind.SET ? c.get(Field.VALUE) : null;
+            if (value != null && i + 1 < n.children.length && n.children[i + 1].kind == Kind.FOR_LOOP) {
+                followingLoops.put(value, n.children[i + 1]);
+            }
+            if (value != null && value.kind == Kind.QUERY) {
+                int j = i + 1;
+                while (j < n.children.length && isInert(n.children[j])) {
+                    j++;
+                }
+                if (j < n.children.length) {
+                    followingEffects.put(value, n.children[j]);
+                }
+            }
+            visit(c);
+        }
+    }
+
+    private void record(Map<String, List<Occurrence>> map, String name, Node node, Place place) {
+        map.computeIfAbsent(name, x -> new ArrayList<>()).add(new Occurrence(node, place));
+    }
+}
@@ -0,0 +1,148 @@
+package no.nr.dbspec;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows of a result set, which are fetched as we iterate instead of being held in memory.
+ * Iterating more than once means executing the query again, and unless the rows have already been
+ * counted by iterating through all of them, the size is found using a separate COUNT query.
+ */
+public class StreamingRows implements QueryRows {
+
+    private final Dbms dbms;
+    private final Connection connection;
+    private final Map.Entry<String, List<Object>> query;
+    private ResultSet resultSet;
+    private ResultSetMetaData metaData;
+    private long changeCount;
+    private int columnCount;
+    private int size = -1;
+    private int rowsRead = 0;
+    private boolean fresh = true;
+    private boolean locked = false;
+    private boolean closing = false;
+
+    public StreamingRows(Dbms dbms, Connection connection, Map.Entry<String, List<Object>> query)
+            throws SQLException {
+        this.dbms = dbms;
+        this.connection = connection;
+        this.query = query;
+        execute();
+    }
+
+    @Override
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public Map.Entry<String, List<Object>> getQuery() {
+        return query;
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() {
+        return metaData;
+    }
+
+    @Override
+    public boolean isPending() {
+        return fresh && changeCount == dbms.getChangeCount();
+    }
+
+    private void execute() throws SQLException {
+        changeCount = dbms.getChangeCount();
+        resultSet = dbms.executeSqlQuery(connection, query);
+        metaData = resultSet.getMetaData();
+        columnCount = metaData.getColumnCount();
+        rowsRead = 0;
+        fresh = true;
+    }
+
+    private void closeResultSet() throws SQLException {
+        if (resultSet != null) {
+            dbms.release(resultSet);
+            resultSet = null;
+        }
+    }
+
+    @Override
+    public int getSize() throws SQLException {
+        if (size == -1) {
+            try {
+                size = dbms.countSqlQuery(connection, query);
+            } catch (SQLException e) {
+                // Some DBMSs do not accept every query as a subquery, e.g. because of ORDER BY.
+                if (!tryLockAndRewind()) {
+                    throw e;
+                }
+                try {
+                    while (next() != null) {
+                        // Counting
+                    }
+                } finally {
+                    free();
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public boolean tryLockAndRewind() throws SQLException {
+        if (locked) {
+            return false;
+        }
+        if (!fresh) {
+            closeResultSet();
+            execute();
+        }
+        fresh = false;
+        locked = true;
+        return true;
+    }
+
+    @Override
+    public void free() {
+        locked = false;
+        if (closing) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (locked) {
+            closing = true;
+            return;
+        }
+        try {
+            closeResultSet();
+        } catch (SQLException e) {
+            // Ignored since we are done with the rows anyway.
+        }
+    }
+
+    @Override
+    public String[] next() throws SQLException {
+        if (resultSet == null) {
+            return null;
+        }
+        if (resultSet.next()) {
+            String[] row = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = resultSet.getString(i + 1);
+            }
+            rowsRead++;
+            return row;
+        }
+        size = rowsRead;
+        closeResultSet();
+        return null;
+    }
+}
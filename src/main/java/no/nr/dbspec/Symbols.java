@@ -0,0 +1,45 @@
+package no.nr.dbspec;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the variable names of a source file, so that contexts can keep the values of variables
+ * in arrays indexed by these numbers (slots) instead of looking them up by name.
+ * Identifiers get their slots when the source file is compiled (cf. NodeCompiler),
+ * while other names are added when they are first used.
+ */
+public class Symbols {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * @return The slot of the given name, which is added if necessary.
+     */
+    public synchronized int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(name, slot);
+            names.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     * @return The slot of the given name, or -1 if it has none.
+     */
+    public synchronized int find(String name) {
+        return slots.getOrDefault(name, -1);
+    }
+
+    public synchronized String name(int slot) {
+        return names.get(slot);
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+}
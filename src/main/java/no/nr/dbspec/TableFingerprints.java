@@ -0,0 +1,252 @@
+package no.nr.dbspec;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Fingerprints of the tables and views of a database, used to find out whether a SIARD file is still up to date.
+ * The fingerprint of a table consists of its columns, primary key, foreign keys, unique indexes and comments,
+ * the number of rows and a checksum of the rows which does not depend on their order.
+ * The checksum is computed by the database, so that the rows are not transferred.
+ * The fingerprint of a view consists of its columns, comments and definition.
+ * Other objects (e.g. check constraints, triggers, routines, types and users) are not covered.
+ * For other DBMSs than those known here, there are no fingerprints.
+ * The URL of the database is only stored as a hash, since it might contain a password.
+ */
+public class TableFingerprints {
+    private static final String URL_KEY = "url";
+
+    // Some drivers (e.g. H2) report these as ordinary tables.
+    private static final Set<String> systemSchemas = Set.of("information_schema", "pg_catalog", "sys");
+
+    private TableFingerprints() {
+    }
+
+    public static Path pathFor(Path siardFile) {
+        return siardFile.resolveSibling(siardFile.getFileName() + ".fingerprints");
+    }
+
+    /**
+     * @return The fingerprints, or null if we do not know how to let this DBMS compute checksums.
+     */
+    public static Properties compute(Dbms dbms, Connection connection) throws SQLException {
+        DatabaseMetaData md = connection.getMetaData();
+        String dialect = dialect(md.getDatabaseProductName());
+        if (dialect == null) {
+            return null;
+        }
+        Properties fingerprints = new Properties();
+        fingerprints.setProperty(URL_KEY, sha256(md.getURL()));
+        String quote = md.getIdentifierQuoteString().trim();
+        List<String[]> tables = new ArrayList<>();
+        try (ResultSet rs = md.getTables(null, null, "%", new String[]{"TABLE", "VIEW"})) {
+            while (rs.next()) {
+                String schema = rs.getString("TABLE_SCHEM");
+                if (schema == null || !systemSchemas.contains(schema.toLowerCase())) {
+                    tables.add(new String[]{schema, rs.getString("TABLE_NAME"), rs.getString("TABLE_CAT"),
+                            rs.getString("TABLE_TYPE"), rs.getString("REMARKS")});
+                }
+            }
+        }
+        for (String[] t : tables) {
+            String name = (t[0] == null ? "" : quote + t[0] + quote + ".") + quote + t[1] + quote;
+            boolean isView = t[3].toUpperCase(Locale.ROOT).contains("VIEW");
+            List<String> columns = new ArrayList<>();
+            String signature = structure(md, t[0], t[1], t[4], isView, quote, columns);
+            // MySQL reports databases as catalogs.
+            String contents = isView
+                    ? viewDefinition(dbms, connection, t[0] != null ? t[0] : t[2], t[1])
+                    : rows(dbms, connection, dialect, name, columns);
+            fingerprints.setProperty("table." + name, signature + " " + contents);
+        }
+        return fingerprints;
+    }
+
+    static String dialect(String productName) {
+        String product = productName.toLowerCase(Locale.ROOT);
+        if (product.contains("postgresql")) {
+            return "postgresql";
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return "mysql";
+        } else if (product.equals("h2")) {
+            return "h2";
+        }
+        return null;
+    }
+
+    /**
+     * @param names The (quoted) names of the columns are added to this list.
+     * @return A hash of the columns, keys and comments.
+     */
+    private static String structure(DatabaseMetaData md, String schema, String table, String remarks,
+                                     boolean isView, String quote, List<String> names) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(remarks).append('\n');
+        try (ResultSet rs = md.getColumns(null, schema, table, "%")) {
+            while (rs.next()) {
+                String name = rs.getString("COLUMN_NAME");
+                names.add(quote + name + quote);
+                sb.append(name).append(':').append(rs.getString("TYPE_NAME"))
+                        .append('(').append(rs.getInt("COLUMN_SIZE")).append(')')
+                        .append(' ').append(rs.getString("IS_NULLABLE"))
+                        .append(' ').append(rs.getString("REMARKS")).append('\n');
+            }
+        }
+        if (!isView) {
+            try (ResultSet rs = md.getPrimaryKeys(null, schema, table)) {
+                while (rs.next()) {
+                    sb.append("pk ").append(rs.getString("COLUMN_NAME")).append(' ').append(rs.getInt("KEY_SEQ"))
+                            .append('\n');
+                }
+            }
+            try (ResultSet rs = md.getImportedKeys(null, schema, table)) {
+                while (rs.next()) {
+                    sb.append("fk ").append(rs.getString("FK_NAME"))
+                            .append(' ').append(rs.getString("FKCOLUMN_NAME"))
+                            .append(' ').append(rs.getString("PKTABLE_SCHEM"))
+                            .append(' ').append(rs.getString("PKTABLE_NAME"))
+                            .append(' ').append(rs.getString("PKCOLUMN_NAME"))
+                            .append(' ').append(rs.getShort("UPDATE_RULE"))
+                            .append(' ').append(rs.getShort("DELETE_RULE")).append('\n');
+                }
+            }
+            try (ResultSet rs = md.getIndexInfo(null, schema, table, true, true)) {
+                while (rs.next()) {
+                    if (rs.getString("COLUMN_NAME") != null) {
+                        sb.append("unique ").append(rs.getString("INDEX_NAME"))
+                                .append(' ').append(rs.getString("COLUMN_NAME")).append('\n');
+                    }
+                }
+            }
+        }
+        return hash(sb.toString());
+    }
+
+    /**
+     * @return A hash of the definition of the view, as stored by the database.
+     */
+    private static String viewDefinition(Dbms dbms, Connection connection, String schema, String view)
+            throws SQLException {
+        return hash(query(dbms, connection, 1,
+                "SELECT VIEW_DEFINITION FROM INFORMATION_SCHEMA.VIEWS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?",
+                List.of(schema, view)));
+    }
+
+    private static String hash(String s) {
+        // Keeps the stored value short.
+        long h = RowComparison.rowHash(new String[]{s}, 0xcbf29ce484222325L, 0x100000001b3L);
+        return Long.toHexString(h);
+    }
+
+    /**
+     * @return The number of rows and the sum of 64-bit hashes of their text representations.
+     */
+    private static String rows(Dbms dbms, Connection connection, String dialect, String table, List<String> columns)
+            throws SQLException {
+        switch (dialect) {
+            case "postgresql":
+                return query(dbms, connection, 1, "SELECT COUNT(*),"
+                        + " SUM(('x' || substr(md5(t::text), 1, 16))::bit(64)::bigint) FROM " + table + " AS t");
+            case "h2":
+                return query(dbms, connection, 1, "SELECT COUNT(*), SUM(CAST(SUBSTRING(HASH('SHA-256', CAST(ROW("
+                        + String.join(", ", columns) + ") AS VARCHAR)), 1, 8) AS BIGINT)) FROM " + table);
+            default:
+                // CHECKSUM TABLE gives the name of the table and the checksum.
+                return query(dbms, connection, 1, "SELECT COUNT(*) FROM " + table)
+                        + " " + query(dbms, connection, 2, "CHECKSUM TABLE " + table);
+        }
+    }
+
+    /**
+     * @return The values of the (single) row of the result from the given column on, separated by spaces.
+     */
+    private static String query(Dbms dbms, Connection connection, int column, String sql) throws SQLException {
+        return query(dbms, connection, column, sql, List.of());
+    }
+
+    private static String query(Dbms dbms, Connection connection, int column, String sql, List<Object> args)
+            throws SQLException {
+        ResultSet rs = dbms.executeSqlQuery(connection, new AbstractMap.SimpleEntry<>(sql, args));
+        try {
+            StringBuilder sb = new StringBuilder();
+            if (rs.next()) {
+                for (int i = column; i <= rs.getMetaData().getColumnCount(); i++) {
+                    sb.append(i == column ? "" : " ").append(rs.getString(i));
+                }
+            }
+            return sb.toString();
+        } finally {
+            dbms.release(rs);
+        }
+    }
+
+    private static String sha256(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The stored fingerprints, or null if there are none.
+     */
+    public static Properties load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        Properties fingerprints = new Properties();
+        try (Reader r = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            fingerprints.load(r);
+        }
+        return fingerprints;
+    }
+
+    public static void store(Path path, Properties fingerprints) throws IOException {
+        try (Writer w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            fingerprints.store(w, "Table fingerprints used by DbSpec to decide whether to extract again");
+        }
+    }
+
+    /**
+     * @return The names of the tables and views which have been added, removed or changed.
+     */
+    public static List<String> changedTables(Properties old, Properties current) {
+        List<String> changed = new ArrayList<>();
+        for (String key : current.stringPropertyNames()) {
+            if (key.startsWith("table.") && !current.getProperty(key).equals(old.getProperty(key))) {
+                changed.add(key.substring(6));
+            }
+        }
+        for (String key : old.stringPropertyNames()) {
+            if (key.startsWith("table.") && current.getProperty(key) == null) {
+                changed.add(key.substring(6));
+            }
+        }
+        changed.sort(null);
+        return changed;
+    }
+
+    public static boolean sameDatabase(Properties old, Properties current) {
+        return current.getProperty(URL_KEY).equals(old.getProperty(URL_KEY));
+    }
+}
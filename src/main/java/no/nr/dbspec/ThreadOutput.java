@@ -0,0 +1,89 @@
+package no.nr.dbspec;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Lets a thread temporarily capture what it writes to System.out and System.err,
+ * while other threads keep writing to the original streams.
+ * Redirections may be nested within the same thread, in which case the innermost one applies.
+ * Threads started while a redirection applies (e.g. the workers of parallel loops and SIARD outputs)
+ * inherit it, so that the output of a run in the daemon reaches the client, cf. {@link Daemon}.
+ */
+public class ThreadOutput {
+    private static final ThreadLocal<PrintStream> threadOut = new InheritableThreadLocal<>();
+    private static final ThreadLocal<PrintStream> threadErr = new InheritableThreadLocal<>();
+    private static final ThreadLocal<Deque<PrintStream[]>> outer = ThreadLocal.withInitial(ArrayDeque::new);
+    private static PrintStream originalOut;
+    private static PrintStream originalErr;
+    private static int redirections = 0;
+
+    private ThreadOutput() {
+    }
+
+    /**
+     * @param err May be null, in which case System.err is left as it is for this thread.
+     */
+    public static synchronized void redirect(PrintStream out, PrintStream err) {
+        if (redirections++ == 0) {
+            originalOut = System.out;
+            originalErr = System.err;
+            System.setOut(dispatcher(() -> target(threadOut, originalOut)));
+            System.setErr(dispatcher(() -> target(threadErr, originalErr)));
+        }
+        PrintStream previousErr = threadErr.get();
+        outer.get().push(new PrintStream[] { threadOut.get(), previousErr });
+        threadOut.set(out);
+        threadErr.set(err != null ? err : previousErr);
+    }
+
+    public static synchronized void restore() {
+        Deque<PrintStream[]> stack = outer.get();
+        PrintStream[] previous = stack.pop();
+        if (stack.isEmpty()) {
+            outer.remove();
+        }
+        // The previous streams may have been inherited.
+        set(threadOut, previous[0]);
+        set(threadErr, previous[1]);
+        if (--redirections == 0) {
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+    }
+
+    private static void set(ThreadLocal<PrintStream> local, PrintStream p) {
+        if (p == null) {
+            local.remove();
+        } else {
+            local.set(p);
+        }
+    }
+
+    private static PrintStream target(ThreadLocal<PrintStream> local, PrintStream original) {
+        PrintStream p = local.get();
+        return p != null ? p : original;
+    }
+
+    private static PrintStream dispatcher(Supplier<PrintStream> target) {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                target.get().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                target.get().write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                target.get().flush();
+            }
+        }, true);
+    }
+}
@@ -1,5 +1,7 @@
 package no.nr.dbspec;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Context for tracking timing information during execution.
  * Thread-safe for concurrent time tracking.
@@ -7,22 +9,40 @@ package no.nr.dbspec;
 public class TimingContext {
     private final boolean enabled;
     private final long startTimeNanos;
-    private long shellTimeNanos = 0;
-    private long sqlTimeNanos = 0;
-    private long siardTimeNanos = 0;
+    private final LongAdder shellTimeNanos = new LongAdder();
+    private final LongAdder sqlTimeNanos = new LongAdder();
+    private final LongAdder siardTimeNanos = new LongAdder();
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+    private final Metrics metrics;
 
     public TimingContext(boolean enabled) {
+        this(enabled, null);
+    }
+
+    /**
+     * @param metrics Where to record more detailed metrics, or null.
+     */
+    public TimingContext(boolean enabled, Metrics metrics) {
         this.enabled = enabled;
         this.startTimeNanos = enabled ? System.nanoTime() : 0;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The metrics passed to the constructor, or null.
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
      * Record time spent executing a shell command.
      * @param nanos Time in nanoseconds
      */
-    public synchronized void addShellTime(long nanos) {
+    public void addShellTime(long nanos) {
         if (enabled) {
-            shellTimeNanos += nanos;
+            shellTimeNanos.add(nanos);
         }
     }
 
@@ -30,9 +50,9 @@ public class TimingContext {
      * Record time spent executing SQL.
      * @param nanos Time in nanoseconds
      */
-    public synchronized void addSqlTime(long nanos) {
+    public void addSqlTime(long nanos) {
         if (enabled) {
-            sqlTimeNanos += nanos;
+            sqlTimeNanos.add(nanos);
         }
     }
 
@@ -40,9 +60,27 @@ public class TimingContext {
      * Record time spent extracting SIARD files.
      * @param nanos Time in nanoseconds
      */
-    public synchronized void addSiardTime(long nanos) {
+    public void addSiardTime(long nanos) {
+        if (enabled) {
+            siardTimeNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Record that a prepared statement was reused.
+     */
+    public void addStatementCacheHit() {
+        if (enabled) {
+            statementCacheHits.increment();
+        }
+    }
+
+    /**
+     * Record that a statement had to be prepared.
+     */
+    public void addStatementCacheMiss() {
         if (enabled) {
-            siardTimeNanos += nanos;
+            statementCacheMisses.increment();
         }
     }
 
@@ -56,13 +94,13 @@ public class TimingContext {
 
         long totalTimeNanos = System.nanoTime() - startTimeNanos;
         double totalTimeSeconds = totalTimeNanos / 1_000_000_000.0;
-        double shellTimeSeconds = shellTimeNanos / 1_000_000_000.0;
-        double sqlTimeSeconds = sqlTimeNanos / 1_000_000_000.0;
-        double siardTimeSeconds = siardTimeNanos / 1_000_000_000.0;
+        double shellTimeSeconds = shellTimeNanos.sum() / 1_000_000_000.0;
+        double sqlTimeSeconds = sqlTimeNanos.sum() / 1_000_000_000.0;
+        double siardTimeSeconds = siardTimeNanos.sum() / 1_000_000_000.0;
 
-        double shellPercentage = totalTimeNanos > 0 ? (shellTimeNanos * 100.0 / totalTimeNanos) : 0;
-        double sqlPercentage = totalTimeNanos > 0 ? (sqlTimeNanos * 100.0 / totalTimeNanos) : 0;
-        double siardPercentage = totalTimeNanos > 0 ? (siardTimeNanos * 100.0 / totalTimeNanos) : 0;
+        double shellPercentage = totalTimeNanos > 0 ? (shellTimeNanos.sum() * 100.0 / totalTimeNanos) : 0;
+        double sqlPercentage = totalTimeNanos > 0 ? (sqlTimeNanos.sum() * 100.0 / totalTimeNanos) : 0;
+        double siardPercentage = totalTimeNanos > 0 ? (siardTimeNanos.sum() * 100.0 / totalTimeNanos) : 0;
 
         System.err.println();
         System.err.println("Timing Report:");
@@ -70,5 +108,7 @@ public class TimingContext {
         System.err.printf("  Shell command time: %.3f s (%.1f%%)%n", shellTimeSeconds, shellPercentage);
         System.err.printf("  SQL command time:   %.3f s (%.1f%%)%n", sqlTimeSeconds, sqlPercentage);
         System.err.printf("  SIARD extract time: %.3f s (%.1f%%)%n", siardTimeSeconds, siardPercentage);
+        System.err.printf("  Statement cache:    %d hits, %d misses%n",
+                statementCacheHits.sum(), statementCacheMisses.sum());
     }
 }
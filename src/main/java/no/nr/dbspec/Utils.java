@@ -1,7 +1,5 @@
 package no.nr.dbspec;
 
-import org.treesitter.TSNode;
-
 import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -95,7 +93,7 @@ public class Utils {
         return obj == null ? "null" : shortName(obj.getClass());
     }
 
-    public static void ensureInstance(TSNode n, String errorMessageStart, Object obj, Class<?>... classes) {
+    public static void ensureInstance(Node n, String errorMessageStart, Object obj, Class<?>... classes) {
         for (Class<?> cls : classes) {
             if (cls.isInstance(obj)) {
                 return;
@@ -0,0 +1,409 @@
+package no.nr.dbspec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Replaces a single entry of a zip file, copying the compressed bytes of the other entries as they are,
+ * so that the cost does not depend on the size of the rest of the archive.
+ * The new content is deflated and stored where the old entry was.
+ * Zip64 is supported, but not archives spanning several files or encrypted entries.
+ * The file is replaced atomically, i.e. it is left unchanged if anything goes wrong.
+ */
+class ZipEntryReplacer {
+
+    /**
+     * The zip file uses features we do not handle.
+     */
+    static class UnsupportedZipException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedZipException(String message) {
+            super(message);
+        }
+    }
+
+    interface Transform {
+        void apply(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int LOC_SIZE = 30;
+    private static final int CEN_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int LOCATOR_SIZE = 20;
+    private static final long MAX32 = 0xffffffffL;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static class Entry {
+        int cen; // Position in the central directory
+        int cenLength;
+        int nameLength;
+        int extraLength;
+        String name;
+        int flags;
+        int method;
+        long compressedSize;
+        long offset;
+        int offsetPos; // Position of the offset in the central directory
+        boolean offset64; // Whether the offset is stored in the Zip64 extra field
+        int zip64Extra = -1; // Position of the Zip64 extra field in the central directory
+        int zip64ExtraLength;
+        long end; // End of the local entry
+        long newOffset;
+    }
+
+    private final FileChannel in;
+    private final long size;
+    private ByteBuffer cen;
+    private ByteBuffer end;
+    private ByteBuffer zip64End;
+    private ByteBuffer zip64Locator;
+    private long cenOffset;
+    private final List<Entry> entries = new ArrayList<>(); // In central directory order
+    private List<Entry> sorted; // By offset
+
+    private ZipEntryReplacer(FileChannel in) throws IOException {
+        this.in = in;
+        this.size = in.size();
+    }
+
+    static void replace(Path zip, String name, Transform transform) throws IOException {
+        Path tmp = Files.createTempFile(zip.toAbsolutePath().getParent(), "." + zip.getFileName(), ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(zip, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ZipEntryReplacer r = new ZipEntryReplacer(in);
+                r.readCentralDirectory();
+                r.write(out, name, transform);
+            }
+            try {
+                Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(zip));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system
+            }
+            Files.move(tmp, zip, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        int tailLength = (int) Math.min(size, END_SIZE + 0xffff);
+        ByteBuffer tail = read(size - tailLength, tailLength);
+        int e = tailLength - END_SIZE;
+        while (e >= 0 && (tail.getInt(e) != END_SIG || e + END_SIZE + u16(tail, e + 20) != tailLength)) {
+            e--;
+        }
+        if (e < 0) {
+            throw new UnsupportedZipException("End of central directory not found");
+        }
+        long endPos = size - tailLength + e;
+        end = read(endPos, tailLength - e);
+        if (u16(end, 4) != 0 || u16(end, 6) != 0) {
+            throw new UnsupportedZipException("Zip file spanning several disks");
+        }
+        long cenSize = u32(end, 12);
+        cenOffset = u32(end, 16);
+        if (endPos >= LOCATOR_SIZE) {
+            ByteBuffer locator = read(endPos - LOCATOR_SIZE, LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                zip64Locator = locator;
+                long pos = locator.getLong(8);
+                ByteBuffer head = read(pos, 12);
+                if (head.getInt(0) != ZIP64_END_SIG) {
+                    throw new UnsupportedZipException("Zip64 end of central directory not found");
+                }
+                zip64End = read(pos, toInt(12 + head.getLong(4)));
+                if (zip64End.getInt(16) != 0 || zip64End.getInt(20) != 0) {
+                    throw new UnsupportedZipException("Zip file spanning several disks");
+                }
+                cenSize = zip64End.getLong(40);
+                cenOffset = zip64End.getLong(48);
+            }
+        }
+        cen = read(cenOffset, toInt(cenSize));
+        for (int p = 0; p < cenSize; ) {
+            Entry entry = readEntry(p);
+            entries.add(entry);
+            p += entry.cenLength;
+        }
+        sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(x -> x.offset));
+        for (int i = 0; i < sorted.size(); i++) {
+            sorted.get(i).end = i + 1 < sorted.size() ? sorted.get(i + 1).offset : cenOffset;
+        }
+    }
+
+    private Entry readEntry(int p) throws IOException {
+        if (p + CEN_SIZE > cen.limit() || cen.getInt(p) != CEN_SIG) {
+            throw new UnsupportedZipException("Invalid central directory");
+        }
+        Entry e = new Entry();
+        e.cen = p;
+        e.nameLength = u16(cen, p + 28);
+        e.extraLength = u16(cen, p + 30);
+        e.cenLength = CEN_SIZE + e.nameLength + e.extraLength + u16(cen, p + 32);
+        e.name = new String(cen.array(), p + CEN_SIZE, e.nameLength,
+                (u16(cen, p + 8) & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+        e.flags = u16(cen, p + 8);
+        e.method = u16(cen, p + 10);
+        e.compressedSize = u32(cen, p + 20);
+        long uncompressedSize = u32(cen, p + 24);
+        e.offset = u32(cen, p + 42);
+        e.offsetPos = p + 42;
+        int x = p + CEN_SIZE + e.nameLength;
+        int xEnd = x + e.extraLength;
+        while (x + 4 <= xEnd) {
+            int length = u16(cen, x + 2);
+            if (u16(cen, x) == ZIP64_EXTRA_ID) {
+                e.zip64Extra = x;
+                e.zip64ExtraLength = 4 + length;
+                int q = x + 4;
+                if (uncompressedSize == MAX32) {
+                    q += 8;
+                }
+                if (e.compressedSize == MAX32) {
+                    e.compressedSize = cen.getLong(q);
+                    q += 8;
+                }
+                if (e.offset == MAX32) {
+                    e.offset = cen.getLong(q);
+                    e.offsetPos = q;
+                    e.offset64 = true;
+                }
+            }
+            x += 4 + length;
+        }
+        return e;
+    }
+
+    private void write(FileChannel out, String name, Transform transform) throws IOException {
+        Entry target = entries.stream()
+                .filter(e -> e.name.equals(name))
+                .findFirst()
+                .orElseThrow(() -> new UnsupportedZipException("Entry not found: " + name));
+        byte[] replacement = null;
+        copy(0, sorted.isEmpty() ? cenOffset : sorted.get(0).offset, out);
+        for (Entry e : sorted) {
+            e.newOffset = out.position();
+            if (e == target) {
+                replacement = writeReplacement(e, transform, out);
+            } else {
+                copy(e.offset, e.end - e.offset, out);
+            }
+        }
+
+        ByteArrayOutputStream newCen = new ByteArrayOutputStream(cen.limit());
+        for (Entry e : entries) {
+            if (e == target) {
+                newCen.write(replacement);
+                continue;
+            }
+            if (e.offset64) {
+                cen.putLong(e.offsetPos, e.newOffset);
+            } else if (e.newOffset < MAX32) {
+                cen.putInt(e.offsetPos, (int) e.newOffset);
+            } else {
+                throw new UnsupportedZipException("Offset of " + e.name + " would require Zip64");
+            }
+            newCen.write(cen.array(), e.cen, e.cenLength);
+        }
+        long newCenOffset = out.position();
+        long newCenSize = newCen.size();
+        writeFully(out, ByteBuffer.wrap(newCen.toByteArray()));
+        if (zip64End != null) {
+            long pos = out.position();
+            zip64End.putLong(40, newCenSize);
+            zip64End.putLong(48, newCenOffset);
+            writeFully(out, zip64End);
+            zip64Locator.putLong(8, pos);
+            writeFully(out, zip64Locator);
+        }
+        putEndField(12, newCenSize);
+        putEndField(16, newCenOffset);
+        writeFully(out, end);
+    }
+
+    private void putEndField(int pos, long value) throws UnsupportedZipException {
+        if (u32(end, pos) == MAX32) {
+            return;
+        }
+        if (value < MAX32) {
+            end.putInt(pos, (int) value);
+        } else if (zip64End != null) {
+            end.putInt(pos, (int) MAX32);
+        } else {
+            throw new UnsupportedZipException("Central directory would require Zip64");
+        }
+    }
+
+    /**
+     * Writes the new local entry and returns the corresponding central directory record.
+     */
+    private byte[] writeReplacement(Entry e, Transform transform, FileChannel out) throws IOException {
+        ByteBuffer local = read(e.offset, LOC_SIZE);
+        if (local.getInt(0) != LOC_SIG) {
+            throw new UnsupportedZipException("Invalid local header of " + e.name);
+        }
+        if ((e.flags & FLAG_ENCRYPTED) != 0) {
+            throw new UnsupportedZipException("Encrypted entry: " + e.name);
+        }
+        long data = e.offset + LOC_SIZE + u16(local, 26) + u16(local, 28);
+        byte[] raw = read(data, toInt(e.compressedSize)).array();
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        if (e.method == STORED) {
+            transform.apply(new ByteArrayInputStream(raw), plain);
+        } else if (e.method == DEFLATED) {
+            Inflater inflater = new Inflater(true);
+            // The extra byte is needed by the inflater in "nowrap" mode.
+            try (InputStream is = new InflaterInputStream(
+                    new ByteArrayInputStream(Arrays.copyOf(raw, raw.length + 1)), inflater)) {
+                transform.apply(is, plain);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new UnsupportedZipException("Unsupported compression method for " + e.name + ": " + e.method);
+        }
+        byte[] bytes = plain.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream os = new DeflaterOutputStream(compressed, deflater)) {
+            os.write(bytes);
+        } finally {
+            deflater.end();
+        }
+
+        int flags = e.flags & FLAG_UTF8; // In particular, there is no data descriptor.
+        int time = dosTime(LocalDateTime.now());
+        ByteBuffer header = ByteBuffer.allocate(LOC_SIZE + e.nameLength).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOC_SIG)
+                .putShort((short) 20)
+                .putShort((short) flags)
+                .putShort((short) DEFLATED)
+                .putInt(time)
+                .putInt((int) crc.getValue())
+                .putInt(compressed.size())
+                .putInt(bytes.length)
+                .putShort((short) e.nameLength)
+                .putShort((short) 0)
+                .put(cen.array(), e.cen + CEN_SIZE, e.nameLength)
+                .flip();
+        writeFully(out, header);
+        writeFully(out, ByteBuffer.wrap(compressed.toByteArray()));
+
+        // The central directory record, without any Zip64 information unless the offset requires it.
+        boolean offset64 = e.newOffset >= MAX32;
+        int x = e.cen + CEN_SIZE + e.nameLength;
+        int commentLength = e.cenLength - CEN_SIZE - e.nameLength - e.extraLength;
+        int extraLength = e.extraLength - (e.zip64Extra < 0 ? 0 : e.zip64ExtraLength) + (offset64 ? 12 : 0);
+        ByteBuffer r = ByteBuffer.allocate(CEN_SIZE + e.nameLength + extraLength + commentLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        r.put(cen.array(), e.cen, CEN_SIZE + e.nameLength);
+        r.putShort(6, (short) (offset64 ? 45 : 20))
+                .putShort(8, (short) flags)
+                .putShort(10, (short) DEFLATED)
+                .putInt(12, time)
+                .putInt(16, (int) crc.getValue())
+                .putInt(20, compressed.size())
+                .putInt(24, bytes.length)
+                .putShort(30, (short) extraLength)
+                .putShort(34, (short) 0)
+                .putInt(42, (int) (offset64 ? MAX32 : e.newOffset));
+        if (e.zip64Extra < 0) {
+            r.put(cen.array(), x, e.extraLength);
+        } else {
+            r.put(cen.array(), x, e.zip64Extra - x);
+            int after = e.zip64Extra + e.zip64ExtraLength;
+            r.put(cen.array(), after, x + e.extraLength - after);
+        }
+        if (offset64) {
+            r.putShort((short) ZIP64_EXTRA_ID).putShort((short) 8).putLong(e.newOffset);
+        }
+        r.put(cen.array(), x + e.extraLength, commentLength);
+        return r.array();
+    }
+
+    private static int dosTime(LocalDateTime t) {
+        int date = (t.getYear() - 1980) << 9 | t.getMonthValue() << 5 | t.getDayOfMonth();
+        int time = t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+        return date << 16 | time;
+    }
+
+    private ByteBuffer read(long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, pos + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        return buffer.clear();
+    }
+
+    private void copy(long pos, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long n = in.transferTo(pos, count, out);
+            if (n <= 0) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+            pos += n;
+            count -= n;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static int u16(ByteBuffer b, int pos) {
+        return b.getShort(pos) & 0xffff;
+    }
+
+    private static long u32(ByteBuffer b, int pos) {
+        return b.getInt(pos) & MAX32;
+    }
+
+    private static int toInt(long length) throws UnsupportedZipException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new UnsupportedZipException("Too large: " + length);
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,96 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.treesitter.TSNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackgroundTasksTests {
+
+    @Test
+    void test_parallel_tasks() {
+        BackgroundTasks tasks = new BackgroundTasks(2);
+        CountDownLatch latch = new CountDownLatch(2);
+        List<Boolean> results = new ArrayList<>();
+        Runnable task = () -> {
+            latch.countDown();
+            try {
+                // Only succeeds if both tasks are running at the same time.
+                boolean ok = latch.await(10, TimeUnit.SECONDS);
+                synchronized (results) {
+                    results.add(ok);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        tasks.submit("a", task);
+        tasks.submit("b", task);
+        tasks.awaitAll();
+        assertEquals(List.of(true, true), results);
+        tasks.shutdown();
+    }
+
+    @Test
+    void test_same_resource_and_failure() {
+        BackgroundTasks tasks = new BackgroundTasks(2);
+        List<Integer> order = new ArrayList<>();
+        tasks.submit("a", () -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            order.add(1);
+            throw new SemanticFailure((TSNode) null, "first");
+        });
+        // Waits for the first task, whose failure is then reported.
+        SemanticFailure e = assertThrows(SemanticFailure.class, () -> tasks.submit("a", () -> order.add(2)));
+        assertEquals("first", e.reason);
+        assertEquals(List.of(1), order);
+        tasks.shutdown();
+    }
+
+    @Test
+    void test_other_thread() throws InterruptedException {
+        BackgroundTasks tasks = new BackgroundTasks(2);
+        List<Throwable> failures = new ArrayList<>();
+        Thread t = new Thread(() -> {
+            try {
+                tasks.submit("a", () -> {});
+            } catch (Throwable e) {
+                failures.add(e);
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals(1, failures.size());
+        assertInstanceOf(IllegalStateException.class, failures.get(0));
+        tasks.shutdown();
+    }
+
+    @Test
+    void test_current_statement() {
+        BackgroundTasks tasks = new BackgroundTasks(2);
+        Node statement = new Node(Node.Kind.SIARD_OUTPUT, null, new Node[0], null, null);
+        List<String> locations = new ArrayList<>();
+        Node previous = Events.enterStatement("spec.dbspec", statement);
+        try {
+            tasks.submit("a", () -> {
+                synchronized (locations) {
+                    locations.add(Events.location());
+                }
+            });
+        } finally {
+            Events.exitStatement(previous);
+        }
+        tasks.awaitAll();
+        assertEquals(List.of("spec.dbspec:0"), locations);
+        tasks.shutdown();
+    }
+}
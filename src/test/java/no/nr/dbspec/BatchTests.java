@@ -0,0 +1,42 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchTests {
+
+    @Test
+    void expand(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("specs/nested"));
+        for (String name : new String[] { "specs/b.dbspec", "specs/a.dbspec", "specs/c.txt", "specs/nested/d.dbspec" }) {
+            Files.writeString(dir.resolve(name), "");
+        }
+        assertEquals(
+                List.of(dir.resolve("x.dbspec"), dir.resolve("specs/a.dbspec"), dir.resolve("specs/b.dbspec")),
+                Batch.expand(dir, new String[] { "x.dbspec", "specs/*.dbspec" }));
+        assertEquals(
+                List.of(dir.resolve("specs/a.dbspec"), dir.resolve("specs/b.dbspec"),
+                        dir.resolve("specs/nested/d.dbspec")),
+                Batch.expand(dir, new String[] { "specs/**.dbspec" }));
+        assertTrue(Batch.expand(dir, new String[] { "none/*.dbspec" }).isEmpty());
+    }
+
+    @Test
+    void status() {
+        Batch.Result ok = new Batch.Result(Path.of("a.dbspec"));
+        ok.status = StatusCode.OK;
+        Batch.Result failed = new Batch.Result(Path.of("b.dbspec"));
+        failed.status = StatusCode.SQL_ERROR;
+        Batch.Result alsoFailed = new Batch.Result(Path.of("c.dbspec"));
+        alsoFailed.status = StatusCode.ASSERTION_FAILURE;
+        assertEquals(StatusCode.OK, Batch.status(List.of(ok, ok)));
+        assertEquals(StatusCode.SQL_ERROR, Batch.status(List.of(ok, failed, alsoFailed)));
+    }
+}
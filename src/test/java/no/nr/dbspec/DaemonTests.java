@@ -0,0 +1,142 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DaemonTests {
+
+    @TempDir
+    Path tokenDir;
+
+    private static String post(Daemon daemon, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getPort() + "/run")
+                .openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        String header = Files.readString(daemon.getTokenFile()).trim();
+        c.setRequestProperty(Daemon.TOKEN_HEADER, header.substring(header.indexOf(':') + 1).trim());
+        try (OutputStream out = c.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, c.getResponseCode());
+        return new String(c.getInputStream().readAllBytes(), Charset.defaultCharset());
+    }
+
+    @Test
+    void run() throws Exception {
+        AtomicReference<ConnectionPool> pool = new AtomicReference<>();
+        Daemon daemon = new Daemon((args, workingDir, p) -> {
+            pool.set(p);
+            System.out.println("dir " + workingDir);
+            System.out.println("args " + Arrays.asList(args));
+            System.err.print("no newline");
+            // E.g. the workers of parallel loops
+            Thread worker = new Thread(() -> System.out.println("from worker"));
+            worker.start();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return StatusCode.ASSERTION_FAILURE;
+        }, 0, 2, tokenDir);
+        daemon.start();
+        try {
+            String response = post(daemon, "/tmp/specs\n-v\ntest.dbspec\n");
+            List<String> lines = response.lines().collect(Collectors.toList());
+            assertTrue(lines.contains("1dir " + Path.of("/tmp/specs")));
+            assertTrue(lines.contains("1args [-v, test.dbspec]"));
+            assertTrue(lines.contains("2no newline"));
+            assertTrue(lines.contains("1from worker"));
+            assertEquals("0" + StatusCode.ASSERTION_FAILURE.getValue(), lines.get(lines.size() - 1));
+
+            ConnectionPool first = pool.get();
+            assertNotNull(first);
+            post(daemon, "/tmp\nother.dbspec\n");
+            assertSame(first, pool.get());
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    @Test
+    void failure() throws Exception {
+        Daemon daemon = new Daemon((args, workingDir, p) -> {
+            throw new IllegalStateException("broken");
+        }, 0, 1, tokenDir);
+        daemon.start();
+        try {
+            String response = post(daemon, "/tmp\nspec.dbspec\n");
+            assertTrue(response.contains("2java.lang.IllegalStateException: broken"));
+            assertTrue(response.endsWith("0" + StatusCode.INTERNAL_ERROR.getValue() + "\n"));
+        } finally {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * @return The status line of the response to a request with the given headers.
+     */
+    private static String statusLine(Daemon daemon, String headers) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+            String request = "POST /run HTTP/1.1\r\n" + headers + "Content-Length: 11\r\n\r\n/tmp\nx.spec\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine();
+        }
+    }
+
+    @Test
+    void rejected() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        Daemon daemon = new Daemon((args, workingDir, p) -> {
+            runs.incrementAndGet();
+            return StatusCode.OK;
+        }, 0, 1, tokenDir);
+        daemon.start();
+        try {
+            Path tokenFile = daemon.getTokenFile();
+            String token = Files.readString(tokenFile).trim();
+            assertTrue(token.startsWith(Daemon.TOKEN_HEADER + ": "));
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+            }
+            String host = "Host: 127.0.0.1:" + daemon.getPort() + "\r\n";
+            String valid = token + "\r\n";
+            assertEquals("HTTP/1.1 200 OK", statusLine(daemon, host + valid));
+            assertEquals("HTTP/1.1 200 OK",
+                    statusLine(daemon, "Host: localhost\r\nOrigin: http://[::1]:80\r\n" + valid));
+            assertEquals("HTTP/1.1 403 Forbidden", statusLine(daemon, host));
+            assertEquals("HTTP/1.1 403 Forbidden", statusLine(daemon, host + Daemon.TOKEN_HEADER + ": wrong\r\n"));
+            assertEquals("HTTP/1.1 403 Forbidden", statusLine(daemon, "Host: example.com\r\n" + valid));
+            assertEquals("HTTP/1.1 403 Forbidden",
+                    statusLine(daemon, host + "Origin: http://example.com\r\n" + valid));
+            assertEquals(2, runs.get());
+        } finally {
+            daemon.stop();
+        }
+        assertFalse(Files.exists(daemon.getTokenFile()));
+    }
+}
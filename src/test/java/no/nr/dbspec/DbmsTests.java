@@ -0,0 +1,187 @@
+package no.nr.dbspec;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DbmsTests {
+
+    @Test
+    void test_statement_cache() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false), Settings.DEFAULT_FETCH_SIZE, 1);
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            ResultSet rs1 = dbms.executeSqlQuery(c, sql("SELECT 1"));
+            // Still in use
+            ResultSet rs2 = dbms.executeSqlQuery(c, sql("SELECT 1"));
+            Statement s1 = rs1.getStatement();
+            Statement s2 = rs2.getStatement();
+            assertNotSame(s1, s2);
+            dbms.release(rs1);
+            dbms.release(rs2);
+            // Only one idle statement is kept per key.
+            assertFalse(s1.isClosed());
+            assertTrue(s2.isClosed());
+
+            ResultSet rs3 = dbms.executeSqlQuery(c, sql("SELECT 1"));
+            assertSame(s1, rs3.getStatement());
+            dbms.release(rs3);
+
+            // Evicted by another statement
+            dbms.release(dbms.executeSqlQuery(c, sql("SELECT 2")));
+            assertTrue(s1.isClosed());
+
+            ResultSet rs4 = dbms.executeSqlQuery(c, sql("SELECT 2"));
+            Statement s4 = rs4.getStatement();
+            dbms.closeStatements();
+            assertTrue(s4.isClosed());
+        }
+    }
+
+    @Test
+    void test_executeSqlQuery_transaction() throws Exception {
+        int fetchSize = 7;
+        Dbms dbms = new Dbms(new TimingContext(false), fetchSize, Settings.DEFAULT_STATEMENT_CACHE_SIZE);
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            String query = "SELECT X FROM SYSTEM_RANGE(1, 100000)";
+            ResultSet rs1 = dbms.executeSqlQuery(c, sql(query));
+            assertEquals(fetchSize, rs1.getStatement().getFetchSize());
+            // Otherwise the PostgreSQL driver would fetch all the rows at once.
+            assertFalse(c.getAutoCommit());
+            ResultSet rs2 = dbms.executeSqlQuery(c, sql(query));
+            int rows = 0;
+            while (rs1.next() && rs2.next()) {
+                rows++;
+            }
+            assertEquals(100000, rows);
+            dbms.release(rs1);
+            assertFalse(c.getAutoCommit());
+            dbms.release(rs2);
+            assertTrue(c.getAutoCommit());
+
+            // Transactions begun by others are left alone.
+            c.setAutoCommit(false);
+            dbms.release(dbms.executeSqlQuery(c, sql(query)));
+            assertFalse(c.getAutoCommit());
+            c.setAutoCommit(true);
+
+            assertThrows(SQLException.class, () -> dbms.executeSqlQuery(c, sql("SELECT * FROM missing")));
+            assertTrue(c.getAutoCommit());
+        }
+    }
+
+    @Test
+    void test_executeSqlBatch() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            dbms.executeSqlUpdate(c, sql("CREATE TABLE t (x INT PRIMARY KEY)"));
+            String insert = "INSERT INTO t VALUES (?)";
+            List<List<Object>> args = List.of(
+                    List.of(BigInteger.ONE),
+                    List.of(BigInteger.TWO),
+                    List.of(BigInteger.TEN));
+            assertArrayEquals(new int[]{1, 1, 1}, dbms.executeSqlBatch(c, insert, args));
+
+            BatchUpdateException e = assertThrows(BatchUpdateException.class, () -> dbms.executeSqlBatch(c, insert,
+                    List.of(List.of(BigInteger.valueOf(3)), List.of(BigInteger.ONE), List.of(BigInteger.valueOf(4)))));
+            assertEquals(1, SqlBatch.failedIndex(e.getUpdateCounts(), 3));
+        }
+    }
+
+    @Test
+    void test_failedIndex() {
+        assertEquals(0, SqlBatch.failedIndex(null, 3));
+        assertEquals(2, SqlBatch.failedIndex(new int[]{1, 1}, 3));
+        assertEquals(1, SqlBatch.failedIndex(new int[]{1, Statement.EXECUTE_FAILED, 1}, 3));
+    }
+
+    @Test
+    void test_connectionPool() throws Exception {
+        ConnectionPool pool = new ConnectionPool();
+        String url = "jdbc:h2:mem:pool";
+        Properties parameters = new Properties();
+        Connection c1 = DriverManager.getConnection(url, parameters);
+        pool.put(url, parameters, c1);
+        assertSame(c1, pool.take(url, new Properties()));
+        assertNull(pool.take(url, parameters));
+
+        // Different parameters
+        Properties other = new Properties();
+        other.setProperty("user", "");
+        pool.put(url, parameters, c1);
+        assertNull(pool.take(url, other));
+
+        pool.close();
+        assertTrue(c1.isClosed());
+    }
+
+    @Test
+    void test_releaseConnection() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        String url = "jdbc:h2:mem:release";
+        Connection keep = dbms.connect(url, new NormalContext());
+        Connection c1 = dbms.connect(url, new NormalContext());
+        dbms.executeSqlUpdate(c1, sql("CREATE TABLE t (a INT)"));
+        c1.setAutoCommit(false);
+        dbms.executeSqlUpdate(c1, sql("INSERT INTO t VALUES (1)"));
+        dbms.executeSqlUpdate(c1, sql("SET @x = 1"));
+        dbms.releaseConnection(c1);
+
+        // We do not know how to reset H2 sessions, e.g. the variable @x.
+        assertTrue(c1.isClosed());
+        Connection c2 = dbms.connect(url, new NormalContext());
+        assertNotSame(c1, c2);
+        // The insertion was rolled back.
+        assertEquals(0, dbms.countSqlQuery(c2, sql("SELECT * FROM t")));
+        dbms.closeConnection(c2);
+        dbms.closeConnection(keep);
+    }
+
+    @Test
+    void test_sqlEvents(@TempDir Path dir) throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        Node statement = new Node(Node.Kind.EXECUTE_SQL, null, new Node[0], null, null);
+        Path file = dir.resolve("events.jfr");
+        try (Recording recording = new Recording();
+             Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            recording.enable("no.nr.dbspec.Sql").withoutThreshold();
+            recording.start();
+            Node previous = Events.enterStatement("spec.dbspec", statement);
+            try {
+                dbms.executeSqlUpdate(c, sql("CREATE TABLE t (a INT)"));
+                dbms.executeSqlUpdate(c, sql("INSERT INTO t VALUES (1), (2)"));
+            } finally {
+                Events.exitStatement(previous);
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertEquals(2, events.size());
+        RecordedEvent insert = events.get(1);
+        assertEquals("spec.dbspec:0", insert.getString("location"));
+        assertEquals("update", insert.getString("operation"));
+        assertEquals("INSERT INTO t VALUES (1), (2)".hashCode(), insert.getInt("sqlHash"));
+        assertEquals(2, insert.getLong("rows"));
+    }
+
+    private static Map.Entry<String, List<Object>> sql(String sql) {
+        return new AbstractMap.SimpleEntry<>(sql, List.of());
+    }
+}
@@ -15,9 +15,14 @@ import java.io.PrintStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -116,6 +121,97 @@ public class InterpreterTests {
         assertEquals(expectedStatus, code);
     }
 
+    @Test
+    void test_streaming_rows() {
+        Interpreter i = new Interpreter(
+                log,
+                dir,
+                properties,
+                false,
+                new Dbms(new TimingContext(false)),
+                scriptRunner,
+                extractor,
+                adjuster,
+                roaeProducer);
+        assertEquals(StatusCode.OK, i.interpret(dir.resolve("streaming_rows.dbspec")));
+        NormalContext ctx = i.getContext();
+        assertInstanceOf(BufferedRows.class, ctx.getValue("r"));
+        assertInstanceOf(BufferedRows.class, ctx.getValue("res"));
+        assertInstanceOf(StreamingRows.class, ctx.getValue("inner"));
+        assertInstanceOf(BufferedRows.class, ctx.getValue("s"));
+    }
+
+    @Test
+    void test_comparing_rows_in_database() {
+        Properties p = new Properties();
+        p.putAll(properties);
+        p.setProperty(Settings.UNORDERED_ROW_COMPARISON, "true");
+        p.setProperty(Settings.COMPARE_ROWS_IN_DATABASE, "true");
+        int[] comparisons = {0};
+        Dbms dbms = new Dbms(new TimingContext(false)) {
+            @Override
+            public long[] countSqlQueryDifferences(
+                    Connection connection,
+                    Map.Entry<String, List<Object>> left,
+                    Map.Entry<String, List<Object>> right,
+                    int columnCount) throws SQLException {
+                comparisons[0]++;
+                return super.countSqlQueryDifferences(connection, left, right, columnCount);
+            }
+        };
+        Interpreter i = new Interpreter(
+                log,
+                dir,
+                p,
+                false,
+                dbms,
+                scriptRunner,
+                extractor,
+                adjuster,
+                roaeProducer);
+        assertEquals(StatusCode.OK, i.interpret(dir.resolve("comparing_rows_in_database.dbspec")));
+        assertEquals(1, comparisons[0]);
+        // The rows were never fetched.
+        assertTrue(((QueryRows) i.getContext().getValue("a")).isPending());
+        assertTrue(((QueryRows) i.getContext().getValue("b")).isPending());
+    }
+
+    @Test
+    void test_parallel_loop_rows() {
+        Properties p = new Properties();
+        p.putAll(properties);
+        p.setProperty(Settings.LOOP_WORKERS, "4");
+        Thread mainThread = Thread.currentThread();
+        List<Boolean> parallel = new CopyOnWriteArrayList<>();
+        List<Boolean> sequential = new CopyOnWriteArrayList<>();
+        Dbms dbms = new Dbms(new TimingContext(false)) {
+            @Override
+            public ResultSet executeSqlQuery(Connection connection, Map.Entry<String, List<Object>> pair)
+                    throws SQLException {
+                if (pair.getKey().contains("'parallel'")) {
+                    parallel.add(Thread.currentThread() == mainThread);
+                } else if (pair.getKey().contains("'sequential'")) {
+                    sequential.add(Thread.currentThread() == mainThread);
+                }
+                return super.executeSqlQuery(connection, pair);
+            }
+        };
+        Interpreter i = new Interpreter(
+                log,
+                dir,
+                p,
+                false,
+                dbms,
+                scriptRunner,
+                extractor,
+                adjuster,
+                roaeProducer);
+        assertEquals(StatusCode.OK, i.interpret(dir.resolve("parallel_loop_rows.dbspec")));
+        assertEquals(List.of(false, false, false, false, false, false, false, false), parallel);
+        // The iterations read "expected", so they ran on this thread.
+        assertEquals(List.of(true, true, true, true, true, true, true, true), sequential);
+    }
+
     @Test
     void test_Log_statements() throws Exception {
         PrintStream originalOut = System.out;
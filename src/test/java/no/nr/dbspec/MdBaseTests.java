@@ -0,0 +1,31 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.SiardMd.SiardMdType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MdBaseTests {
+
+    @Test
+    void test_children_by_type_and_name() {
+        SiardMd md = new SiardMd();
+        SiardMd s1 = new SiardMd(SiardMdType.SCHEMA, "s1", "a");
+        SiardMd i1 = new SiardMd(SiardMdType.INFO, "dbname", "x");
+        SiardMd s2 = new SiardMd(SiardMdType.SCHEMA, "s2", "b");
+        SiardMd i2 = new SiardMd(SiardMdType.INFO, "dbname", "y");
+        md.add(s1);
+        md.add(i1);
+        md.add(s2);
+        md.add(i2);
+        assertEquals(List.of(s1, s2), md.getChildren(SiardMdType.SCHEMA));
+        assertEquals(List.of(), md.getChildren(SiardMdType.TABLE));
+        assertSame(s2, md.getChild(SiardMdType.SCHEMA, "s2"));
+        assertSame(i1, md.getChild(SiardMdType.INFO, "dbname"));
+        assertNull(md.getChild(SiardMdType.TABLE, "s1"));
+        assertEquals("(METADATA null null (SCHEMA s1 \"a\") (INFO dbname \"x\") (SCHEMA s2 \"b\") (INFO dbname \"y\"))",
+                md.toString());
+    }
+}
@@ -0,0 +1,62 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTests {
+
+    @Test
+    void openMetricsText() throws IOException {
+        Metrics metrics = new Metrics("my \"spec\".dbspec");
+        metrics.observeSql("jdbc:h2:mem:", 2_000_000);
+        metrics.observeSql("jdbc:h2:mem:", 20_000_000_000L);
+        metrics.observeScript("bash", 500_000_000_000L);
+        metrics.addLoopRows(7);
+        metrics.addSiardBytes(1234);
+        metrics.addAssertion(true);
+        metrics.addAssertion(true);
+        metrics.addAssertion(false);
+        metrics.setStatus(StatusCode.ASSERTION_FAILURE);
+
+        StringWriter w = new StringWriter();
+        metrics.write(w);
+        String text = w.toString();
+        String spec = "spec=\"my \\\"spec\\\".dbspec\"";
+        String sql = "dbspec_sql_duration_seconds";
+        String connection = spec + ",connection=\"jdbc:h2:mem:\"";
+        assertTrue(text.contains("# TYPE " + sql + " histogram\n"));
+        assertTrue(text.contains(sql + "_bucket{" + connection + ",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains(sql + "_bucket{" + connection + ",le=\"0.005\"} 1\n"));
+        assertTrue(text.contains(sql + "_bucket{" + connection + ",le=\"10.0\"} 1\n"));
+        assertTrue(text.contains(sql + "_bucket{" + connection + ",le=\"30.0\"} 2\n"));
+        assertTrue(text.contains(sql + "_bucket{" + connection + ",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains(sql + "_count{" + connection + "} 2\n"));
+        assertTrue(text.contains(sql + "_sum{" + connection + "} 20.002\n"));
+        assertTrue(text.contains("dbspec_script_duration_seconds_bucket{" + spec
+                + ",interpreter=\"bash\",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("dbspec_loop_rows_total{" + spec + "} 7\n"));
+        assertTrue(text.contains("dbspec_siard_written_bytes_total{" + spec + "} 1234\n"));
+        assertTrue(text.contains("dbspec_assertions_total{" + spec + ",result=\"passed\"} 2\n"));
+        assertTrue(text.contains("dbspec_assertions_total{" + spec + ",result=\"failed\"} 1\n"));
+        assertTrue(text.contains("dbspec_exit_code{" + spec + "} " + StatusCode.ASSERTION_FAILURE.getValue() + "\n"));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    void writeFile(@TempDir Path dir) throws IOException {
+        Metrics metrics = new Metrics("spec.dbspec");
+        Path path = dir.resolve("run.prom");
+        metrics.write(path);
+        metrics.addLoopRows(1);
+        metrics.write(path);
+        assertTrue(Files.readString(path).contains("dbspec_loop_rows_total{spec=\"spec.dbspec\"} 1\n"));
+        assertFalse(Files.exists(dir.resolve("run.prom.tmp")));
+    }
+}
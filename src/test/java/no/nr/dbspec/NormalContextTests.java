@@ -0,0 +1,101 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NormalContextTests {
+
+    private static Node identifier(Symbols symbols, String name) {
+        return new Node(Kind.IDENTIFIER, null, new Node[0], null, name, symbols.slot(name), null);
+    }
+
+    @Test
+    void test_slots_and_names() {
+        Symbols symbols = new Symbols();
+        Node x = identifier(symbols, "x");
+        NormalContext ctx = new NormalContext(symbols);
+        ctx.setValue(x, "1");
+        assertEquals("1", ctx.getValue("x"));
+        assertEquals("1", ctx.getValue(x));
+
+        // Names unknown when the context was created.
+        ctx.setValue("y", "2");
+        Node y = identifier(symbols, "y");
+        assertEquals("2", ctx.getValue(y));
+        assertNull(ctx.getValue(identifier(symbols, "z")));
+        assertNull(ctx.getValue("w"));
+
+        NormalContext copy = new NormalContext(ctx);
+        copy.clearValue(x);
+        copy.setValue(y, "3");
+        assertEquals("1", ctx.getValue(x));
+        assertEquals("2", ctx.getValue(y));
+        assertNull(copy.getValue("x"));
+
+        Map<String, Object> values = new HashMap<>();
+        copy.forEach(values::put);
+        assertEquals(Map.of("y", "3"), values);
+    }
+
+    @Test
+    void test_command_parameters() {
+        Symbols symbols = new Symbols();
+        Node p = identifier(symbols, "p");
+        Node v = identifier(symbols, "v");
+        NormalContext ctx = new NormalContext(symbols);
+        ctx.setValue(p, "shadowed");
+        ctx.setValue(v, "value");
+        CommandContext cmd = new CommandContext(ctx, Set.of("p", "q"));
+        assertInstanceOf(ParameterRef.class, cmd.getValue(p));
+        assertSame(cmd.getValue(p), cmd.getValue("p"));
+        assertEquals("q", cmd.getValue(identifier(symbols, "q")).toString());
+        assertEquals("value", cmd.getValue(v));
+        assertNull(cmd.getValue("u"));
+    }
+
+    @Test
+    void test_concurrent_names() throws InterruptedException {
+        NormalContext ctx = new NormalContext();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            String prefix = "t" + t + "_";
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    ctx.setValue(prefix + i, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, ctx.getValue("t" + t + "_" + i));
+            }
+        }
+    }
+
+    @Test
+    void test_reading_while_growing() throws InterruptedException {
+        NormalContext ctx = new NormalContext();
+        ctx.setValue("x", "1");
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                ctx.setValue("w" + i, i);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            assertEquals("1", ctx.getValue("x"));
+        }
+        writer.join();
+        assertEquals(999, ctx.getValue("w999"));
+    }
+}
@@ -0,0 +1,88 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.treesitter.TSNode;
+
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static no.nr.dbspec.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelLoopTests {
+
+    @Test
+    void test_output_order_and_first_failure() {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        NormalContext ctx = new NormalContext();
+        String output = captureOutput(() -> {
+            SemanticFailure e = assertThrows(SemanticFailure.class, () -> {
+                try (ParallelLoop loop = new ParallelLoop(dbms, null, 4)) {
+                    for (int i = 0; i < 20; i++) {
+                        ctx.setValue("i", i);
+                        if (!loop.submit(ctx, c -> {
+                            int j = (Integer) c.getValue("i");
+                            // Later iterations tend to finish first.
+                            sleep(5 * (20 - j));
+                            System.out.println(j);
+                            if (j == 7 || j == 9) {
+                                throw new SemanticFailure((TSNode) null, "Failed: " + j);
+                            }
+                        })) {
+                            break;
+                        }
+                    }
+                    loop.finish();
+                }
+            });
+            assertEquals("Failed: 7", e.reason);
+        });
+        assertEquals("0\n1\n2\n3\n4\n5\n6\n7\n", output);
+    }
+
+    @Test
+    void test_worker_connections() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        Connection c = dbms.connect("jdbc:h2:mem:parallel_loop;DB_CLOSE_DELAY=-1", new NormalContext());
+        try (Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE t (i INT)");
+        }
+        NormalContext ctx = new NormalContext();
+        ctx.setValue("c", c);
+        Set<Connection> used = Collections.synchronizedSet(new HashSet<>());
+        try (ParallelLoop loop = new ParallelLoop(dbms, null, 3)) {
+            for (int i = 0; i < 30; i++) {
+                ctx.setValue("i", BigInteger.valueOf(i));
+                loop.submit(ctx, x -> {
+                    Connection wc = (Connection) x.getValue("c");
+                    used.add(wc);
+                    try {
+                        dbms.executeSqlUpdate(wc,
+                                new AbstractMap.SimpleEntry<>("INSERT INTO t VALUES (?)", List.of(x.getValue("i"))));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            loop.finish();
+        }
+        assertFalse(used.contains(c));
+        assertTrue(used.size() >= 1 && used.size() <= 3);
+        for (Connection wc : used) {
+            assertTrue(wc.isClosed());
+        }
+        try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("SELECT COUNT(*), SUM(i) FROM t")) {
+            assertTrue(rs.next());
+            assertEquals(30, rs.getInt(1));
+            assertEquals(435, rs.getInt(2));
+        }
+        dbms.closeConnection(c);
+    }
+}
@@ -0,0 +1,99 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.AbstractMap;
+import java.util.List;
+
+import static no.nr.dbspec.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfilerTests {
+
+    @Test
+    void nestedStatements(@TempDir Path dir) throws IOException {
+        Node log = node(Kind.LOG);
+        Node body = node(Kind.OTHER, log);
+        Node loop = node(Kind.FOR_LOOP, body);
+        Node root = node(Kind.SOURCE_FILE, loop);
+
+        Profiler profiler = new Profiler(true);
+        profiler.start(root, dir.resolve("spec.dbspec"));
+        long loopStart = profiler.enter();
+        for (int i = 0; i < 3; i++) {
+            long logStart = profiler.enter();
+            sleep(5);
+            profiler.exit(log, logStart);
+        }
+        profiler.addRows(loop, 3);
+        sleep(5);
+        profiler.exit(loop, loopStart);
+        profiler.finish();
+
+        Path stacks = dir.resolve("profile.txt");
+        profiler.writeCollapsedStacks(stacks);
+        List<String> lines = Files.readAllLines(stacks);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("spec.dbspec:0 for_loop "));
+        assertTrue(lines.get(1).startsWith("spec.dbspec:0 for_loop;spec.dbspec:0 log "));
+        long loopSelf = Long.parseLong(lines.get(0).substring(lines.get(0).lastIndexOf(' ') + 1));
+        long logSelf = Long.parseLong(lines.get(1).substring(lines.get(1).lastIndexOf(' ') + 1));
+        assertTrue(logSelf >= 15_000, "log: " + logSelf);
+        assertTrue(loopSelf >= 5_000 && loopSelf < logSelf, "loop: " + loopSelf);
+
+        Path json = dir.resolve("profile.json");
+        profiler.writeJson(json);
+        String content = Files.readString(json);
+        assertTrue(content.contains("\"file\": \"spec.dbspec\""));
+        assertTrue(content.contains("\"kind\": \"for_loop\", \"stack\": \"spec.dbspec:0 for_loop\", \"calls\": 1"));
+        assertTrue(content.contains("\"kind\": \"log\""));
+        assertTrue(content.contains("\"calls\": 3"));
+        assertTrue(content.contains("\"rows\": 3"));
+    }
+
+    @Test
+    void batchedRows(@TempDir Path dir) throws Exception {
+        Node insert = node(Kind.EXECUTE_SQL);
+        Node delete = node(Kind.EXECUTE_SQL);
+        Node root = node(Kind.SOURCE_FILE, node(Kind.FOR_LOOP, node(Kind.OTHER, insert, delete)));
+        Profiler profiler = new Profiler(true);
+        profiler.start(root, dir.resolve("spec.dbspec"));
+        Dbms dbms = new Dbms(new TimingContext(false));
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            dbms.executeSqlUpdate(c, new AbstractMap.SimpleEntry<>("CREATE TABLE t (x INT)", List.of()));
+            SqlBatch batch = new SqlBatch(dbms, 10, profiler);
+            for (int i = 1; i <= 3; i++) {
+                batch.add(insert, c, new AbstractMap.SimpleEntry<>("INSERT INTO t VALUES (?)",
+                        List.of(BigInteger.valueOf(i))));
+            }
+            batch.add(delete, c, new AbstractMap.SimpleEntry<>("DELETE FROM t WHERE x > 1", List.of()));
+            batch.flush();
+        }
+        profiler.finish();
+        Path json = dir.resolve("profile.json");
+        profiler.writeJson(json);
+        String content = Files.readString(json);
+        assertTrue(content.contains("\"rows\": 3"));
+        assertTrue(content.contains("\"rows\": 2"));
+    }
+
+    @Test
+    void disabled(@TempDir Path dir) throws IOException {
+        Node log = node(Kind.LOG);
+        Profiler profiler = new Profiler(false);
+        profiler.start(node(Kind.SOURCE_FILE, log), dir.resolve("spec.dbspec"));
+        profiler.exit(log, profiler.enter());
+        profiler.finish();
+        Path stacks = dir.resolve("profile.txt");
+        profiler.writeCollapsedStacks(stacks);
+        assertEquals(0, Files.size(stacks));
+    }
+}
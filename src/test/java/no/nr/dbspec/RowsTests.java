@@ -0,0 +1,212 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowsTests {
+
+    private static final String[][] rows = {
+            {"a", "1", null},
+            {"", "\u00e6\u00f8\u00e5 \ud83d\ude00", "x".repeat(1000)},
+            {null, null, null},
+    };
+
+    @Test
+    void test_RowFile() throws Exception {
+        RowFile file = new RowFile();
+        for (String[] row : rows) {
+            file.append(row);
+        }
+        file.append(new String[0]);
+        file.finish();
+        assertEquals(4, file.getRowCount());
+        // Two independent passes
+        for (int pass = 0; pass < 2; pass++) {
+            RowFile.Cursor cursor = file.cursor();
+            for (String[] row : rows) {
+                assertArrayEquals(row, cursor.next());
+            }
+            assertArrayEquals(new String[0], cursor.next());
+            assertNull(cursor.next());
+        }
+        file.close();
+        assertThrows(IOException.class, () -> file.cursor().next());
+    }
+
+    @Test
+    void test_RowBuffer_close() throws Exception {
+        RowBuffer buffer = new RowBuffer(0);
+        for (String[] row : rows) {
+            buffer.append(row);
+        }
+        buffer.finish();
+        assertTrue(buffer.tryLockAndRewind());
+        // Deferred until the iteration has ended
+        buffer.close();
+        for (String[] row : rows) {
+            assertArrayEquals(row, buffer.next());
+        }
+        buffer.free();
+        assertTrue(buffer.tryLockAndRewind());
+        assertThrows(SQLException.class, buffer::next);
+    }
+
+    @Test
+    void test_BufferedRows() throws Exception {
+        // With a memory limit of 0 every row is moved to a file.
+        Dbms dbms = new Dbms(new TimingContext(false));
+        for (long limit : new long[]{0, Settings.DEFAULT_ROWS_IN_MEMORY}) {
+            try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+                Rows r = new BufferedRows(dbms, c, query(), limit);
+                assertEquals(3, r.getSize());
+                for (int pass = 0; pass < 2; pass++) {
+                    assertTrue(r.tryLockAndRewind());
+                    assertFalse(r.tryLockAndRewind());
+                    for (String[] row : rows) {
+                        assertArrayEquals(row, r.next());
+                    }
+                    assertNull(r.next());
+                    r.free();
+                }
+            }
+        }
+    }
+
+    @Test
+    void test_StreamingRows() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false), 1, Settings.DEFAULT_STATEMENT_CACHE_SIZE);
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            Map.Entry<String, List<Object>> query = new AbstractMap.SimpleEntry<>(
+                    "SELECT * FROM (VALUES 1, 2, 3) AS tab WHERE C1 > ?",
+                    List.of(BigInteger.ONE));
+            Rows r = new StreamingRows(dbms, c, query);
+            assertEquals(2, r.getSize());
+            for (int pass = 0; pass < 2; pass++) {
+                assertTrue(r.tryLockAndRewind());
+                assertArrayEquals(new String[]{"2"}, r.next());
+                assertArrayEquals(new String[]{"3"}, r.next());
+                assertNull(r.next());
+                r.free();
+            }
+        }
+    }
+
+    @Test
+    void test_RowComparison() throws Exception {
+        RowComparison ordered = new RowComparison(true, 10);
+        RowComparison unordered = new RowComparison(false, 10);
+        String a = "a\t1\nb\t2\nb\t2";
+        String b = "b\t2\na\t1\nb\t2";
+        String c = "b\t2\na\t1\na\t1";
+
+        assertTrue(ordered.compare(null, new StringRows(a), new StringRows(a), null));
+        assertFalse(ordered.compare(null, new StringRows(a), new StringRows(b), null));
+        assertTrue(unordered.compare(null, new StringRows(a), new StringRows(b), null));
+
+        List<String> differences = new ArrayList<>();
+        assertFalse(ordered.compare(null, new StringRows(a), new StringRows(b), differences));
+        assertEquals(List.of(
+                "Row 1: (\"a\", \"1\") != (\"b\", \"2\")",
+                "Row 2: (\"b\", \"2\") != (\"a\", \"1\")"), differences);
+
+        // Only as many differences as there are
+        differences.clear();
+        assertFalse(new RowComparison(true, 2).compare(null, new StringRows(a), new StringRows(b), differences));
+        assertEquals(2, differences.size());
+        differences.clear();
+        assertFalse(new RowComparison(true, 1).compare(null, new StringRows(a), new StringRows(b), differences));
+        assertEquals(List.of("Row 1: (\"a\", \"1\") != (\"b\", \"2\")", "..."), differences);
+
+        differences.clear();
+        assertFalse(unordered.compare(null, new StringRows(a), new StringRows(c), differences));
+        assertEquals(List.of(
+                "Only right: (\"a\", \"1\")",
+                "Only left: (\"b\", \"2\")"), differences);
+
+        differences.clear();
+        assertFalse(unordered.compare(null, new StringRows(a), new StringRows("a\t1"), differences));
+        assertEquals(List.of(
+                "The left side has 3 rows, the right side 1.",
+                "Only left (2 times): (\"b\", \"2\")"), differences);
+    }
+
+    @Test
+    void test_RowComparison_in_database() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        RowComparison ordered = new RowComparison(dbms, true, 10);
+        RowComparison unordered = new RowComparison(dbms, false, 10);
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:")) {
+            c.createStatement().execute("CREATE TABLE t (x VARCHAR, y INT)");
+            c.createStatement().execute("INSERT INTO t VALUES ('a', 1), ('b', 2), ('b', 2), (NULL, 3)");
+            QueryRows all = new StreamingRows(dbms, c, sql("SELECT * FROM t"));
+            QueryRows some = new StreamingRows(dbms, c, sql("SELECT * FROM t WHERE y > ?", BigInteger.ONE));
+            QueryRows reversed = new StreamingRows(dbms, c, sql("SELECT * FROM t ORDER BY y DESC"));
+
+            assertTrue(unordered.compare(null, all, new StreamingRows(dbms, c, sql("SELECT * FROM t")), null));
+            List<String> differences = new ArrayList<>();
+            assertFalse(unordered.compare(null, all, some, differences));
+            assertEquals(List.of(
+                    "1 row only on the left side, 0 only on the right side.",
+                    "Only left: (\"a\", \"1\")"), differences);
+            // Compared without fetching the rows.
+            assertTrue(all.isPending());
+            assertTrue(some.isPending());
+
+            assertTrue(unordered.compare(null, all, reversed, null));
+            assertTrue(reversed.isPending());
+
+            // The database would compare the rows as multisets.
+            assertFalse(ordered.compare(null, all, reversed, null));
+            assertFalse(all.isPending());
+
+            // Deferred queries are not executed unless the database cannot compare them.
+            DeferredRows da = new DeferredRows(dbms, c, sql("SELECT * FROM t"), 0);
+            DeferredRows db = new DeferredRows(dbms, c, sql("SELECT * FROM t ORDER BY y DESC"), 0);
+            assertTrue(unordered.compare(null, da, db, null));
+            assertTrue(da.isPending());
+            assertTrue(db.isPending());
+            DeferredRows dc = new DeferredRows(dbms, c, sql("SELECT x FROM t"), 0);
+            assertFalse(unordered.compare(null, da, dc, null));
+            assertFalse(da.isPending());
+            assertFalse(dc.isPending());
+
+            // Modifications invalidate pending results.
+            QueryRows before = new StreamingRows(dbms, c, sql("SELECT * FROM t"));
+            QueryRows buffered = new BufferedRows(dbms, c, sql("SELECT * FROM t"), 0);
+            assertFalse(buffered.isPending());
+            dbms.executeSqlUpdate(c, sql("DELETE FROM t WHERE y = 1"));
+            assertFalse(before.isPending());
+            // The buffered rows were read before the modification.
+            assertEquals(4, buffered.getSize());
+        }
+    }
+
+    private static Map.Entry<String, List<Object>> sql(String sql, Object... args) {
+        return new AbstractMap.SimpleEntry<>(sql, List.of(args));
+    }
+
+    private static Map.Entry<String, List<Object>> query() {
+        StringBuilder sb = new StringBuilder("SELECT * FROM (VALUES ");
+        for (int i = 0; i < rows.length; i++) {
+            sb.append(i == 0 ? "(" : ", (");
+            for (int j = 0; j < rows[i].length; j++) {
+                String x = rows[i][j];
+                sb.append(j == 0 ? "" : ", ")
+                        .append(x == null ? "CAST(NULL AS VARCHAR)" : "'" + x + "'");
+            }
+            sb.append(")");
+        }
+        return sql(sb.append(") AS tab").toString());
+    }
+}
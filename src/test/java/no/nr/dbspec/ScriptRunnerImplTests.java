@@ -0,0 +1,135 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@EnabledOnOs({OS.LINUX, OS.MAC})
+public class ScriptRunnerImplTests {
+
+    private final ScriptRunner runner = new ScriptRunnerImpl(new TimingContext(false));
+    private final Path dir = Path.of(".");
+
+    @Test
+    void test_execute() {
+        assertEquals("a\tb\nc", runner.execute(null, "/bin/sh", "printf 'a\\tb\\nc\\n'", dir));
+        // The same script file is reused.
+        assertEquals("x", runner.execute(null, "/usr/bin/env sh", "echo x", dir));
+    }
+
+    @Test
+    void test_large_output_on_both_streams() {
+        // Much more than a pipe buffer on each stream.
+        String script = "i=0; while [ $i -lt 20000 ]; do echo line $i; echo error $i >&2; i=$((i+1)); done";
+        String result = runner.execute(null, "/bin/sh", script, dir);
+        assertEquals(20000, result.lines().count());
+    }
+
+    @Test
+    void test_executeRows() throws Exception {
+        String script = "i=0; while [ $i -lt 1000 ]; do printf '%d\\tx\\n' $i; i=$((i+1)); done";
+        // With a memory limit of 0 the rows are moved to a file.
+        Rows rows = runner.executeRows(null, "/bin/sh", script, dir, 0);
+        assertEquals(1000, rows.getSize());
+        assertTrue(rows.tryLockAndRewind());
+        assertArrayEquals(new String[]{"0", "x"}, rows.next());
+        rows.free();
+    }
+
+    @Test
+    void test_executeRows_like_execute() throws Exception {
+        for (String output : new String[]{"", "\\n", "a\\n", "a\\n\\n", "a\\n\\n\\n", "a\\nb", "\\tb\\n\\n"}) {
+            String script = "printf '" + output + "'";
+            Rows rows = runner.executeRows(null, "/bin/sh", script, dir, 1000);
+            Rows expected = new StringRows(runner.execute(null, "/bin/sh", script, dir));
+            assertEquals(expected.getSize(), rows.getSize(), output);
+            assertTrue(rows.tryLockAndRewind());
+            assertTrue(expected.tryLockAndRewind());
+            for (int i = 0; i < expected.getSize(); i++) {
+                assertArrayEquals(expected.next(), rows.next(), output);
+            }
+            rows.free();
+        }
+    }
+
+    @Test
+    void test_concurrent_sessions(@TempDir Path tmp) throws Exception {
+        ScriptRunnerImpl sessionRunner = new ScriptRunnerImpl(new TimingContext(false), true);
+        try {
+            // The first script waits (for at most 10 s) for the second one, which runs in another session.
+            String[] first = new String[1];
+            Thread t = new Thread(() -> first[0] = sessionRunner.execute(null, "/bin/sh",
+                    "touch started; i=0; while [ ! -f done ] && [ $i -lt 200 ]; do sleep 0.05; i=$((i+1)); done;"
+                            + " [ -f done ] && echo ok", tmp));
+            t.start();
+            while (!Files.exists(tmp.resolve("started"))) {
+                Thread.sleep(10);
+            }
+            sessionRunner.execute(null, "/usr/bin/env bash", "touch done", tmp);
+            t.join();
+            assertEquals("ok", first[0]);
+        } finally {
+            sessionRunner.close();
+        }
+    }
+
+    @Test
+    void test_failing_handler() {
+        ScriptRunnerImpl r = new ScriptRunnerImpl(new TimingContext(false));
+        long[] pid = {0};
+        assertThrows(IllegalStateException.class, () -> r.run(null, "/bin/sh", "echo $$; exec sleep 60", dir,
+                stdout -> {
+                    pid[0] = Long.parseLong(new BufferedReader(new InputStreamReader(stdout)).readLine().trim());
+                    throw new IllegalStateException();
+                }));
+        assertFalse(ProcessHandle.of(pid[0]).map(ProcessHandle::isAlive).orElse(false));
+        // The script file can be reused.
+        assertEquals("x", r.execute(null, "/bin/sh", "echo x", dir));
+    }
+
+    @Test
+    void test_exit_value() {
+        ScriptError e = assertThrows(ScriptError.class,
+                () -> runner.execute(null, "/bin/sh", "echo oops >&2; exit 3", dir));
+        assertEquals("Exit value: 3\noops", e.reason);
+    }
+
+    @Test
+    void test_sessions() {
+        ScriptRunnerImpl sessionRunner = new ScriptRunnerImpl(new TimingContext(false), true);
+        try {
+            // In a subshell $$ is the PID of the session shell.
+            String pid = sessionRunner.execute(null, "/bin/sh", "echo $$", dir);
+            assertEquals(pid, sessionRunner.execute(null, "/bin/sh", "echo $$", dir));
+            assertNotEquals(pid, sessionRunner.execute(null, "/usr/bin/env bash", "echo $$", dir));
+
+            // Scripts do not affect each other.
+            sessionRunner.execute(null, "/bin/sh", "X=1; cd /", dir);
+            assertEquals(":" + Path.of("").toAbsolutePath(),
+                    sessionRunner.execute(null, "/bin/sh", "echo \":$X\"$(pwd)", dir));
+
+            assertEquals("no final newline", sessionRunner.execute(null, "/bin/sh", "printf 'no final newline'", dir));
+            assertEquals("a\n\nb\n", sessionRunner.execute(null, "/bin/sh", "printf 'a\\n\\nb\\n\\n'", dir));
+
+            ScriptError e = assertThrows(ScriptError.class,
+                    () -> sessionRunner.execute(null, "/bin/sh", "echo oops >&2; exit 3", dir));
+            assertEquals("Exit value: 3\noops", e.reason);
+            // The session survives both exit and exec.
+            sessionRunner.execute(null, "/bin/sh", "exec true", dir);
+            assertEquals(pid, sessionRunner.execute(null, "/bin/sh", "echo $$", dir));
+
+            String script = "i=0; while [ $i -lt 20000 ]; do echo line $i; echo error $i >&2; i=$((i+1)); done";
+            assertEquals(20000, sessionRunner.execute(null, "/bin/sh", script, dir).lines().count());
+        } finally {
+            sessionRunner.close();
+        }
+    }
+}
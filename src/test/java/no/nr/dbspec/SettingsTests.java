@@ -0,0 +1,27 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SettingsTests {
+
+    private static Settings settings(String name, String value) {
+        Properties config = new Properties();
+        config.setProperty(name, value);
+        return new Settings(config, new Log(Log.QUIET));
+    }
+
+    @Test
+    void getInt() {
+        assertEquals(8, settings("x", "8").getInt("x", 1));
+        assertEquals(1, settings("x", "4294967297").getInt("x", 1));
+        assertEquals(1, settings("x", "-3").getInt("x", 1));
+        assertEquals(1, settings("x", "abc").getInt("x", 1));
+        assertEquals(1, settings("x", "0").getInt("x", 1, 1, 10));
+        assertEquals(1, settings("x", "11").getInt("x", 1, 1, 10));
+        assertEquals(10, settings("x", "10").getInt("x", 1, 1, 10));
+    }
+}
@@ -0,0 +1,394 @@
+package no.nr.dbspec;
+
+import ch.admin.bar.siard2.api.Archive;
+import ch.admin.bar.siard2.api.MetaCheckConstraint;
+import ch.admin.bar.siard2.api.MetaColumn;
+import ch.admin.bar.siard2.api.MetaSchema;
+import ch.admin.bar.siard2.api.MetaTable;
+import ch.admin.bar.siard2.api.Schema;
+import no.nr.dbspec.SiardMd.SiardMdType;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.stream.Collectors;
+import java.util.zip.ZipOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SiardMetadataAdjusterImplTests {
+
+    private static final int TABLES = 10_000;
+    private static final int COLUMNS = 5;
+
+    // Counts lookups by name, which are linear searches in the SIARD API.
+    private final AtomicInteger lookupsByName = new AtomicInteger();
+    private final Map<String, String> descriptions = new HashMap<>();
+    private final List<String> warnings = new ArrayList<>();
+    private final Log log = new Log(Log.NORMAL) {
+        @Override
+        public void warn(String message, Object... args) {
+            warnings.add(String.format(message, args));
+        }
+    };
+
+    /**
+     * A minimal implementation of a SIARD API interface, based on a name and a list of children.
+     * Children of different types (e.g. columns and check constraints) are told apart by the getters.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T meta(Class<T> type, String name, List<?> children) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String m = method.getName();
+            if (m.equals("getName")) {
+                return name;
+            } else if (m.equals("setDescription")) {
+                descriptions.put(name, (String) args[0]);
+                return null;
+            } else if (m.equals("getQueryOriginal")) {
+                return "";
+            } else if (m.equals("getMetaSchema")) {
+                return children.get(0);
+            } else if (m.equals("toString")) {
+                return name;
+            } else if (args == null) {
+                // getSchemas, getMetaTables, getMetaColumns, etc.
+                if (!m.endsWith("s") || method.getReturnType() != int.class) {
+                    return 0;
+                }
+                Class<?> element;
+                try {
+                    element = type.getMethod(m.substring(0, m.length() - 1), int.class).getReturnType();
+                } catch (NoSuchMethodException e) {
+                    return 0;
+                }
+                return (int) children.stream().filter(element::isInstance).count();
+            }
+            List<?> ofType = children.stream()
+                    .filter(method.getReturnType()::isInstance)
+                    .collect(Collectors.toList());
+            if (args[0] instanceof Integer) {
+                return ofType.get((Integer) args[0]);
+            } else {
+                lookupsByName.incrementAndGet();
+                return ofType.stream()
+                        .filter(c -> args[0].equals(c.toString()))
+                        .findFirst()
+                        .orElse(null);
+            }
+        });
+    }
+
+    @Test
+    void test_wide_schema() {
+        List<MetaTable> tables = new ArrayList<>();
+        SiardMd sObj = new SiardMd(SiardMdType.SCHEMA, "s", "Schema");
+        for (int t = 0; t < TABLES; t++) {
+            String tName = "t" + t;
+            List<MetaColumn> columns = new ArrayList<>();
+            for (int c = 0; c < COLUMNS; c++) {
+                columns.add(meta(MetaColumn.class, tName + ".c" + c, List.of()));
+            }
+            tables.add(meta(MetaTable.class, tName, columns));
+            if (t > 0) {
+                // All but the first table are mentioned, and only the first column of each.
+                SiardMd tObj = new SiardMd(SiardMdType.TABLE, tName, "Table " + t);
+                tObj.add(new SiardMd(SiardMdType.COLUMN, tName + ".c0", "Column " + t));
+                sObj.add(tObj);
+            }
+        }
+        MetaSchema metaSchema = meta(MetaSchema.class, "s", tables);
+        Archive archive = meta(Archive.class, "archive", List.of(meta(Schema.class, "s", List.of(metaSchema))));
+        SiardMd mdo = new SiardMd();
+        mdo.add(sObj);
+
+        new SiardMetadataAdjusterImpl(log).updateArchiveMetadata(archive, mdo);
+
+        // Each collection is indexed once instead of being searched for each name.
+        assertEquals(0, lookupsByName.get());
+        assertEquals("Schema", descriptions.get("s"));
+        assertEquals("Table 9999", descriptions.get("t9999"));
+        assertEquals("Column 1", descriptions.get("t1.c0"));
+        assertNull(descriptions.get("t0"));
+        assertEquals(TABLES, warnings.size());
+        assertEquals("Columns of table 's.t1' not mentioned in Metadata: t1.c1, t1.c2, t1.c3, t1.c4", warnings.get(0));
+        assertEquals("Table of schema 's' not mentioned in Metadata: t0", warnings.get(TABLES - 1));
+    }
+
+    @Test
+    void test_check_constraints() {
+        MetaTable table = meta(MetaTable.class, "t", List.of(
+                meta(MetaColumn.class, "c", List.of()),
+                meta(MetaCheckConstraint.class, "ck", List.of())));
+        MetaSchema metaSchema = meta(MetaSchema.class, "s", List.of(table));
+        Archive archive = meta(Archive.class, "archive", List.of(meta(Schema.class, "s", List.of(metaSchema))));
+        SiardMd tObj = new SiardMd(SiardMdType.TABLE, "t", "Table");
+        tObj.add(new SiardMd(SiardMdType.COLUMN, "c", "Column"));
+        tObj.add(new SiardMd(SiardMdType.CHECK, "ck", "Check"));
+        SiardMd sObj = new SiardMd(SiardMdType.SCHEMA, "s", "Schema");
+        sObj.add(tObj);
+        SiardMd mdo = new SiardMd();
+        mdo.add(sObj);
+
+        new SiardMetadataAdjusterImpl(log).updateArchiveMetadata(archive, mdo);
+
+        assertEquals("Column", descriptions.get("c"));
+        assertEquals("Check", descriptions.get("ck"));
+        assertEquals(List.of(), warnings);
+    }
+
+    private static final String METADATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<siardArchive xmlns=\"http://www.bar.admin.ch/xmlns/siard/2/metadata.xsd\" version=\"2.1\">\n"
+            + "  <dbname>old</dbname>\n"
+            + "  <dataOwner>owner</dataOwner>\n"
+            + "  <dataOriginTimespan>2024</dataOriginTimespan>\n"
+            + "  <archivalDate>2025-01-01</archivalDate>\n"
+            + "  <schemas>\n"
+            + "    <schema>\n"
+            + "      <name>s</name>\n"
+            + "      <folder>schema0</folder>\n"
+            + "      <description>Old &amp; wrong</description>\n"
+            + "      <tables>\n"
+            + "        <table>\n"
+            + "          <name>t1</name>\n"
+            + "          <folder>table0</folder>\n"
+            + "          <columns>\n"
+            + "            <column>\n"
+            + "              <name>c1</name>\n"
+            + "              <type>INTEGER</type>\n"
+            + "            </column>\n"
+            + "            <column>\n"
+            + "              <name>c2</name>\n"
+            + "              <type>INTEGER</type>\n"
+            + "              <description>Unchanged</description>\n"
+            + "            </column>\n"
+            + "          </columns>\n"
+            + "          <primaryKey>\n"
+            + "            <name>pk</name>\n"
+            + "            <column>c1</column>\n"
+            + "          </primaryKey>\n"
+            + "          <rows>1</rows>\n"
+            + "        </table>\n"
+            + "        <table>\n"
+            + "          <name>t2</name>\n"
+            + "          <folder>table1</folder>\n"
+            + "          <columns>\n"
+            + "            <column>\n"
+            + "              <name>x</name>\n"
+            + "              <type>INTEGER</type>\n"
+            + "            </column>\n"
+            + "          </columns>\n"
+            + "          <rows>0</rows>\n"
+            + "        </table>\n"
+            + "      </tables>\n"
+            + "    </schema>\n"
+            + "  </schemas>\n"
+            + "  <users/>\n"
+            + "</siardArchive>\n";
+
+    private static byte[] content(int seed) {
+        byte[] bytes = new byte[100_000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * seed % 251);
+        }
+        return bytes;
+    }
+
+    private static Path createSiardFile(String metadata) throws IOException {
+        Path file = Files.createTempFile("dbspec-", ".siard");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            zip.putNextEntry(new ZipEntry("header/"));
+            zip.putNextEntry(new ZipEntry("content/schema0/table0/table0.xml"));
+            zip.write(content(7));
+            ZipEntry stored = new ZipEntry("content/schema0/table0/lob0/record0.bin");
+            stored.setMethod(ZipEntry.STORED);
+            byte[] lob = content(13);
+            CRC32 crc = new CRC32();
+            crc.update(lob);
+            stored.setSize(lob.length);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(lob);
+            zip.putNextEntry(new ZipEntry("header/metadata.xml"));
+            zip.write(metadata.getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("content/schema0/table1/table1.xml"));
+            zip.write(content(11));
+        }
+        return file;
+    }
+
+    private static SiardMd metadataObject() {
+        SiardMd mdo = new SiardMd();
+        mdo.add(new SiardMd(SiardMdType.INFO, "dbname", "New name"));
+        mdo.add(new SiardMd(SiardMdType.INFO, "description", "About the database"));
+        SiardMd sObj = new SiardMd(SiardMdType.SCHEMA, "s", "Schema <s>");
+        SiardMd tObj = new SiardMd(SiardMdType.TABLE, "t1", "Table t1");
+        tObj.add(new SiardMd(SiardMdType.COLUMN, "c1", "Column c1"));
+        sObj.add(tObj);
+        mdo.add(sObj);
+        return mdo;
+    }
+
+    private static String read(ZipFile zip, String name) throws IOException {
+        try (InputStream is = zip.getInputStream(zip.getEntry(name))) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void test_streaming_update() throws IOException {
+        Path file = createSiardFile(METADATA);
+        try {
+            byte[] before = Files.readAllBytes(file);
+            new SiardMetadataAdjusterImpl(log, true).updateMetadata(file, metadataObject(), null);
+            byte[] after = Files.readAllBytes(file);
+
+            try (ZipFile zip = new ZipFile(file.toFile())) {
+                assertArrayEquals(content(7), readBytes(zip, "content/schema0/table0/table0.xml"));
+                assertArrayEquals(content(13), readBytes(zip, "content/schema0/table0/lob0/record0.bin"));
+                assertArrayEquals(content(11), readBytes(zip, "content/schema0/table1/table1.xml"));
+                String md = read(zip, "header/metadata.xml");
+                assertTrue(md.contains("<dbname>New name</dbname>\n  <description>About the database</description>\n"
+                        + "  <dataOwner>owner</dataOwner>"), md);
+                assertTrue(md.contains("<folder>schema0</folder>\n      <description>Schema &lt;s&gt;</description>\n"
+                        + "      <tables>"), md);
+                assertTrue(md.contains("<folder>table0</folder>\n          <description>Table t1</description>\n"
+                        + "          <columns>"), md);
+                assertTrue(md.contains("<type>INTEGER</type>\n              <description>Column c1</description>\n"
+                        + "            </column>"), md);
+                assertTrue(md.contains("<name>pk</name>\n            <column>c1</column>"), md);
+                assertFalse(md.contains("Old &amp; wrong"), md);
+                assertTrue(md.contains("<type>INTEGER</type>\n              <description>Unchanged</description>"), md);
+                assertTrue(md.contains("<name>t2</name>\n          <folder>table1</folder>\n          <columns>"), md);
+            }
+            assertEquals(List.of(
+                    "Column of table 's.t1' not mentioned in Metadata: c2",
+                    "Table of schema 's' not mentioned in Metadata: t2"), warnings);
+
+            // The compressed bytes of the first entries are copied as they are.
+            // The local header of the replaced entry starts 30 bytes before its name.
+            int metadataStart = indexOf(before, "header/metadata.xml".getBytes(StandardCharsets.US_ASCII)) - 30;
+            assertArrayEquals(Arrays.copyOf(before, metadataStart), Arrays.copyOf(after, metadataStart));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void test_streaming_update_unknown_table() throws IOException {
+        Path file = createSiardFile(METADATA);
+        try {
+            byte[] before = Files.readAllBytes(file);
+            SiardMd mdo = metadataObject();
+            mdo.getChild(SiardMdType.SCHEMA, "s").add(new SiardMd(SiardMdType.TABLE, "t3", null));
+            SiardException e = assertThrows(SiardException.class,
+                    () -> new SiardMetadataAdjusterImpl(log, true).updateMetadata(file, mdo, null));
+            assertEquals("Table not found: s.t3", e.getReason());
+            assertArrayEquals(before, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * The streaming rewriter should give the same metadata as the SIARD API,
+     * apart from formatting and the fields only the SIARD API maintains.
+     */
+    @Test
+    void test_streaming_and_siard_api_agree() throws Exception {
+        SiardMd other = metadataObject();
+        other.add(new SiardMd(SiardMdType.INFO, "archiver", "Archiver & co"));
+        other.add(new SiardMd(SiardMdType.INFO, "dataOwner", "New owner"));
+        SiardMd t2 = new SiardMd(SiardMdType.TABLE, "t2", "");
+        t2.add(new SiardMd(SiardMdType.COLUMN, "x", "\"x\" <>\n'x'"));
+        other.getChild(SiardMdType.SCHEMA, "s").add(t2);
+        other.getChild(SiardMdType.SCHEMA, "s").getChild(SiardMdType.TABLE, "t1")
+                .add(new SiardMd(SiardMdType.COLUMN, "c2", "Changed"));
+
+        for (SiardMd mdo : List.of(metadataObject(), other)) {
+            Path streamed = createSiardFile(METADATA);
+            Path adjusted = createSiardFile(METADATA);
+            try {
+                new SiardMetadataAdjusterImpl(log, true).updateMetadata(streamed, mdo, null);
+                new SiardMetadataAdjusterImpl(log, false).updateMetadata(adjusted, mdo, null);
+                try (ZipFile s = new ZipFile(streamed.toFile()); ZipFile a = new ZipFile(adjusted.toFile())) {
+                    assertEquals(
+                            adjustableFields(read(a, "header/metadata.xml")),
+                            adjustableFields(read(s, "header/metadata.xml")));
+                }
+            } finally {
+                Files.deleteIfExists(streamed);
+                Files.deleteIfExists(adjusted);
+            }
+        }
+    }
+
+    /**
+     * @return The paths and values of the elements which may be adjusted, and of the elements of the schemas.
+     */
+    private static List<String> adjustableFields(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Element root = factory.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)))
+                .getDocumentElement();
+        List<String> fields = new ArrayList<>();
+        for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && ADJUSTABLE.contains(n.getLocalName())) {
+                addFields((Element) n, "", fields);
+            }
+        }
+        return fields;
+    }
+
+    private static final Set<String> ADJUSTABLE = Set.of(
+            "dbname", "description", "archiver", "archiverContact", "dataOwner", "dataOriginTimespan", "schemas");
+
+    private static void addFields(Element e, String parent, List<String> fields) {
+        String path = parent + "/" + e.getLocalName();
+        boolean leaf = true;
+        for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                leaf = false;
+                addFields((Element) n, path, fields);
+            }
+        }
+        if (leaf) {
+            fields.add(path + "=" + e.getTextContent());
+        }
+    }
+
+    private static byte[] readBytes(ZipFile zip, String name) throws IOException {
+        try (InputStream is = zip.getInputStream(zip.getEntry(name))) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + pattern.length, pattern, 0, pattern.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,92 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.junit.jupiter.api.Test;
+import org.treesitter.TSNode;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static no.nr.dbspec.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatementSchedulerTests {
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    void test_independent_statements_and_output_order() {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Runnable> statements = List.of(
+                () -> {
+                    // Only succeeds if the second statement runs at the same time.
+                    await(latch);
+                    System.out.println("a");
+                },
+                () -> {
+                    System.out.println("b");
+                    latch.countDown();
+                },
+                () -> System.out.println("c"));
+        String output = captureOutput(() -> {
+            try (StatementScheduler scheduler = new StatementScheduler(2)) {
+                scheduler.run(statements, List.of(new int[0], new int[0], new int[] { 0 }));
+            }
+        });
+        assertEquals("a\nb\nc\n", output);
+    }
+
+    @Test
+    void test_first_failure() {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Runnable> statements = List.of(
+                () -> System.out.println("a"),
+                () -> {
+                    await(latch);
+                    System.out.println("b");
+                    throw new SemanticFailure((TSNode) null, "Failed: b");
+                },
+                () -> System.out.println("c"),
+                () -> {
+                    System.out.println("d");
+                    latch.countDown();
+                    throw new SemanticFailure((TSNode) null, "Failed: d");
+                });
+        String output = captureOutput(() -> {
+            SemanticFailure e = assertThrows(SemanticFailure.class, () -> {
+                try (StatementScheduler scheduler = new StatementScheduler(3)) {
+                    scheduler.run(statements, List.of(new int[0], new int[0], new int[] { 1 }, new int[0]));
+                }
+            });
+            assertEquals("Failed: b", e.reason);
+        });
+        // "d" was run before "b" failed, so its output is kept.
+        assertEquals("a\nb\nd\n", output);
+    }
+
+    @Test
+    void test_dependency_analysis() {
+        List<Node> statements = List.of(
+                set("c", node(Kind.CONNECTION)),
+                set("d", node(Kind.CONNECTION)),
+                execute("c"),
+                execute("d"),
+                set("r", query("c")),
+                node(Kind.EXECUTE_USING),
+                node(Kind.LOG, variable("r")),
+                node(Kind.EXECUTE_USING));
+        String predecessors = DependencyAnalysis.predecessors(statements).stream()
+                .map(Arrays::toString)
+                .collect(Collectors.joining(" "));
+        assertEquals("[] [] [0] [1] [0, 2] [] [2, 4] [5]", predecessors);
+    }
+}
@@ -0,0 +1,73 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Kind;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static no.nr.dbspec.TestUtils.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingAnalysisTests {
+
+    @Test
+    void test_streamable_results() {
+        Node a = query("c");
+        Node b = query("c");
+        Node d = query("c");
+        Node e = query("c");
+        Node f = query("c");
+        Node root = node(Kind.SOURCE_FILE,
+                set("a", a),
+                loop("a", execute("other")),
+                // Not immediately followed by the loop
+                set("b", b),
+                node(Kind.LOG),
+                loop("b"),
+                // The loop body uses the same connection.
+                set("d", d),
+                loop("d", node(Kind.CONDITIONAL, execute("c"))),
+                // The loop body runs a script.
+                set("e", e),
+                loop("e", node(Kind.EXECUTE_USING)),
+                // Nested
+                loop("h", set("f", f), loop("f", set("g", query("other")))));
+        Set<Node> result = StreamingAnalysis.streamableResults(root);
+        assertTrue(result.contains(a));
+        assertFalse(result.contains(b));
+        assertFalse(result.contains(d));
+        assertFalse(result.contains(e));
+        assertTrue(result.contains(f));
+    }
+
+    @Test
+    void test_deferrable_queries() {
+        Node a = query("c");
+        Node b = query("c");
+        Node d = query("c");
+        Node e = query("c");
+        Node f = query("c");
+        Node root = node(Kind.SOURCE_FILE,
+                set("a", a),
+                set("b", b),
+                node(Kind.LOG),
+                assertion(variable("a"), variable("b")),
+                // Used again
+                set("d", d),
+                assertion(variable("d"), variable("x")),
+                node(Kind.LOG, variable("d")),
+                // Something might be changed before the assertion.
+                set("e", e),
+                execute("c"),
+                assertion(variable("e"), variable("x")),
+                // Not only compared
+                set("f", f),
+                assertion(node(Kind.DOT_EXPRESSION, variable("f")), variable("x")));
+        Set<Node> result = StreamingAnalysis.deferrableQueries(root);
+        assertTrue(result.contains(a));
+        assertTrue(result.contains(b));
+        assertFalse(result.contains(d));
+        assertFalse(result.contains(e));
+        assertFalse(result.contains(f));
+    }
+}
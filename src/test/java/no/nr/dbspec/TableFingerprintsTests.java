@@ -0,0 +1,92 @@
+package no.nr.dbspec;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TableFingerprintsTests {
+
+    @Test
+    void test_changedTables() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:");
+             Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE a (x INT)");
+            s.execute("CREATE TABLE b (y VARCHAR)");
+            s.execute("INSERT INTO a VALUES (1), (2)");
+            Properties before = TableFingerprints.compute(dbms, c);
+            // Only a hash of the URL is stored.
+            assertFalse(before.toString().contains("jdbc:"));
+            assertTrue(TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c)).isEmpty());
+
+            // The order of the rows does not matter.
+            s.execute("DELETE FROM a WHERE x = 1");
+            s.execute("INSERT INTO a VALUES (1)");
+            assertTrue(TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c)).isEmpty());
+
+            s.execute("UPDATE a SET x = 3 WHERE x = 2");
+            s.execute("CREATE TABLE c (z INT)");
+            List<String> changed = TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c));
+            assertEquals(List.of("\"PUBLIC\".\"A\"", "\"PUBLIC\".\"C\""), changed);
+
+            s.execute("INSERT INTO b VALUES ('x')");
+            s.execute("UPDATE b SET y = 'y'");
+            changed = TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c));
+            assertEquals(List.of("\"PUBLIC\".\"A\"", "\"PUBLIC\".\"B\"", "\"PUBLIC\".\"C\""), changed);
+
+            Path file = Files.createTempFile("dbspec-", ".fingerprints");
+            try {
+                TableFingerprints.store(file, before);
+                assertEquals(before, TableFingerprints.load(file));
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void test_changedStructure() throws Exception {
+        Dbms dbms = new Dbms(new TimingContext(false));
+        try (Connection c = DriverManager.getConnection("jdbc:h2:mem:");
+             Statement s = c.createStatement()) {
+            s.execute("CREATE TABLE a (x INT NOT NULL)");
+            s.execute("CREATE TABLE b (y INT)");
+            s.execute("CREATE VIEW v AS SELECT x FROM a");
+            Properties before = TableFingerprints.compute(dbms, c);
+            assertTrue(before.containsKey("table.\"PUBLIC\".\"V\""));
+
+            s.execute("ALTER TABLE a ADD PRIMARY KEY (x)");
+            assertEquals(List.of("\"PUBLIC\".\"A\""),
+                    TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c)));
+
+            before = TableFingerprints.compute(dbms, c);
+            s.execute("ALTER TABLE b ADD FOREIGN KEY (y) REFERENCES a (x)");
+            s.execute("CREATE OR REPLACE VIEW v AS SELECT x FROM a WHERE x > 0");
+            assertEquals(List.of("\"PUBLIC\".\"B\"", "\"PUBLIC\".\"V\""),
+                    TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c)));
+
+            before = TableFingerprints.compute(dbms, c);
+            s.execute("COMMENT ON TABLE a IS 'A table'");
+            s.execute("COMMENT ON COLUMN b.y IS 'A column'");
+            assertEquals(List.of("\"PUBLIC\".\"A\"", "\"PUBLIC\".\"B\""),
+                    TableFingerprints.changedTables(before, TableFingerprints.compute(dbms, c)));
+        }
+    }
+
+    @Test
+    void test_dialect() {
+        assertEquals("postgresql", TableFingerprints.dialect("PostgreSQL"));
+        assertEquals("mysql", TableFingerprints.dialect("MariaDB"));
+        assertEquals("h2", TableFingerprints.dialect("H2"));
+        // The rows would have to be read to compute their checksum.
+        assertNull(TableFingerprints.dialect("Microsoft SQL Server"));
+    }
+}
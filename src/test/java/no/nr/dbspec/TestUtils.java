@@ -0,0 +1,88 @@
+package no.nr.dbspec;
+
+import no.nr.dbspec.Node.Field;
+import no.nr.dbspec.Node.Kind;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Syntax trees built without the parser, and other things shared by the tests.
+ */
+public class TestUtils {
+
+    private TestUtils() {
+    }
+
+    public static Node node(Kind kind, Node... children) {
+        return new Node(kind, null, children, Node.newFieldArray(), null);
+    }
+
+    public static Node identifier(String name) {
+        return new Node(Kind.IDENTIFIER, null, new Node[0], null, name);
+    }
+
+    public static Node query(String connection) {
+        return via(Kind.QUERY, connection);
+    }
+
+    public static Node execute(String connection) {
+        return via(Kind.EXECUTE_SQL, connection);
+    }
+
+    private static Node via(Kind kind, String connection) {
+        Node c = identifier(connection);
+        Node[] fields = Node.newFieldArray();
+        fields[Field.CONNECTION.ordinal()] = c;
+        return new Node(kind, null, new Node[] { c }, fields, null);
+    }
+
+    public static Node set(String name, Node value) {
+        Node[] fields = Node.newFieldArray();
+        fields[Field.NAME.ordinal()] = identifier(name);
+        fields[Field.VALUE.ordinal()] = value;
+        return new Node(Kind.SET, null, new Node[] { fields[Field.NAME.ordinal()], value }, fields, null);
+    }
+
+    public static Node loop(String resultSet, Node... statements) {
+        Node[] fields = Node.newFieldArray();
+        fields[Field.RESULT_SET.ordinal()] = identifier(resultSet);
+        fields[Field.BODY.ordinal()] = node(Kind.OTHER, statements);
+        return new Node(Kind.FOR_LOOP, null,
+                new Node[] { fields[Field.RESULT_SET.ordinal()], fields[Field.BODY.ordinal()] }, fields, null);
+    }
+
+    public static Node variable(String name) {
+        return new Node(Kind.VARIABLE_INSTANCE, null, new Node[] { identifier(name) }, Node.newFieldArray(), null);
+    }
+
+    public static Node assertion(Node left, Node right) {
+        Node[] fields = Node.newFieldArray();
+        fields[Field.LEFT.ordinal()] = left;
+        fields[Field.RIGHT.ordinal()] = right;
+        return node(Kind.ASSERT, new Node(Kind.OTHER, null, new Node[] { left, right }, fields, null));
+    }
+
+    /**
+     * @return What was written to System.out, with Unix line endings.
+     */
+    public static String captureOutput(Runnable r) {
+        PrintStream original = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            r.run();
+        } finally {
+            System.setOut(original);
+        }
+        return bytes.toString().replace("\r\n", "\n");
+    }
+
+    public static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}